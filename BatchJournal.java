@@ -0,0 +1,150 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Write ahead journal that gives {@link FileServer#applyBatch(byte[])} one fsync per batch. The
+ * encoded batch is appended and forced before its files are written without fsync. Files written
+ * that way are tracked as dirty; once the journal grows past its limit, or another upload is about
+ * to replace a dirty file, the dirty files are forced and the journal is truncated. After a crash
+ * the journal is replayed on startup.
+ */
+public class BatchJournal {
+
+    private final FileChannel channel;
+    private final long maxJournalBytes;
+    private final Set<Path> dirtyFiles = ConcurrentHashMap.newKeySet();
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    /**
+     * @param journalFile journal location, created if missing
+     * @param maxJournalBytes journal size that triggers a checkpoint
+     * @throws IOException
+     */
+    public BatchJournal(Path journalFile, long maxJournalBytes) throws IOException {
+        Files.createDirectories(journalFile.getParent());
+        this.channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.maxJournalBytes = maxJournalBytes;
+    }
+
+    /**
+     * Re-applies every complete batch left in the journal by a previous run, then checkpoints
+     * @param applier applies one encoded batch
+     * @throws IOException
+     */
+    public void replay(Consumer<byte[]> applier) throws IOException {
+        channel.position(0);
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        int replayed = 0;
+        try {
+            while (true) {
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                applier.accept(payload);
+                replayed++;
+            }
+        } catch (EOFException e) {
+            // a torn final record was never acknowledged to the client
+        }
+        if (replayed > 0) {
+            Log.info("Replayed " + replayed + " batches from journal");
+        }
+        checkpoint();
+    }
+
+    /**
+     * Appends a batch, forces it to disk and applies it. The applier must call
+     * {@link #markDirty(Path)} for every file it writes
+     * @param payload encoded batch
+     * @param applier applies the batch without fsync
+     * @throws IOException if the batch cannot be journaled, in which case it is not applied
+     */
+    public void append(byte[] payload, Consumer<byte[]> applier) throws IOException {
+        checkpointLock.readLock().lock();
+        try {
+            ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + payload.length);
+            record.putInt(payload.length).put(payload).flip();
+            synchronized (channel) {
+                channel.position(channel.size());
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                channel.force(false);
+            }
+            applier.accept(payload);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records a file written by an applied batch without fsync
+     * @param path file written
+     */
+    public void markDirty(Path path) {
+        dirtyFiles.add(path);
+    }
+
+    /**
+     * @param path any file
+     * @return true if {@code path} was written by a batch that is not checkpointed yet
+     */
+    public boolean isDirty(Path path) {
+        return dirtyFiles.contains(path);
+    }
+
+    /**
+     * Checkpoints if the journal has grown past its limit
+     * @throws IOException
+     */
+    public void checkpointIfNeeded() throws IOException {
+        if (channel.size() > maxJournalBytes) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Checkpoints before a non-journaled write replaces {@code path}, so a replay can never roll
+     * it back to the journaled version
+     * @param path file about to be replaced or deleted
+     * @throws IOException
+     */
+    public void checkpointIfDirty(Path path) throws IOException {
+        if (dirtyFiles.contains(path)) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Forces every dirty file and truncates the journal. Waits for batches being applied to finish
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            for (Path path : dirtyFiles) {
+                if (Files.isRegularFile(path)) {
+                    try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                        file.force(false);
+                    }
+                }
+            }
+            dirtyFiles.clear();
+            channel.truncate(0);
+            channel.force(false);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * {@link FileServer} calling a {@link BinaryTransportServer} instead of an RMI stub, so the
+ * uploader, downloader and reconciler work unchanged on either transport. Like RMI, it keeps a
+ * pool of idle connections and opens another one when all are busy. Errors are reported as with
+ * RMI: a failure on the server as a {@link ServerException}, caused by an {@link IOException} if the
+ * server hit an I/O error, a broken connection as a plain {@link RemoteException}, after which the
+ * call may be retried.
+ * <p>
+ * File contents, batches and chunk lists larger than {@link BinaryProtocol#MAX_PAYLOAD_BYTES} are
+ * sent in several requests. A call that cannot be split and does not fit in one request fails with
+ * a {@link MarshalException} before anything is sent.
+ */
+public class BinaryFileClient implements FileServer, Closeable {
+
+    private final InetSocketAddress address;
+    private final BlockingDeque<SocketChannel> idleConnections = new LinkedBlockingDeque<>();
+
+    /**
+     * @param host server address
+     * @param port binary transport port of the server
+     */
+    public BinaryFileClient(String host, int port) {
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Files larger than {@link BinaryProtocol#MAX_PAYLOAD_BYTES} are sent through an upload session
+     */
+    @Override
+    public void uploadFile(byte[] file, String fileName) throws RemoteException {
+        if (file.length > BinaryProtocol.MAX_PAYLOAD_BYTES) {
+            String uploadId = openUpload(fileName, TransferCodec.NONE, file.length);
+            try {
+                writeChunk(uploadId, 0, ByteBuffer.wrap(file));
+                commitUpload(uploadId);
+            } catch (RemoteException remoteException) {
+                try {
+                    abortUpload(uploadId);
+                } catch (RemoteException abortException) {
+                    remoteException.addSuppressed(abortException);
+                }
+                throw remoteException;
+            }
+            return;
+        }
+        call(BinaryProtocol.request(BinaryProtocol.UPLOAD_FILE, file.length + 2 * Integer.BYTES + fileName.length() * 3)
+                .putBytes(file).putString(fileName));
+    }
+
+    @Override
+    public void delete(String fileName) throws RemoteException {
+        call(BinaryProtocol.request(BinaryProtocol.DELETE, 0).putString(fileName));
+    }
+
+    @Override
+    public String openUpload(String fileName) throws RemoteException {
+        return openUpload(fileName, TransferCodec.NONE);
+    }
+
+    @Override
+    public String openUpload(String fileName, TransferCodec codec) throws RemoteException {
+        return openUpload(fileName, codec, 0);
+    }
+
+    @Override
+    public String openUpload(String fileName, TransferCodec codec, long expectedSize) throws RemoteException {
+        ByteBuffer response = call(BinaryProtocol.request(BinaryProtocol.OPEN_UPLOAD, 0).putString(fileName)
+                .put((byte) codec.ordinal()).putLong(expectedSize));
+        return BinaryProtocol.getString(response);
+    }
+
+    @Override
+    public int getBulkPort() throws RemoteException {
+        return call(BinaryProtocol.request(BinaryProtocol.GET_BULK_PORT, 0)).getInt();
+    }
+
+    @Override
+    public void writeChunk(String uploadId, byte[] chunk) throws RemoteException {
+        writeChunk(uploadId, BinaryProtocol.NO_OFFSET, chunk);
+    }
+
+    @Override
+    public void writeChunk(String uploadId, long offset, byte[] chunk) throws RemoteException {
+        if (chunk.length > BinaryProtocol.MAX_PAYLOAD_BYTES) {
+            writeChunk(uploadId, offset, ByteBuffer.wrap(chunk));
+            return;
+        }
+        call(BinaryProtocol.request(BinaryProtocol.WRITE_CHUNK, chunk.length + 128).putString(uploadId).putLong(offset)
+                .putBytes(chunk));
+    }
+
+    /**
+     * Like {@link #writeChunk(String, long, byte[])}, but writes the chunk to the socket straight
+     * from the buffer, so a slice of a {@link MappedFile} is sent without being copied into the heap.
+     * A chunk larger than {@link BinaryProtocol#MAX_PAYLOAD_BYTES} is sent in several requests
+     * @param offset position of the chunk in the upload, or {@link BinaryProtocol#NO_OFFSET} to append
+     * @param chunk bytes from its position to its limit are sent
+     */
+    public void writeChunk(String uploadId, long offset, ByteBuffer chunk) throws RemoteException {
+        int total = chunk.remaining();
+        int sent = 0;
+        do {
+            int length = Math.min(total - sent, BinaryProtocol.MAX_PAYLOAD_BYTES);
+            ByteBuffer piece = chunk.slice(chunk.position() + sent, length);
+            long pieceOffset = offset == BinaryProtocol.NO_OFFSET ? offset : offset + sent;
+            BinaryProtocol.FrameWriter request = BinaryProtocol.request(BinaryProtocol.WRITE_CHUNK, 128).putString(uploadId)
+                    .putLong(pieceOffset).putInt(length);
+            call(request.finish(length), piece);
+            sent += length;
+        } while (sent < total);
+    }
+
+    @Override
+    public UploadStatus getUploadStatus(String uploadId) throws RemoteException {
+        ByteBuffer response = call(BinaryProtocol.request(BinaryProtocol.GET_UPLOAD_STATUS, 0).putString(uploadId));
+        if (response.get() == 0) {
+            return null;
+        }
+        return new UploadStatus(response.getLong(), BinaryProtocol.getString(response));
+    }
+
+    @Override
+    public void commitUpload(String uploadId) throws RemoteException {
+        call(BinaryProtocol.request(BinaryProtocol.COMMIT_UPLOAD, 0).putString(uploadId));
+    }
+
+    @Override
+    public void abortUpload(String uploadId) throws RemoteException {
+        call(BinaryProtocol.request(BinaryProtocol.ABORT_UPLOAD, 0).putString(uploadId));
+    }
+
+    @Override
+    public List<BlockSignature> getSignatures(String fileName, int blockSize) throws RemoteException {
+        return BinaryProtocol.getSignatures(call(BinaryProtocol.request(BinaryProtocol.GET_SIGNATURES, 0)
+                .putString(fileName).putInt(blockSize)));
+    }
+
+    /**
+     * @throws MarshalException if the delta does not fit in one request
+     */
+    @Override
+    public boolean applyDelta(String fileName, int blockSize, String basisDigest, List<DeltaInstruction> delta)
+            throws RemoteException {
+        BinaryProtocol.FrameWriter request = BinaryProtocol.request(BinaryProtocol.APPLY_DELTA, 0).putString(fileName)
+                .putInt(blockSize).putString(basisDigest);
+        try {
+            BinaryProtocol.putDelta(request, delta);
+        } catch (IllegalArgumentException illegalArgumentException) {
+            throw new MarshalException("Delta for " + fileName + " does not fit in one request", illegalArgumentException);
+        }
+        return call(request).get() != 0;
+    }
+
+    @Override
+    public List<String> findMissingChunks(List<String> chunkHashes) throws RemoteException {
+        Set<String> missing = new LinkedHashSet<>();
+        int start = 0;
+        while (start < chunkHashes.size()) {
+            int end = start;
+            long bytes = 0;
+            while (end < chunkHashes.size() && (end == start || bytes + encodedSize(chunkHashes.get(end)) <= BinaryProtocol.MAX_PAYLOAD_BYTES)) {
+                bytes += encodedSize(chunkHashes.get(end++));
+            }
+            missing.addAll(BinaryProtocol.getStrings(call(BinaryProtocol.request(BinaryProtocol.FIND_MISSING_CHUNKS, (int) bytes)
+                    .putStrings(chunkHashes.subList(start, end)))));
+            start = end;
+        }
+        return new ArrayList<>(missing);
+    }
+
+    @Override
+    public void uploadChunks(List<byte[]> chunks) throws RemoteException {
+        uploadChunks(chunks, TransferCodec.NONE);
+    }
+
+    @Override
+    public void uploadChunks(List<byte[]> chunks, TransferCodec codec) throws RemoteException {
+        int start = 0;
+        while (start < chunks.size()) {
+            int end = start;
+            long bytes = 0;
+            while (end < chunks.size() && (end == start || bytes + chunks.get(end).length + Integer.BYTES <= BinaryProtocol.MAX_PAYLOAD_BYTES)) {
+                bytes += chunks.get(end++).length + Integer.BYTES;
+            }
+            if (bytes > BinaryProtocol.MAX_PAYLOAD_BYTES) {
+                throw new MarshalException("Chunk of " + bytes + " bytes does not fit in one request");
+            }
+            BinaryProtocol.FrameWriter request = BinaryProtocol.request(BinaryProtocol.UPLOAD_CHUNKS, (int) bytes + 8)
+                    .put((byte) codec.ordinal());
+            BinaryProtocol.putByteArrays(request, chunks.subList(start, end));
+            call(request);
+            start = end;
+        }
+    }
+
+    /**
+     * @throws MarshalException if the manifest does not fit in one request, see {@link #fitsManifest(String, List)}
+     */
+    @Override
+    public void commitManifest(String fileName, List<String> chunkHashes) throws RemoteException {
+        if (!fitsManifest(fileName, chunkHashes)) {
+            throw new MarshalException("Manifest of " + chunkHashes.size() + " chunks does not fit in one request");
+        }
+        call(BinaryProtocol.request(BinaryProtocol.COMMIT_MANIFEST, 0).putString(fileName).putStrings(chunkHashes));
+    }
+
+    /**
+     * @return true if {@link #commitManifest(String, List)} can send this manifest
+     */
+    public static boolean fitsManifest(String fileName, List<String> chunkHashes) {
+        long bytes = 1 + encodedSize(fileName) + Integer.BYTES;
+        for (String hash : chunkHashes) {
+            bytes += encodedSize(hash);
+        }
+        return bytes <= BinaryProtocol.MAX_REQUEST_BYTES;
+    }
+
+    /**
+     * Batches larger than {@link BinaryProtocol#MAX_PAYLOAD_BYTES} are split between operations and
+     * sent as several batches, files too large for any batch through an upload session
+     */
+    @Override
+    public void applyBatch(byte[] payload) throws RemoteException {
+        if (payload.length <= BinaryProtocol.MAX_PAYLOAD_BYTES) {
+            call(BinaryProtocol.request(BinaryProtocol.APPLY_BATCH, payload.length + Integer.BYTES).putBytes(payload));
+            return;
+        }
+        List<FileBatch.Operation> operations;
+        try {
+            operations = FileBatch.decode(payload);
+        } catch (IOException ioException) {
+            throw new MarshalException("Malformed batch", ioException);
+        }
+        FileBatch batch = new FileBatch();
+        for (FileBatch.Operation operation : operations) {
+            FileBatch single = new FileBatch();
+            if (operation.getType() == FileBatch.UPLOAD) {
+                single.addUpload(operation.getFileName(), operation.getData());
+            } else {
+                single.addDelete(operation.getFileName());
+            }
+            if (!batch.isEmpty() && batch.getSizeBytes() + single.getSizeBytes() > BinaryProtocol.MAX_PAYLOAD_BYTES) {
+                applyBatch(batch.toByteArray());
+                batch.reset();
+            }
+            if (single.getSizeBytes() > BinaryProtocol.MAX_PAYLOAD_BYTES) {
+                uploadFile(operation.getData(), operation.getFileName());
+            } else if (operation.getType() == FileBatch.UPLOAD) {
+                batch.addUpload(operation.getFileName(), operation.getData());
+            } else {
+                batch.addDelete(operation.getFileName());
+            }
+        }
+        if (!batch.isEmpty()) {
+            applyBatch(batch.toByteArray());
+        }
+    }
+
+    @Override
+    public List<FileInfo> listFiles() throws RemoteException {
+        return BinaryProtocol.getFileInfos(call(BinaryProtocol.request(BinaryProtocol.LIST_FILES, 0)));
+    }
+
+    @Override
+    public byte[] readRange(String fileName, long offset, int length) throws RemoteException {
+        return BinaryProtocol.getBytes(call(BinaryProtocol.request(BinaryProtocol.READ_RANGE, 0).putString(fileName)
+                .putLong(offset).putInt(length)));
+    }
+
+    @Override
+    public boolean precheck(String fileName, long size, String hash) throws RemoteException {
+        return call(BinaryProtocol.request(BinaryProtocol.PRECHECK, 0).putString(fileName).putLong(size).putString(hash)).get() != 0;
+    }
+
+    /**
+     * Closes the idle connections; calls in progress close theirs when they complete
+     */
+    @Override
+    public void close() {
+        SocketChannel channel;
+        while ((channel = idleConnections.pollFirst()) != null) {
+            closeQuietly(channel);
+        }
+    }
+
+    private ByteBuffer call(BinaryProtocol.FrameWriter request) throws RemoteException {
+        return call(request.finish());
+    }
+
+    /**
+     * Sends a request on an idle or new connection and waits for the response
+     * @param frame buffers holding the request frame, written in order
+     * @return the return value part of a successful response
+     * @throws ServerException if the server reported an error
+     * @throws RemoteException if the connection failed
+     */
+    private ByteBuffer call(ByteBuffer... frame) throws RemoteException {
+        ByteBuffer response;
+        SocketChannel channel = idleConnections.pollFirst();
+        try {
+            if (channel == null) {
+                channel = SocketChannel.open(address);
+                channel.socket().setTcpNoDelay(true);
+            }
+            for (ByteBuffer buffer : frame) {
+                while (buffer.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+            ByteBuffer header = readFully(channel, ByteBuffer.allocate(Integer.BYTES));
+            int length = header.getInt();
+            BinaryProtocol.checkFrameLength(length, BinaryProtocol.MAX_RESPONSE_BYTES);
+            response = readFully(channel, ByteBuffer.allocate(length));
+        } catch (IOException ioException) {
+            if (channel != null) {
+                closeQuietly(channel);
+            }
+            throw new RemoteException("Binary transport call to " + address + " failed", ioException);
+        }
+        idleConnections.offerFirst(channel);
+        try {
+            byte status = response.get();
+            if (status == BinaryProtocol.STATUS_ERROR) {
+                throw new ServerException(BinaryProtocol.getString(response));
+            }
+            if (status == BinaryProtocol.STATUS_IO_ERROR) {
+                String message = BinaryProtocol.getString(response);
+                throw new ServerException(message, new IOException(message));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new RemoteException("Malformed response from " + address);
+        }
+        return response;
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by the server");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * @return bytes a string takes in a frame
+     */
+    private static int encodedSize(String value) {
+        return Integer.BYTES + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+}
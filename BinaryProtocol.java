@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact framing of the {@link FileServer} operations for the binary transport, see
+ * {@link BinaryTransportServer} and {@link BinaryFileClient}.
+ * <p>
+ * Every message is a frame: {@code int} length of the body, then the body. A request body is the
+ * opcode byte followed by the arguments in declaration order; a response body is
+ * {@link #STATUS_OK} followed by the return value, or {@link #STATUS_ERROR} or {@link #STATUS_IO_ERROR}
+ * followed by the error message. Numbers are big-endian, strings are an {@code int} byte count and UTF-8, byte arrays an
+ * {@code int} length and the bytes, lists an {@code int} size and the elements; a length of -1
+ * stands for null. A connection carries one request at a time.
+ * <p>
+ * Requests are limited to {@link #MAX_REQUEST_BYTES}, so the memory a client can make the server
+ * claim is bounded by the frame it is reading; file contents travel in pieces of at most
+ * {@link #MAX_PAYLOAD_BYTES}. Responses may be larger, up to {@link #MAX_RESPONSE_BYTES}, as only
+ * the client that asked for them buffers them.
+ */
+public final class BinaryProtocol {
+
+    public static final byte UPLOAD_FILE = 1;
+    public static final byte DELETE = 2;
+    public static final byte OPEN_UPLOAD = 3;
+    public static final byte GET_BULK_PORT = 4;
+    public static final byte WRITE_CHUNK = 5;
+    public static final byte GET_UPLOAD_STATUS = 6;
+    public static final byte COMMIT_UPLOAD = 7;
+    public static final byte ABORT_UPLOAD = 8;
+    public static final byte GET_SIGNATURES = 9;
+    public static final byte APPLY_DELTA = 10;
+    public static final byte FIND_MISSING_CHUNKS = 11;
+    public static final byte UPLOAD_CHUNKS = 12;
+    public static final byte COMMIT_MANIFEST = 13;
+    public static final byte APPLY_BATCH = 14;
+    public static final byte LIST_FILES = 15;
+    public static final byte READ_RANGE = 16;
+    public static final byte PRECHECK = 17;
+
+    /**
+     * Method name of each opcode, for metrics and error messages
+     */
+    static final String[] OPERATION_NAMES = { null, "uploadFile", "delete", "openUpload", "getBulkPort", "writeChunk",
+            "getUploadStatus", "commitUpload", "abortUpload", "getSignatures", "applyDelta", "findMissingChunks",
+            "uploadChunks", "commitManifest", "applyBatch", "listFiles", "readRange", "precheck" };
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    /** The call failed on an I/O error of the server, which may pass on a retry */
+    public static final byte STATUS_IO_ERROR = 2;
+
+    /**
+     * Largest piece of file content, batch or chunk list sent in one request
+     */
+    public static final int MAX_PAYLOAD_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Largest request frame body: a payload plus room for the names and numbers around it
+     */
+    public static final int MAX_REQUEST_BYTES = MAX_PAYLOAD_BYTES + 64 * 1024;
+
+    /**
+     * Largest response frame body, such as a long file listing or a {@link FileServer#MAX_READ_LENGTH} range
+     */
+    public static final int MAX_RESPONSE_BYTES = 1 << 30;
+
+    /**
+     * Offset sent with a {@link #WRITE_CHUNK} that appends without checking the offset
+     */
+    static final long NO_OFFSET = -1;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Growable buffer a frame is encoded into, with room for the length in front
+     */
+    public static final class FrameWriter {
+        private final int maxBodyBytes;
+        private ByteBuffer buffer;
+
+        /**
+         * @param expectedBodyBytes size of the body if known, so large frames are not copied while growing
+         * @param maxBodyBytes largest body the peer accepts
+         */
+        public FrameWriter(int expectedBodyBytes, int maxBodyBytes) {
+            this.maxBodyBytes = maxBodyBytes;
+            buffer = ByteBuffer.allocate(Integer.BYTES + Math.max(Math.min(expectedBodyBytes, maxBodyBytes), 64));
+            buffer.position(Integer.BYTES);
+        }
+
+        /**
+         * @return bytes of the body written so far
+         */
+        public int bodyBytes() {
+            return buffer.position() - Integer.BYTES;
+        }
+
+        public FrameWriter put(byte value) {
+            ensureRemaining(1);
+            buffer.put(value);
+            return this;
+        }
+
+        public FrameWriter putInt(int value) {
+            ensureRemaining(Integer.BYTES);
+            buffer.putInt(value);
+            return this;
+        }
+
+        public FrameWriter putLong(long value) {
+            ensureRemaining(Long.BYTES);
+            buffer.putLong(value);
+            return this;
+        }
+
+        public FrameWriter putString(String value) {
+            return putBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public FrameWriter putBytes(byte[] value) {
+            if (value == null) {
+                return putInt(-1);
+            }
+            putInt(value.length);
+            ensureRemaining(value.length);
+            buffer.put(value);
+            return this;
+        }
+
+        public FrameWriter putStrings(List<String> values) {
+            putInt(values.size());
+            for (String value : values) {
+                putString(value);
+            }
+            return this;
+        }
+
+        /**
+         * @return the frame, length included, ready to be written
+         */
+        public ByteBuffer finish() {
+            return finish(0);
+        }
+
+        /**
+         * @param trailingBytes bytes of the body the caller sends right after the returned buffer
+         * @return the frame header and the body up to the trailing bytes
+         */
+        public ByteBuffer finish(int trailingBytes) {
+            if ((long) buffer.position() - Integer.BYTES + trailingBytes > maxBodyBytes) {
+                throw new IllegalArgumentException("Frame larger than " + maxBodyBytes + " bytes");
+            }
+            buffer.putInt(0, buffer.position() - Integer.BYTES + trailingBytes);
+            return buffer.flip();
+        }
+
+        private void ensureRemaining(int bytes) {
+            if (buffer.remaining() < bytes) {
+                long capacity = Math.max((long) buffer.capacity() * 2, (long) buffer.position() + bytes);
+                if ((long) buffer.position() + bytes - Integer.BYTES > maxBodyBytes) {
+                    throw new IllegalArgumentException("Frame larger than " + maxBodyBytes + " bytes");
+                }
+                capacity = Math.min(capacity, (long) Integer.BYTES + maxBodyBytes);
+                ByteBuffer grown = ByteBuffer.allocate((int) capacity);
+                grown.put(buffer.flip());
+                buffer = grown;
+            }
+        }
+    }
+
+    /**
+     * @param opcode operation of the request
+     * @param expectedBodyBytes size of the arguments if known
+     * @return writer holding the request header, ready for the arguments
+     */
+    public static FrameWriter request(byte opcode, int expectedBodyBytes) {
+        return new FrameWriter(expectedBodyBytes + 1, MAX_REQUEST_BYTES).put(opcode);
+    }
+
+    /**
+     * @param expectedBodyBytes size of the return value if known
+     * @return writer holding a successful response header, ready for the return value
+     */
+    public static FrameWriter ok(int expectedBodyBytes) {
+        return new FrameWriter(expectedBodyBytes + 1, MAX_RESPONSE_BYTES).put(STATUS_OK);
+    }
+
+    /**
+     * @param message error reported to the caller
+     * @return an error response frame
+     */
+    public static ByteBuffer error(String message) {
+        return error(STATUS_ERROR, message);
+    }
+
+    /**
+     * @param status {@link #STATUS_ERROR} or {@link #STATUS_IO_ERROR}
+     * @param message error reported to the caller
+     * @return an error response frame
+     */
+    public static ByteBuffer error(byte status, String message) {
+        return new FrameWriter(0, MAX_RESPONSE_BYTES).put(status).putString(String.valueOf(message)).finish();
+    }
+
+    /**
+     * @param length body length read from a frame header
+     * @param maxBodyBytes {@link #MAX_REQUEST_BYTES} or {@link #MAX_RESPONSE_BYTES}
+     * @throws IOException if the length is not one a peer of this protocol would send
+     */
+    public static void checkFrameLength(int length, int maxBodyBytes) throws IOException {
+        if (length <= 0 || length > maxBodyBytes) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        byte[] bytes = getBytes(buffer);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public static List<String> getStrings(ByteBuffer buffer) {
+        int size = getListSize(buffer, Integer.BYTES);
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(getString(buffer));
+        }
+        return values;
+    }
+
+    public static List<byte[]> getByteArrays(ByteBuffer buffer) {
+        int size = getListSize(buffer, Integer.BYTES);
+        List<byte[]> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(getBytes(buffer));
+        }
+        return values;
+    }
+
+    public static void putByteArrays(FrameWriter writer, List<byte[]> values) {
+        writer.putInt(values.size());
+        for (byte[] value : values) {
+            writer.putBytes(value);
+        }
+    }
+
+    public static void putSignatures(FrameWriter writer, List<BlockSignature> signatures) {
+        writer.putInt(signatures.size());
+        for (BlockSignature signature : signatures) {
+            writer.putInt(signature.getIndex()).putInt(signature.getLength()).putInt(signature.getWeak()).putBytes(signature.getStrong());
+        }
+    }
+
+    public static List<BlockSignature> getSignatures(ByteBuffer buffer) {
+        int size = getListSize(buffer, 4 * Integer.BYTES);
+        List<BlockSignature> signatures = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            signatures.add(new BlockSignature(buffer.getInt(), buffer.getInt(), buffer.getInt(), getBytes(buffer)));
+        }
+        return signatures;
+    }
+
+    /**
+     * Block references are encoded as their index, literals as -1 followed by the bytes
+     */
+    public static void putDelta(FrameWriter writer, List<DeltaInstruction> delta) {
+        writer.putInt(delta.size());
+        for (DeltaInstruction instruction : delta) {
+            if (instruction.isBlock()) {
+                writer.putInt(instruction.getBlockIndex());
+            } else {
+                writer.putInt(-1).putBytes(instruction.getLiteral());
+            }
+        }
+    }
+
+    public static List<DeltaInstruction> getDelta(ByteBuffer buffer) {
+        int size = getListSize(buffer, Integer.BYTES);
+        List<DeltaInstruction> delta = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int blockIndex = buffer.getInt();
+            delta.add(blockIndex >= 0 ? DeltaInstruction.block(blockIndex) : DeltaInstruction.literal(getBytes(buffer)));
+        }
+        return delta;
+    }
+
+    public static void putFileInfos(FrameWriter writer, List<FileInfo> files) {
+        writer.putInt(files.size());
+        for (FileInfo file : files) {
+            writer.putString(file.getFileName()).putLong(file.getSize()).putLong(file.getLastModified()).putString(file.getHash());
+        }
+    }
+
+    public static List<FileInfo> getFileInfos(ByteBuffer buffer) {
+        int size = getListSize(buffer, 2 * Integer.BYTES + 2 * Long.BYTES);
+        List<FileInfo> files = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            files.add(new FileInfo(getString(buffer), buffer.getLong(), buffer.getLong(), getString(buffer)));
+        }
+        return files;
+    }
+
+    /**
+     * Reads a list size, checking it against the bytes left so a corrupt frame cannot make the
+     * reader allocate a huge list
+     * @param minElementBytes smallest encoding of one element
+     */
+    private static int getListSize(ByteBuffer buffer, int minElementBytes) {
+        int size = buffer.getInt();
+        if (size < 0 || (long) size * minElementBytes > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,425 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the {@link FileServer} operations over the {@link BinaryProtocol} instead of RMI. One
+ * selector thread accepts connections and reads and writes frames for all of them without
+ * blocking; a complete request is handed to a fixed pool of workers, which run it against the
+ * file server and write the response. Idle connections therefore cost a socket and a few buffers
+ * rather than a thread each, as with RMI. The JDK this code targets has no virtual threads, so the
+ * event loop stands in for them.
+ * <p>
+ * A request is read into a buffer of its frame length, at most {@link BinaryProtocol#MAX_REQUEST_BYTES}.
+ * The buffers of all connections together are limited to {@code MAX_BUFFERED_BYTES}; a connection
+ * whose next request does not fit is not read from until other requests complete.
+ * <p>
+ * Call latencies are recorded in the file server's {@link Metrics} as {@code binary.<method>}.
+ */
+public class BinaryTransportServer implements Closeable {
+
+    /**
+     * Workers per core; most operations wait on the disk rather than the CPU
+     */
+    public static final int DEFAULT_WORKERS = 4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Bytes of request buffers all connections may hold at once
+     */
+    static final long MAX_BUFFERED_BYTES = 16L * BinaryProtocol.MAX_REQUEST_BYTES;
+
+    private final FileServer fileServer;
+    private final Metrics.Timer[] timers = new Metrics.Timer[BinaryProtocol.OPERATION_NAMES.length];
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+
+    /**
+     * Connections waiting, in arrival order, for room to buffer their next request
+     */
+    private final Queue<Connection> waitingForBuffer = new ConcurrentLinkedQueue<>();
+
+    /**
+     * State of one client connection. Only the selector thread touches it while a request is being
+     * read and only one worker while it is being handled, as read interest is off in between.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        private ByteBuffer request;
+        private int pendingLength;
+        private volatile ByteBuffer response;
+        private SelectionKey key;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public BinaryTransportServer(int port, FileServer fileServer, Metrics metrics) throws IOException {
+        this(port, DEFAULT_WORKERS, fileServer, metrics);
+    }
+
+    /**
+     * Binds the port and starts serving
+     * @param port port to listen on, 0 for any free port
+     * @param workerThreads threads running requests
+     * @param fileServer server the requests are run against
+     * @param metrics metrics to record call latencies in
+     * @throws IOException if the port cannot be bound
+     */
+    public BinaryTransportServer(int port, int workerThreads, FileServer fileServer, Metrics metrics) throws IOException {
+        this.fileServer = fileServer;
+        for (int opcode = 1; opcode < timers.length; opcode++) {
+            timers[opcode] = metrics.timer("binary." + BinaryProtocol.OPERATION_NAMES[opcode]);
+        }
+        metrics.gauge("binaryConnections", connections::size);
+        metrics.gauge("binaryBufferedBytes", bufferedBytes::get);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "binary-transport-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread eventLoop = new Thread(this::eventLoop, "binary-transport-selector");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    /**
+     * @return port the server listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting, closes every connection and stops the workers
+     */
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        selector.close();
+        for (Connection connection : connections) {
+            close(connection);
+        }
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void eventLoop() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                resumeWaiting();
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read((Connection) key.attachment());
+                    } else if (key.isWritable()) {
+                        write((Connection) key.attachment());
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            return;
+        } catch (IOException ioException) {
+            Log.info("Binary transport stopped: " + ioException.getMessage());
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+            }
+        } catch (IOException ioException) {
+            Log.info("Error accepting binary transport connection: " + ioException.getMessage());
+        }
+    }
+
+    /**
+     * Reads as much of the current request as has arrived and hands it to a worker once complete
+     */
+    private void read(Connection connection) {
+        try {
+            if (connection.request == null) {
+                if (connection.channel.read(connection.header) < 0) {
+                    close(connection);
+                    return;
+                }
+                if (connection.header.hasRemaining()) {
+                    return;
+                }
+                int length = connection.header.flip().getInt();
+                connection.header.clear();
+                BinaryProtocol.checkFrameLength(length, BinaryProtocol.MAX_REQUEST_BYTES);
+                if (!waitingForBuffer.isEmpty() || !reserve(length)) {
+                    connection.pendingLength = length;
+                    connection.key.interestOps(0);
+                    waitingForBuffer.add(connection);
+                    return;
+                }
+                connection.request = ByteBuffer.allocate(length);
+            }
+            if (connection.channel.read(connection.request) < 0) {
+                close(connection);
+                return;
+            }
+            if (!connection.request.hasRemaining()) {
+                ByteBuffer request = connection.request.flip();
+                connection.request = null;
+                connection.key.interestOps(0);
+                workers.execute(() -> handle(connection, request));
+            }
+        } catch (IOException ioException) {
+            Log.info("Closing binary transport connection: " + ioException.getMessage());
+            close(connection);
+        }
+    }
+
+    /**
+     * Runs a request on a worker and sends the response, from the worker if the socket takes it
+     * at once and from the selector thread otherwise
+     */
+    private void handle(Connection connection, ByteBuffer request) {
+        ByteBuffer response = dispatch(request);
+        bufferedBytes.addAndGet(-request.capacity());
+        if (!waitingForBuffer.isEmpty()) {
+            selector.wakeup();
+        }
+        try {
+            connection.channel.write(response);
+            connection.response = response.hasRemaining() ? response : null;
+            connection.key.interestOps(response.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            selector.wakeup();
+        } catch (CancelledKeyException e) {
+            // closed by the selector thread while the request ran
+        } catch (IOException ioException) {
+            close(connection);
+        }
+    }
+
+    private void write(Connection connection) {
+        try {
+            connection.channel.write(connection.response);
+            if (!connection.response.hasRemaining()) {
+                connection.response = null;
+                connection.key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException ioException) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Claims room for a request buffer; a request always fits while no other one is buffered
+     * @return false if the buffers of other requests leave no room for {@code length} bytes
+     */
+    private boolean reserve(int length) {
+        while (true) {
+            long current = bufferedBytes.get();
+            if (current > 0 && current + length > MAX_BUFFERED_BYTES) {
+                return false;
+            }
+            if (bufferedBytes.compareAndSet(current, current + length)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Resumes reading from the waiting connections whose requests fit now, in arrival order
+     */
+    private void resumeWaiting() {
+        Connection connection;
+        while ((connection = waitingForBuffer.peek()) != null && reserve(connection.pendingLength)) {
+            waitingForBuffer.poll();
+            if (!connection.key.isValid()) {
+                bufferedBytes.addAndGet(-connection.pendingLength);
+                continue;
+            }
+            connection.request = ByteBuffer.allocate(connection.pendingLength);
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(Connection connection) {
+        connection.key.cancel();
+        waitingForBuffer.remove(connection);
+        ByteBuffer request = connection.request;
+        if (request != null) {
+            // a request cut off while it was read
+            connection.request = null;
+            bufferedBytes.addAndGet(-request.capacity());
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // already closed by the peer
+        }
+        connections.remove(connection);
+    }
+
+    /**
+     * Decodes a request, runs it and encodes its result
+     * @return response frame
+     */
+    private ByteBuffer dispatch(ByteBuffer request) {
+        byte opcode = request.get();
+        if (opcode <= 0 || opcode >= timers.length) {
+            return BinaryProtocol.error("Unknown operation " + opcode);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ByteBuffer response = run(opcode, request);
+            failed = false;
+            return response;
+        } catch (RemoteException remoteException) {
+            boolean ioError = remoteException.getCause() instanceof IOException;
+            return BinaryProtocol.error(ioError ? BinaryProtocol.STATUS_IO_ERROR : BinaryProtocol.STATUS_ERROR,
+                    remoteException.getMessage());
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return BinaryProtocol.error("Malformed " + BinaryProtocol.OPERATION_NAMES[opcode] + " request");
+        } catch (RuntimeException runtimeException) {
+            Log.info("Error running binary " + BinaryProtocol.OPERATION_NAMES[opcode] + ": " + runtimeException);
+            return BinaryProtocol.error(runtimeException.toString());
+        } finally {
+            timers[opcode].record(start, failed);
+        }
+    }
+
+    private ByteBuffer run(byte opcode, ByteBuffer request) throws RemoteException {
+        switch (opcode) {
+        case BinaryProtocol.UPLOAD_FILE: {
+            byte[] file = BinaryProtocol.getBytes(request);
+            fileServer.uploadFile(file, BinaryProtocol.getString(request));
+            return BinaryProtocol.ok(0).finish();
+        }
+        case BinaryProtocol.DELETE:
+            fileServer.delete(BinaryProtocol.getString(request));
+            return BinaryProtocol.ok(0).finish();
+        case BinaryProtocol.OPEN_UPLOAD: {
+            String fileName = BinaryProtocol.getString(request);
+            TransferCodec codec = TransferCodec.values()[request.get()];
+            return BinaryProtocol.ok(64).putString(fileServer.openUpload(fileName, codec, request.getLong())).finish();
+        }
+        case BinaryProtocol.GET_BULK_PORT:
+            return BinaryProtocol.ok(Integer.BYTES).putInt(fileServer.getBulkPort()).finish();
+        case BinaryProtocol.WRITE_CHUNK: {
+            String uploadId = BinaryProtocol.getString(request);
+            long offset = request.getLong();
+            byte[] chunk = BinaryProtocol.getBytes(request);
+            if (offset == BinaryProtocol.NO_OFFSET) {
+                fileServer.writeChunk(uploadId, chunk);
+            } else {
+                fileServer.writeChunk(uploadId, offset, chunk);
+            }
+            return BinaryProtocol.ok(0).finish();
+        }
+        case BinaryProtocol.GET_UPLOAD_STATUS: {
+            UploadStatus status = fileServer.getUploadStatus(BinaryProtocol.getString(request));
+            if (status == null) {
+                return BinaryProtocol.ok(1).put((byte) 0).finish();
+            }
+            return BinaryProtocol.ok(64).put((byte) 1).putLong(status.getOffset()).putString(status.getHash()).finish();
+        }
+        case BinaryProtocol.COMMIT_UPLOAD:
+            fileServer.commitUpload(BinaryProtocol.getString(request));
+            return BinaryProtocol.ok(0).finish();
+        case BinaryProtocol.ABORT_UPLOAD:
+            fileServer.abortUpload(BinaryProtocol.getString(request));
+            return BinaryProtocol.ok(0).finish();
+        case BinaryProtocol.GET_SIGNATURES: {
+            String fileName = BinaryProtocol.getString(request);
+            BinaryProtocol.FrameWriter response = BinaryProtocol.ok(0);
+            BinaryProtocol.putSignatures(response, fileServer.getSignatures(fileName, request.getInt()));
+            return response.finish();
+        }
+        case BinaryProtocol.APPLY_DELTA: {
+            String fileName = BinaryProtocol.getString(request);
+            int blockSize = request.getInt();
+            String basisDigest = BinaryProtocol.getString(request);
+            boolean applied = fileServer.applyDelta(fileName, blockSize, basisDigest, BinaryProtocol.getDelta(request));
+            return BinaryProtocol.ok(1).put((byte) (applied ? 1 : 0)).finish();
+        }
+        case BinaryProtocol.FIND_MISSING_CHUNKS: {
+            List<String> missing = fileServer.findMissingChunks(BinaryProtocol.getStrings(request));
+            return BinaryProtocol.ok(0).putStrings(missing).finish();
+        }
+        case BinaryProtocol.UPLOAD_CHUNKS: {
+            TransferCodec codec = TransferCodec.values()[request.get()];
+            fileServer.uploadChunks(BinaryProtocol.getByteArrays(request), codec);
+            return BinaryProtocol.ok(0).finish();
+        }
+        case BinaryProtocol.COMMIT_MANIFEST: {
+            String fileName = BinaryProtocol.getString(request);
+            fileServer.commitManifest(fileName, BinaryProtocol.getStrings(request));
+            return BinaryProtocol.ok(0).finish();
+        }
+        case BinaryProtocol.APPLY_BATCH:
+            fileServer.applyBatch(BinaryProtocol.getBytes(request));
+            return BinaryProtocol.ok(0).finish();
+        case BinaryProtocol.LIST_FILES: {
+            BinaryProtocol.FrameWriter response = BinaryProtocol.ok(0);
+            BinaryProtocol.putFileInfos(response, fileServer.listFiles());
+            return response.finish();
+        }
+        case BinaryProtocol.READ_RANGE: {
+            String fileName = BinaryProtocol.getString(request);
+            long offset = request.getLong();
+            byte[] range = fileServer.readRange(fileName, offset, request.getInt());
+            return BinaryProtocol.ok(Integer.BYTES + range.length).putBytes(range).finish();
+        }
+        case BinaryProtocol.PRECHECK: {
+            String fileName = BinaryProtocol.getString(request);
+            long size = request.getLong();
+            boolean unchanged = fileServer.precheck(fileName, size, BinaryProtocol.getString(request));
+            return BinaryProtocol.ok(1).put((byte) (unchanged ? 1 : 0)).finish();
+        }
+        default:
+            return BinaryProtocol.error("Unknown operation " + opcode);
+        }
+    }
+}
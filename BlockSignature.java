@@ -0,0 +1,37 @@
+import java.io.Serializable;
+
+/**
+ * Checksums of one block of a file, used by {@link DeltaSync} to find blocks the receiver already has
+ */
+public class BlockSignature implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int index;
+    private final int length;
+    private final int weak;
+    private final byte[] strong;
+
+    public BlockSignature(int index, int length, int weak, byte[] strong) {
+        this.index = index;
+        this.length = length;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getWeak() {
+        return weak;
+    }
+
+    public byte[] getStrong() {
+        return strong;
+    }
+}
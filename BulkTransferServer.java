@@ -0,0 +1,140 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Socket side channel next to RMI for the data of large uploads. The client opens an upload
+ * session over RMI, connects to the bulk port and sends a header followed by the raw file bytes,
+ * which {@link UploadSession#transferFrom} moves into the temp file without going through Java
+ * serialization. The session is committed over RMI as usual. If the connection breaks, the bytes
+ * that arrived are checkpointed and the client resumes from {@link FileServer#getUploadStatus(String)}.
+ * <p>
+ * Wire format: {@code short} upload id length, upload id (UTF-8), {@code long} offset of the data
+ * in the upload, {@code long} byte count, the bytes. The server answers with a single status
+ * byte, {@link #STATUS_OK} or {@link #STATUS_ERROR}.
+ */
+public class BulkTransferServer implements Closeable {
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    private static final int MAX_UPLOAD_ID_BYTES = 256;
+
+    private final FileServerImpl fileServer;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService handlers = Executors.newCachedThreadPool();
+
+    /**
+     * Binds the bulk port and starts accepting connections
+     * @param port port to listen on, 0 for any free port
+     * @param fileServer server owning the upload sessions
+     * @throws IOException if the port cannot be bound
+     */
+    public BulkTransferServer(int port, FileServerImpl fileServer) throws IOException {
+        this.fileServer = fileServer;
+        this.serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(this::acceptLoop, "bulk-transfer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return port the server listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        handlers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel socket = serverChannel.accept();
+                handlers.submit(() -> handle(socket));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException ioException) {
+                Log.info("Error accepting bulk transfer connection");
+                ioException.printStackTrace();
+            }
+        }
+    }
+
+    private void handle(SocketChannel socket) {
+        try (socket) {
+            byte status = STATUS_OK;
+            String uploadId = null;
+            try {
+                int idLength = readFully(socket, 2).getShort();
+                if (idLength <= 0 || idLength > MAX_UPLOAD_ID_BYTES) {
+                    throw new IOException("Invalid upload id length " + idLength);
+                }
+                uploadId = StandardCharsets.UTF_8.decode(readFully(socket, idLength)).toString();
+                ByteBuffer range = readFully(socket, 16);
+                fileServer.receiveBulk(uploadId, socket, range.getLong(), range.getLong());
+            } catch (IOException ioException) {
+                Log.info("Error receiving bulk transfer for upload " + uploadId);
+                ioException.printStackTrace();
+                status = STATUS_ERROR;
+            }
+            socket.write(ByteBuffer.wrap(new byte[] { status }));
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads exactly {@code length} bytes, so no file data is consumed along with the header
+     */
+    private static ByteBuffer readFully(SocketChannel socket, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (socket.read(buffer) < 0) {
+                throw new IOException("Bulk transfer connection closed in header");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Sends the header of a bulk transfer
+     * @param socket connection to the bulk port
+     * @param uploadId id returned by {@link FileServer#openUpload}
+     * @param offset position of the data in the upload, see {@link FileServer#getUploadStatus(String)}
+     * @param count number of file bytes that follow
+     * @throws IOException
+     */
+    public static void writeHeader(SocketChannel socket, String uploadId, long offset, long count) throws IOException {
+        byte[] id = uploadId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(2 + id.length + 16);
+        header.putShort((short) id.length).put(id).putLong(offset).putLong(count).flip();
+        while (header.hasRemaining()) {
+            socket.write(header);
+        }
+    }
+
+    /**
+     * Waits for the server's answer to a bulk transfer
+     * @param socket connection the transfer was sent on
+     * @throws IOException if the server did not store the data
+     */
+    public static void readStatus(SocketChannel socket) throws IOException {
+        ByteBuffer status = readFully(socket, 1);
+        if (status.get() != STATUS_OK) {
+            throw new RemoteException("Server failed to store bulk transfer");
+        }
+    }
+}
@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content addressed chunk store used by {@link FileServerImpl}. Chunks uploaded by clients are
+ * staged under {@code chunks/<first two hex digits>/<hash>} until a file made of them is committed.
+ * A committed file keeps a manifest listing the hash and length of each of its chunks for as long
+ * as its content is unchanged, and the staged copies of those chunks are dropped: the store finds
+ * them in the committed files, so each byte is kept on disk once.
+ * <p>
+ * The server must {@link #remove(String)} a file's manifest whenever it writes or deletes the file
+ * any other way. Chunks read from committed files are checked against their hash anyway, so a
+ * stale manifest makes a chunk missing rather than corrupting a file assembled from it.
+ * {@link #collectGarbage(long)} deletes the staged chunks nobody has uploaded or asked for in a
+ * while, which leaves clients time to commit chunks they just uploaded.
+ */
+public class ChunkStore {
+
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    private final Path fileRoot;
+    private final Path chunkDir;
+    private final Path manifestDir;
+    private final Path tempDir;
+
+    /**
+     * Committed files holding each chunk and where, rebuilt from the manifests on startup. The
+     * inner maps are replaced, never modified
+     */
+    private final ConcurrentHashMap<String, Map<String, Location>> locations = new ConcurrentHashMap<>();
+
+    /**
+     * Held shared by reads and writes of the store and exclusively by {@link #collectGarbage(long)}
+     */
+    private final ReadWriteLock gcLock = new ReentrantReadWriteLock();
+
+    /**
+     * Position of a chunk in a committed file
+     */
+    private static class Location {
+
+        private final long offset;
+        private final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param storeDir directory of the staged chunks and manifests
+     * @param fileRoot directory the file names of the manifests are relative to
+     * @throws IOException if the store cannot be opened
+     */
+    public ChunkStore(Path storeDir, Path fileRoot) throws IOException {
+        this.fileRoot = fileRoot;
+        this.chunkDir = Files.createDirectories(storeDir.resolve("chunks"));
+        this.manifestDir = Files.createDirectories(storeDir.resolve("manifests"));
+        this.tempDir = Files.createDirectories(storeDir.resolve("tmp"));
+        try (Stream<Path> manifests = Files.walk(manifestDir)) {
+            for (Path manifest : manifests.filter(path -> path.toString().endsWith(MANIFEST_SUFFIX)).collect(Collectors.toList())) {
+                String fileName = manifestDir.relativize(manifest).toString();
+                fileName = fileName.substring(0, fileName.length() - MANIFEST_SUFFIX.length());
+                try {
+                    addLocations(fileName, readManifest(manifest));
+                } catch (IllegalArgumentException e) {
+                    // manifests without chunk lengths cannot locate their chunks
+                    Files.delete(manifest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the staged chunks that are present as in use, so they survive garbage collection until
+     * the client commits a manifest referencing them
+     * @param hashes chunk hashes a client wants to reference
+     * @return {@link List} of hashes the store does not hold yet, in request order
+     * @throws IOException
+     */
+    public List<String> findMissing(List<String> hashes) throws IOException {
+        Set<String> missing = new LinkedHashSet<>();
+        Lock lock = gcLock.readLock();
+        lock.lock();
+        try {
+            for (String hash : hashes) {
+                if (!touch(chunkPath(hash)) && !locations.containsKey(hash)) {
+                    missing.add(hash);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new ArrayList<>(missing);
+    }
+
+    /**
+     * Stores a chunk under its own hash. Storing a chunk twice is a no-op
+     * @param data chunk bytes
+     * @return hash the chunk is stored under
+     * @throws IOException
+     */
+    public String put(byte[] data) throws IOException {
+        String hash = ContentChunker.hash(data);
+        Path path = chunkPath(hash);
+        Lock lock = gcLock.readLock();
+        lock.lock();
+        try {
+            if (touch(path)) {
+                return hash;
+            }
+            Files.createDirectories(path.getParent());
+            Path temp = Files.createTempFile(tempDir, hash, ".part");
+            try {
+                Files.write(temp, data);
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // another upload stored the same chunk first
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return hash;
+    }
+
+    /**
+     * Writes the file made of the given chunks through {@code session}, reading each chunk from its
+     * staged copy or else from a committed file holding it
+     * @param hashes chunk hashes in file order
+     * @param session upload session receiving the assembled file
+     * @return length of each chunk, for {@link #putManifest(String, List, List)}
+     * @throws IOException if a chunk is missing
+     */
+    public List<Integer> assemble(List<String> hashes, UploadSession session) throws IOException {
+        List<Integer> lengths = new ArrayList<>(hashes.size());
+        Lock lock = gcLock.readLock();
+        lock.lock();
+        try {
+            for (String hash : hashes) {
+                lengths.add(copyChunk(hash, session));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return lengths;
+    }
+
+    /**
+     * Appends one chunk to {@code session}
+     * @return length of the chunk
+     * @throws IOException if neither a staged copy nor a committed file holds the chunk
+     */
+    private int copyChunk(String hash, UploadSession session) throws IOException {
+        try (FileChannel chunk = FileChannel.open(chunkPath(hash), StandardOpenOption.READ)) {
+            session.transferFrom(chunk, chunk.size());
+            return (int) chunk.size();
+        } catch (NoSuchFileException e) {
+            // committed since it was staged, or never staged
+        }
+        for (Map.Entry<String, Location> entry : locations.getOrDefault(hash, Collections.emptyMap()).entrySet()) {
+            Location location = entry.getValue();
+            ByteBuffer data = ByteBuffer.allocate(location.length);
+            try (FileChannel file = FileChannel.open(fileRoot.resolve(entry.getKey()), StandardOpenOption.READ)) {
+                while (data.hasRemaining() && file.read(data, location.offset + data.position()) > 0) {
+                    // keep reading until the chunk is complete
+                }
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            if (!data.hasRemaining() && ContentChunker.hash(data.array()).equals(hash)) {
+                session.write(data.array());
+                return location.length;
+            }
+        }
+        throw new IOException("Missing chunk " + hash);
+    }
+
+    /**
+     * Records the manifest of a file assembled with {@link #assemble(List, UploadSession)} and
+     * published, replacing the file's previous manifest, and drops the staged copies of its chunks.
+     * Must be called under the file's path lock
+     * @param fileName file the manifest describes, relative to the server directory
+     * @param hashes chunk hashes in file order
+     * @param lengths chunk lengths in file order
+     * @throws IOException if the manifest cannot be written
+     */
+    public void putManifest(String fileName, List<String> hashes, List<Integer> lengths) throws IOException {
+        Path manifest = manifestPath(fileName);
+        List<String> lines = new ArrayList<>(hashes.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            lines.add(hashes.get(i) + " " + lengths.get(i));
+        }
+        Lock lock = gcLock.readLock();
+        lock.lock();
+        try {
+            removeLocations(fileName, readManifest(manifest));
+            Files.createDirectories(manifest.getParent());
+            Path temp = Files.createTempFile(tempDir, "manifest", ".part");
+            Files.write(temp, lines);
+            Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            addLocations(fileName, lines);
+            for (String hash : hashes) {
+                Files.deleteIfExists(chunkPath(hash));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the manifest of a file that was deleted or written without the store, so its chunks are
+     * no longer looked up in it. Must be called under the file's path lock
+     * @param fileName file name relative to the server directory
+     * @throws IOException
+     */
+    public void remove(String fileName) throws IOException {
+        Path manifest = manifestPath(fileName);
+        Lock lock = gcLock.readLock();
+        lock.lock();
+        try {
+            List<String> previous = readManifest(manifest);
+            Files.deleteIfExists(manifest);
+            removeLocations(fileName, previous);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the staged chunks no client stored or asked for within {@code expiryMillis}, along
+     * with temp files left behind by a crash
+     * @param expiryMillis time a chunk is kept after it was last uploaded or found
+     * @return number of files deleted
+     * @throws IOException
+     */
+    public int collectGarbage(long expiryMillis) throws IOException {
+        long cutoff = System.currentTimeMillis() - expiryMillis;
+        Lock lock = gcLock.writeLock();
+        lock.lock();
+        try (Stream<Path> chunks = Files.walk(chunkDir); Stream<Path> temps = Files.list(tempDir)) {
+            List<Path> candidates = Stream.concat(chunks, temps)
+                    .filter(Files::isRegularFile)
+                    .collect(Collectors.toList());
+            int deleted = 0;
+            for (Path candidate : candidates) {
+                if (Files.getLastModifiedTime(candidate).toMillis() < cutoff && Files.deleteIfExists(candidate)) {
+                    deleted++;
+                }
+            }
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Refreshes the modification time that {@link #collectGarbage(long)} goes by
+     * @return false if the chunk does not exist
+     */
+    private static boolean touch(Path chunk) throws IOException {
+        try {
+            Files.setLastModifiedTime(chunk, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param fileName committed file
+     * @param lines manifest lines of the file, {@code <hash> <length>} in file order
+     * @throws IllegalArgumentException if a line is malformed
+     */
+    private void addLocations(String fileName, List<String> lines) {
+        long offset = 0;
+        for (String line : lines) {
+            String[] fields = line.split(" ");
+            if (fields.length != 2) {
+                throw new IllegalArgumentException("Invalid manifest line " + line);
+            }
+            Location location = new Location(offset, Integer.parseInt(fields[1]));
+            offset += location.length;
+            locations.compute(fields[0], (hash, held) -> {
+                Map<String, Location> updated = held == null ? new HashMap<>() : new HashMap<>(held);
+                updated.putIfAbsent(fileName, location);
+                return updated;
+            });
+        }
+    }
+
+    private void removeLocations(String fileName, List<String> lines) {
+        for (String line : lines) {
+            locations.computeIfPresent(line.split(" ")[0], (hash, held) -> {
+                Map<String, Location> updated = new HashMap<>(held);
+                updated.remove(fileName);
+                return updated.isEmpty() ? null : updated;
+            });
+        }
+    }
+
+    private static List<String> readManifest(Path manifest) throws IOException {
+        try {
+            return Files.readAllLines(manifest);
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private Path chunkPath(String hash) {
+        if (!hash.matches("[0-9a-f]{64}")) {
+            throw new IllegalArgumentException("Invalid chunk hash " + hash);
+        }
+        return chunkDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Path manifestPath(String fileName) {
+        return manifestDir.resolve(fileName + MANIFEST_SUFFIX);
+    }
+}
@@ -7,14 +7,17 @@ import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.WatchEvent;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.Naming;
-import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.yaml.snakeyaml.Yaml;
 
@@ -30,39 +33,73 @@ public class Client {
      */
     private static final String CONFIG_FILE_NAME = "config.yaml";
 
+    /**
+     * Longest time the client waits for the result of an async computation
+     */
+    private static final long ASYNC_RESULT_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * Longest time the client waits for an external file sort before cancelling it
+     */
+    private static final long SORT_FILE_TIMEOUT_MILLIS = 30 * 60_000;
+
     /**
      * The main method is the entry point of the application. It reads the configuration from
      * {@file config.yaml} and determines whether to connect to the compute server or the file server.
      * 
      * @param args Command line arguments. If the first argument is {@String "computeServer"}, it connects to
-     *             the compute server. Otherwise, it connects to the file server.
+     *             the compute server. Otherwise, it connects to the file server; {@String "sync"} watches the
+     *             client directory and {@String "bisync"} also pulls changes made on the server while the
+     *             client was down before watching it.
      */
     public static void main(String[] args) {
         try {
             boolean connectToComputeServer = (args.length > 0) && args[0].equals("computeServer");
-            boolean syncFileSystem = (args.length > 0) && args[0].equals("sync");
+            boolean bidirectional = (args.length > 0) && args[0].equals("bisync");
+            boolean syncFileSystem = bidirectional || (args.length > 0) && args[0].equals("sync");
             InputStream inputStream = new FileInputStream(new File(CONFIG_FILE_NAME));
             var yaml = new Yaml();
             Map<String, Object> data = yaml.load(inputStream);
 
             if (connectToComputeServer) {
-                spawnComputeServerThread(Util.getComputeServerAddr(data), Util.getComputeServerPath(data), Util.getComputeServerPort(data));
-            } else if (syncFileSystem) {
-                String fileClientDir = Util.getClientDir(data);
-                createDirIfNotExists(fileClientDir);
-
-                Integer timeOut = Util.getTimeOut(data);
-                spawnFileSyncServerThread(fileClientDir, timeOut, Util.getServerAddr(data), Util.getServerPath(data), Util.getServerPort(data));
+                spawnComputeServerThread(Util.getComputeServerAddr(data), Util.getComputeServerPath(data), Util.getComputeServerPort(data),
+                        Util.getComputeNodes(data), Util.getSplitSortThreshold(data), Util.getNodeProbeMillis(data),
+                        Util.getComputeBatchWindowMicros(data), Util.getComputeMaxBatchCalls(data));
             } else {
-                String fileClientDir = Util.getClientDir(data);
-                createDirIfNotExists(fileClientDir);
-                spawnFileServerThread(fileClientDir, Util.getServerAddr(data), Util.getServerPath(data), Util.getServerPort(data));
+                ClientConfig config = new ClientConfig(data);
+                createDirIfNotExists(config.getClientDir());
+                if (syncFileSystem) {
+                    spawnFileSyncServerThread(config, bidirectional);
+                } else {
+                    spawnFileServerThread(config);
+                }
             }
         } catch (IOException ioException) {
             System.out.println("Could not read config file");
         }
     }
 
+    /**
+     * Connects to the file server over RMI or, if {@code binaryPort} is set, over the binary transport
+     * @param rmiPath url of the server in the RMI registry
+     * @param serverAddr remote server address
+     * @param binaryPort port of the binary transport, 0 to use RMI
+     * @return the file server, or null if the RMI lookup failed
+     */
+    private static FileServer connectFileServer(String rmiPath, String serverAddr, int binaryPort) {
+        if (binaryPort > 0) {
+            System.out.println("Connecting to server at: " + serverAddr + ":" + binaryPort + " (binary transport)");
+            return new BinaryFileClient(serverAddr, binaryPort);
+        }
+        System.out.println("Connecting to server at: " + rmiPath);
+        try {
+            return (FileServer) Naming.lookup(rmiPath);
+        } catch (Exception exception) {
+            exception.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * creates a file if it does not exists
      * @param fileServerDir file to create
@@ -84,41 +121,80 @@ public class Client {
 
     /**
      * Responsible for sending rmi requests and also watching directory
-     * @param directoryToWatch the directory to watch changes for
-     * @param timeOut time interval to check for changes
-     * @param serverAddr remote server address. (localhost by default see {@Code config.yaml})
-     * @param fileServerPath remote server file path. (See {@Code config.yaml}) 
-     * @param serverPort port of the remote server. (See {@Code config.yaml})
+     * @param config client settings. (See {@Code config.yaml})
+     * @param bidirectional whether the startup reconciliation also pulls changes from the server
      */
-    private static void spawnFileSyncServerThread(String directoryToWatch, int timeOut, String serverAddr, String fileServerPath,
-            int serverPort) {
+    private static void spawnFileSyncServerThread(ClientConfig config, boolean bidirectional) {
+        String directoryToWatch = config.getClientDir();
+        int timeOut = config.getTimeOut();
         ExecutorService executorService = Executors.newFixedThreadPool(2);
 
         executorService.submit(() -> {
-            DirectoryWatcher directoryWatcher = new DirectoryWatcher(directoryToWatch, timeOut);
-            String path = "rmi://" + serverAddr + ":" + serverPort + fileServerPath;
-            System.out.println("Connecting to server at: " + path);
-            FileServer fileServer = null;
+            FileServer fileServer = connectFileServer(config.getFileServerUrl(), config.getServerAddr(), config.getBinaryPort());
+            FileUploader uploader = config.newUploader(fileServer);
+
+            ClientIndex index;
             try {
-                fileServer = (FileServer) Naming.lookup(path);
-            } catch (Exception exception) {
-                exception.printStackTrace();
+                index = new ClientIndex(Paths.get(directoryToWatch));
+            } catch (IOException ioException) {
+                System.out.println("Could not open sync index in " + directoryToWatch);
+                ioException.printStackTrace();
+                return;
+            }
+            FileDownloader downloader = bidirectional ? new FileDownloader(fileServer, config.getChunkSize(), config.getDownloadStreams()) : null;
+            try {
+                new SyncReconciler(fileServer, uploader, downloader, index).reconcile(Paths.get(directoryToWatch));
+            } catch (IOException ioException) {
+                System.out.println("Could not reconcile directory " + directoryToWatch);
+                ioException.printStackTrace();
+            } finally {
+                if (downloader != null) {
+                    downloader.shutdown();
+                }
             }
 
-            while (true) {
-                List<WatchEvent<?>> events = directoryWatcher.watch();
-                if (events != null && !events.isEmpty()) {
-                    for (WatchEvent<?> event : events) {
-                        System.out.println("Event kind: " + event.kind() + ". File affected: " + event.context() + ".");
-                        System.out.println(event.kind().toString());
-                        System.out.println();
-                        String filePath = Paths.get(directoryToWatch + "/" + event.context()).toAbsolutePath().toString();
-                        sync(event.kind().toString(), filePath, fileServer);
+            try (index; DirectoryWatcher directoryWatcher = new DirectoryWatcher(directoryToWatch, timeOut,
+                    file -> ClientIndex.isIndexFile(file) || FileDownloader.isTempFile(file))) {
+                Path root = directoryWatcher.getRoot();
+                UploadScheduler scheduler = new UploadScheduler(config.getUploadWorkers(), config.getMaxQueuedUploads());
+                SmallFileBatcher batcher = new SmallFileBatcher(uploader, scheduler, config.getBatchFileThreshold(),
+                        config.getMaxBatchBytes(), config.getMaxBatchDelayMillis(), index);
+                EventCoalescer coalescer = new EventCoalescer(config.getQuietWindowMillis(), (kind, filePath) -> {
+                    String fileName = Util.toRemoteFileName(root, filePath);
+                    long bytes = kind == StandardWatchEventKinds.ENTRY_DELETE ? 0 : filePath.toFile().length();
+                    try {
+                        // operations on one file must stay ordered between the batcher and the scheduler
+                        if (batcher.accepts(kind, bytes) && !scheduler.isInFlight(fileName)) {
+                            batcher.add(kind, filePath, fileName);
+                        } else {
+                            if (batcher.contains(fileName)) {
+                                batcher.flush();
+                            }
+                            scheduler.submit(fileName, bytes, () -> sync(kind.toString(), filePath, fileName, uploader, index));
+                        }
+                    } catch (IOException ioException) {
+                        System.out.println("Error reading file for upload");
+                    } catch (InterruptedException interruptedException) {
+                        Thread.currentThread().interrupt();
                     }
-                } else {
+                });
+                directoryWatcher.watch((kind, filePath) -> {
+                    System.out.println("Event kind: " + kind + ". File affected: " + filePath + ".");
+                    coalescer.submit(kind, filePath);
+                }, () -> {
                     System.out.println("No changes detected in the directory.");
-                }
-
+                    System.out.println("Events received: " + coalescer.getEventsReceived() + ", operations sent: "
+                            + coalescer.getOperationsDispatched());
+                    System.out.println(scheduler.throughputSnapshot());
+                });
+                coalescer.shutdown();
+                batcher.shutdown();
+                scheduler.shutdown(timeOut, TimeUnit.SECONDS);
+            } catch (IOException ioException) {
+                System.out.println("Could not watch directory " + directoryToWatch);
+                ioException.printStackTrace();
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
             }
         });
 
@@ -127,24 +203,15 @@ public class Client {
 
     /**
      * Responsible for sending rmi requests
-     * @param directoryToWatch the directory to watch changes for
-     * @param timeOut time interval to check for changes
-     * @param serverAddr remote server address. (localhost by default see {@Code config.yaml})
-     * @param fileServerPath remote server file path. (See {@Code config.yaml}) 
-     * @param serverPort port of the remote server. (See {@Code config.yaml})
+     * @param config client settings. (See {@Code config.yaml})
      */
-    private static void spawnFileServerThread(String clientDirectory,String serverAddr, String fileServerPath, int serverPort) {
+    private static void spawnFileServerThread(ClientConfig config) {
+        String clientDirectory = config.getClientDir();
         ExecutorService executorService = Executors.newFixedThreadPool(2);
 
         executorService.submit(() -> {            
-            String path = "rmi://" + serverAddr + ":" + serverPort + fileServerPath;
-            System.out.println("Connecting to server at: " + path);
-            FileServer fileServer = null;
-            try {
-                fileServer = (FileServer) Naming.lookup(path);
-            } catch (Exception exception) {
-                exception.printStackTrace();
-            }
+            FileServer fileServer = connectFileServer(config.getFileServerUrl(), config.getServerAddr(), config.getBinaryPort());
+            FileUploader uploader = config.newUploader(fileServer);
 
             BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(System.in));
             System.out.println("Client Directory: " + clientDirectory);
@@ -157,20 +224,21 @@ public class Client {
                     System.out.println("Invalid command");
                 } else {
                     String chunks[] = input.split(" ");
-                    String filePath = Paths.get(clientDirectory + "/" + chunks[1]).toAbsolutePath().toString();
+                    Path filePath = Paths.get(clientDirectory + "/" + chunks[1]).toAbsolutePath();
                     switch (chunks[0]) {
                         case "UPLOAD":
-                            sync("ENTRY_CREATE", filePath, fileServer);
+                            sync("ENTRY_CREATE", filePath, chunks[1], uploader, null);
                             break;
                         case "DELETE":
-                            sync("ENTRY_DELETE", filePath, fileServer);
+                            sync("ENTRY_DELETE", filePath, chunks[1], uploader, null);
                             break;
                         case "RENAME":
                             System.out.println("Enter new file name");
-                            String newFilePath = Paths.get(clientDirectory + "/" + bufferedReader.readLine()).toAbsolutePath().toString();
-                            Util.renameFile(filePath, newFilePath);
-                            sync("ENTRY_DELETE", filePath, fileServer);
-                            sync("ENTRY_CREATE", newFilePath, fileServer);                            
+                            String newFileName = bufferedReader.readLine();
+                            Path newFilePath = Paths.get(clientDirectory + "/" + newFileName).toAbsolutePath();
+                            Util.renameFile(filePath.toString(), newFilePath.toString());
+                            sync("ENTRY_DELETE", filePath, chunks[1], uploader, null);
+                            sync("ENTRY_CREATE", newFilePath, newFileName, uploader, null);                            
                             break;
                         default:
                             System.out.println("Invalid operation");
@@ -188,36 +256,62 @@ public class Client {
     /**
      * Sync's changes with remote server. Invoked when any changes in directory changes
      * @param operation file operation to perform on the server side
-     * @param fileName fileName for the server to create
-     * @param fileServer FileServer obj. This is a rmi object
+     * @param filePath local file
+     * @param fileName fileName for the server to create, relative to the server directory
+     * @param uploader {@link FileUploader} wrapping the rmi FileServer obj
+     * @param index index recording the synced state, or null
+     * @return true if the server applied the change
      */
-    private static void sync(String operation, String fileName, FileServer fileServer) {
+    private static boolean sync(String operation, Path filePath, String fileName, FileUploader uploader, ClientIndex index) {
         if (operation.equals("ENTRY_CREATE") || operation.equals("ENTRY_MODIFY")) {
             try{
-                fileServer.uploadFile(readFile(fileName), Util.extractFileNameFromPath(fileName));
-                System.out.println("Created/Modified File Successfully");
+                BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+                String hash;
+                if (operation.equals("ENTRY_MODIFY") && attributes.size() >= uploader.getMappedReadThreshold()) {
+                    // hashed during the delta scan, so the file is not read once more for the precheck
+                    hash = uploader.uploadModified(filePath, fileName);
+                    System.out.println("Created/Modified File Successfully");
+                } else {
+                    hash = FileInfo.contentHash(filePath);
+                    if (isUnchangedOnServer(uploader, fileName, attributes.size(), hash)) {
+                        System.out.println("Skipped " + fileName + ", the server already has this content");
+                    } else {
+                        uploader.upload(filePath, fileName, operation.equals("ENTRY_MODIFY"));
+                        System.out.println("Created/Modified File Successfully");
+                    }
+                }
+                if (index != null) {
+                    index.put(fileName, new ClientIndex.Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), hash));
+                }
+                return true;
             } catch( IOException ioException) {                
-                System.out.println("Error reading file for upload");
+                System.out.println("Error uploading " + fileName + ": " + ioException.getMessage());
             }
         } else if (operation.equals("ENTRY_DELETE")) {
             try {
-                fileServer.delete(Util.extractFileNameFromPath(fileName));
+                uploader.delete(fileName);
+                if (index != null) {
+                    index.remove(fileName);
+                }
                 System.out.println("Deleted File Successfully");
-            } catch (RemoteException e) {
+                return true;
+            } catch (IOException e) {
                 System.out.println("Error deleting file");
             }
         }
+        return false;
     }
 
     /**
-     * Read file from file-system
-     * @param filePath file name to read
-     * @return {@link byte[]} 
-     * @throws IOException
+     * Prechecks an upload; if the check itself fails the file is uploaded as usual
+     * @return true if the server already holds a file with this size and hash
      */
-    private static byte[] readFile(String filePath) throws IOException {
-        try (FileInputStream fis = new FileInputStream(filePath)) {
-            return fis.readAllBytes();
+    private static boolean isUnchangedOnServer(FileUploader uploader, String fileName, long size, String hash) {
+        try {
+            return uploader.isUnchanged(fileName, size, hash);
+        } catch (IOException ioException) {
+            System.out.println("Could not precheck " + fileName + ": " + ioException.getMessage());
+            return false;
         }
     }
 
@@ -226,8 +320,14 @@ public class Client {
      * @param serverAddr Server address 
      * @param serverPath Server path
      * @param serverPort Server port
+     * @param nodes urls of the compute nodes, or empty to discover them in the server's registry. (See {@Code config.yaml})
+     * @param splitSortThreshold length from which int arrays are sorted split across nodes. (See {@Code config.yaml})
+     * @param nodeProbeMillis interval of node load and health checks. (See {@Code config.yaml})
+     * @param batchWindowMicros longest time a batched call waits for others. (See {@Code config.yaml})
+     * @param maxBatchCalls pending calls that trigger a batch send. (See {@Code config.yaml})
      */
-    private static void spawnComputeServerThread(String serverAddr, String serverPath, int serverPort) {
+    private static void spawnComputeServerThread(String serverAddr, String serverPath, int serverPort, List<String> nodes,
+            int splitSortThreshold, int nodeProbeMillis, int batchWindowMicros, int maxBatchCalls) {
         ExecutorService executorService = Executors.newFixedThreadPool(2);
 
         executorService.submit(() -> {
@@ -237,11 +337,21 @@ public class Client {
             System.out.println("Press 2 to sort an array");
             System.out.println("Press 3 to async add two numbers");
             System.out.println("Press 4 to async sort an array");
+            System.out.println("Press 5 to sort a file of ints on the server");
+            System.out.println("Press 6 to add many pairs of numbers in batches");
             ComputeServer computeServer = null;
+            ComputeBatcher batcher = null;
             try {
-                String path = "rmi://" + serverAddr + ":" + serverPort + serverPath;
-                System.out.println("Connecting to server at: " + path);
-                computeServer = (ComputeServer) Naming.lookup(path);
+                if (nodes.isEmpty()) {
+                    String registryUrl = "rmi://" + serverAddr + ":" + serverPort;
+                    System.out.println("Connecting to compute nodes registered at: " + registryUrl + serverPath);
+                    computeServer = new ComputeCluster(registryUrl, serverPath, splitSortThreshold, nodeProbeMillis);
+                } else {
+                    System.out.println("Connecting to compute nodes: " + nodes);
+                    computeServer = new ComputeCluster(nodes, splitSortThreshold, nodeProbeMillis);
+                }
+                System.out.println(computeServer);
+                batcher = new ComputeBatcher(computeServer, batchWindowMicros, maxBatchCalls);
             } catch (Exception exception) {
                 exception.printStackTrace();
             }
@@ -250,9 +360,9 @@ public class Client {
                 try {
                     String option = reader.readLine();
                     Integer intOption = Integer.parseInt(option);
-                    handleOption(intOption, computeServer, reader);
+                    handleOption(intOption, computeServer, batcher, reader);
                 } catch(NumberFormatException numberFormatException) {
-                    System.out.println("Invalid option. Select 1, 2, 3 or 4");
+                    System.out.println("Invalid option. Select 1, 2, 3, 4, 5 or 6");
                 } catch (IOException ioException) {
                     ioException.printStackTrace();
                 }
@@ -266,11 +376,12 @@ public class Client {
      * Helper method to perform
      * @param intOption
      * @param computeServer
+     * @param batcher
      * @param bufferedReader
      * @throws IOException
-     * @throws InterruptedException
      */
-    private static void handleOption(Integer intOption, ComputeServer computeServer, BufferedReader bufferedReader) throws IOException, InterruptedException {
+    private static void handleOption(Integer intOption, ComputeServer computeServer, ComputeBatcher batcher,
+            BufferedReader bufferedReader) throws IOException {
        switch (intOption) {
         case 1:
             System.out.println("Enter a and b with space seperation");
@@ -294,10 +405,8 @@ public class Client {
             String asyncList[] = bufferedReader.readLine().split(" ");
             String asyncAddResult = computeServer.addAsync(Integer.parseInt(asyncList[0]), Integer.parseInt(asyncList[1]));
             System.out.println("Async Computation Task Id: "+ asyncAddResult);
-            System.out.println("Sleeping thread for 3 seconds");
-            Thread.sleep(2000);
-            Integer addResult = (Integer) computeServer.getResult(asyncAddResult);
-            System.out.println("Asynchronous add result: " + addResult);
+            Integer addResult = (Integer) computeServer.awaitResult(asyncAddResult, ASYNC_RESULT_TIMEOUT_MILLIS);
+            System.out.println("Asynchronous add result: " + (addResult != null ? addResult : "not ready, timed out"));
             break;
         case 4:
             System.out.println("Enter numbers to sort using space seperation");
@@ -308,10 +417,46 @@ public class Client {
             }
             String asyncSortResultTaskId = computeServer.sortAsync(asyncArrayList);
             System.out.println("Async Computation Task Id: "+ asyncSortResultTaskId);
-            System.out.println("Sleeping thread for 3 seconds");
-            Thread.sleep(2000);
-            List<Integer> asyncSortResult = (List<Integer>) computeServer.getResult(asyncSortResultTaskId);
-            System.out.println("Asynchronous add result: " + asyncSortResult);
+            List<Integer> asyncSortResult = (List<Integer>) computeServer.awaitResult(asyncSortResultTaskId,
+                    ASYNC_RESULT_TIMEOUT_MILLIS);
+            System.out.println("Asynchronous sort result: " + (asyncSortResult != null ? asyncSortResult : "not ready, timed out"));
+            break;
+        case 5:
+            System.out.println("Enter the name of the file on the server");
+            String sortFileTaskId = computeServer.sortFileAsync(bufferedReader.readLine().trim());
+            System.out.println("Async Computation Task Id: "+ sortFileTaskId);
+            long sortDeadline = System.currentTimeMillis() + SORT_FILE_TIMEOUT_MILLIS;
+            Object sortedFile = null;
+            for (long remaining = SORT_FILE_TIMEOUT_MILLIS; sortedFile == null && remaining > 0;
+                    remaining = sortDeadline - System.currentTimeMillis()) {
+                sortedFile = computeServer.awaitResult(sortFileTaskId, Math.min(ASYNC_RESULT_TIMEOUT_MILLIS, remaining));
+                if (sortedFile == null) {
+                    System.out.println("Still sorting...");
+                }
+            }
+            if (sortedFile != null) {
+                System.out.println("Sorted file: " + sortedFile);
+            } else {
+                computeServer.cancel(sortFileTaskId);
+                System.out.println("Sort not done after " + SORT_FILE_TIMEOUT_MILLIS / 60_000 + " min, cancelled");
+            }
+            break;
+        case 6:
+            System.out.println("Enter pairs a b separated by commas");
+            List<CompletableFuture<Integer>> sums = new ArrayList<>();
+            for (String pair : bufferedReader.readLine().split(",")) {
+                String operands[] = pair.trim().split(" ");
+                sums.add(batcher.add(Integer.parseInt(operands[0]), Integer.parseInt(operands[1])));
+            }
+            List<Integer> batchResult = new ArrayList<>();
+            try {
+                for (CompletableFuture<Integer> sum : sums) {
+                    batchResult.add(sum.join());
+                }
+                System.out.println("Batched add results " + batchResult);
+            } catch (CompletionException completionException) {
+                System.out.println("Error adding in batches: " + completionException.getCause());
+            }
             break;
         default:
             break;
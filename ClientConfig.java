@@ -0,0 +1,148 @@
+import java.util.Map;
+
+/**
+ * Settings of the file client, read once from the {@code server} and {@code client} sections of
+ * {@code config.yaml}. Settings that are not configured take the defaults of {@link Util}.
+ */
+public class ClientConfig {
+
+    private final String clientDir;
+    private final Integer timeOut;
+    private final String serverAddr;
+    private final String serverPath;
+    private final int serverPort;
+    private final int binaryPort;
+    private final int chunkSize;
+    private final boolean dedupUploads;
+    private final boolean compressUploads;
+    private final long bulkThreshold;
+    private final long mappedReadThreshold;
+    private final int downloadStreams;
+    private final int maxRetries;
+    private final long retryBackoffMillis;
+    private final long quietWindowMillis;
+    private final int uploadWorkers;
+    private final int maxQueuedUploads;
+    private final long batchFileThreshold;
+    private final int maxBatchBytes;
+    private final long maxBatchDelayMillis;
+
+    /**
+     * @param data parsed {@code config.yaml}
+     */
+    public ClientConfig(Map<String, Object> data) {
+        this.clientDir = Util.getClientDir(data);
+        this.timeOut = Util.getTimeOut(data);
+        this.serverAddr = Util.getServerAddr(data);
+        this.serverPath = Util.getServerPath(data);
+        this.serverPort = Util.getServerPort(data);
+        this.binaryPort = Util.getTransport(data).equals("binary") ? Util.getBinaryPort(data) : 0;
+        this.chunkSize = Util.getChunkSize(data);
+        this.dedupUploads = Util.getDedupUploads(data);
+        this.compressUploads = Util.getCompressUploads(data);
+        this.bulkThreshold = Util.getBulkThreshold(data);
+        this.mappedReadThreshold = Util.getMappedReadThreshold(data);
+        this.downloadStreams = Util.getDownloadStreams(data);
+        this.maxRetries = Util.getMaxRetries(data);
+        this.retryBackoffMillis = Util.getRetryBackoffMillis(data);
+        this.quietWindowMillis = Util.getQuietWindowMillis(data);
+        this.uploadWorkers = Util.getUploadWorkers(data);
+        this.maxQueuedUploads = Util.getMaxQueuedUploads(data);
+        this.batchFileThreshold = Util.getBatchFileThreshold(data);
+        this.maxBatchBytes = Util.getMaxBatchBytes(data);
+        this.maxBatchDelayMillis = Util.getMaxBatchDelayMillis(data);
+    }
+
+    /**
+     * @return url of the file server in the RMI registry
+     */
+    public String getFileServerUrl() {
+        return "rmi://" + serverAddr + ":" + serverPort + serverPath;
+    }
+
+    /**
+     * @return uploader for {@code fileServer} with the configured chunking, compression, bulk and retry settings
+     */
+    public FileUploader newUploader(FileServer fileServer) {
+        return new FileUploader(fileServer, chunkSize, dedupUploads, compressUploads, serverAddr, bulkThreshold,
+                mappedReadThreshold, maxRetries, retryBackoffMillis);
+    }
+
+    /**
+     * @return directory synced with the file server
+     */
+    public String getClientDir() {
+        return clientDir;
+    }
+
+    /**
+     * @return time in seconds without events after which the watcher reports an idle directory
+     */
+    public int getTimeOut() {
+        return timeOut;
+    }
+
+    public String getServerAddr() {
+        return serverAddr;
+    }
+
+    /**
+     * @return port of the server's binary transport if the config selects it, 0 for RMI
+     */
+    public int getBinaryPort() {
+        return binaryPort;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return ranges fetched in parallel when downloading
+     */
+    public int getDownloadStreams() {
+        return downloadStreams;
+    }
+
+    /**
+     * @return time a file has to go without events before it is synced
+     */
+    public long getQuietWindowMillis() {
+        return quietWindowMillis;
+    }
+
+    /**
+     * @return number of files synced in parallel
+     */
+    public int getUploadWorkers() {
+        return uploadWorkers;
+    }
+
+    /**
+     * @return queued sync operations before the watcher is held back
+     */
+    public int getMaxQueuedUploads() {
+        return maxQueuedUploads;
+    }
+
+    /**
+     * @return largest file uploaded as part of a batch
+     */
+    public long getBatchFileThreshold() {
+        return batchFileThreshold;
+    }
+
+    /**
+     * @return batch size that triggers a send
+     */
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * @return longest time an operation waits in a batch
+     */
+    public long getMaxBatchDelayMillis() {
+        return maxBatchDelayMillis;
+    }
+}
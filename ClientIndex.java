@@ -0,0 +1,34 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Persistent record of the last synced state of every file in the client directory: size and
+ * modification time as seen locally, and the content hash the server holds. Kept as a
+ * {@link FileIndex} in {@link #INDEX_FILE_NAME} under the client directory; a lost record only
+ * makes {@link SyncReconciler} hash and resend that file again.
+ */
+public class ClientIndex extends FileIndex {
+
+    /**
+     * Name of the index file in the client directory
+     */
+    public static final String INDEX_FILE_NAME = ".sync-index";
+
+    /**
+     * Loads the index of a client directory, creating an empty one if there is none
+     * @param clientDir client directory
+     * @throws IOException
+     */
+    public ClientIndex(Path clientDir) throws IOException {
+        super(clientDir.resolve(INDEX_FILE_NAME));
+    }
+
+    /**
+     * @param path any path
+     * @return true if {@code path} is an index file, which must never be synced
+     */
+    public static boolean isIndexFile(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(INDEX_FILE_NAME);
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side stub that groups individual compute calls into batched round trips. Calls are
+ * buffered for at most {@code windowMicros} after the first one of a batch, or until
+ * {@code maxCalls} are pending, and then sent together: additions as one
+ * {@link ComputeServer#addAll(int[], int[])} and other tasks as one
+ * {@link ComputeServer#invokeAll(String[], Serializable[])}. Each call returns a future completed
+ * with its own result.
+ */
+public class ComputeBatcher {
+
+    public static final int DEFAULT_WINDOW_MICROS = 200;
+    public static final int DEFAULT_MAX_CALLS = 1024;
+
+    private final ComputeServer computeServer;
+    private final long windowMicros;
+    private final int maxCalls;
+
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "compute-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Batch pending = new Batch();
+
+    /**
+     * Calls buffered for one round trip
+     */
+    private static final class Batch {
+        private final List<int[]> operands = new ArrayList<>();
+        private final List<CompletableFuture<Integer>> sums = new ArrayList<>();
+        private final List<String> taskTypes = new ArrayList<>();
+        private final List<Serializable> arguments = new ArrayList<>();
+        private final List<CompletableFuture<Object>> results = new ArrayList<>();
+
+        private int size() {
+            return sums.size() + results.size();
+        }
+    }
+
+    public ComputeBatcher(ComputeServer computeServer) {
+        this(computeServer, DEFAULT_WINDOW_MICROS, DEFAULT_MAX_CALLS);
+    }
+
+    /**
+     * @param computeServer ComputeServer obj. This is a rmi object
+     * @param windowMicros longest time a call waits for others to join its batch
+     * @param maxCalls pending calls that trigger a send
+     */
+    public ComputeBatcher(ComputeServer computeServer, long windowMicros, int maxCalls) {
+        this.computeServer = computeServer;
+        this.windowMicros = windowMicros;
+        this.maxCalls = maxCalls;
+    }
+
+    /**
+     * @param a first operand
+     * @param b second operand
+     * @return future of {@code a + b}
+     */
+    public CompletableFuture<Integer> add(int a, int b) {
+        CompletableFuture<Integer> sum = new CompletableFuture<>();
+        Batch full;
+        synchronized (this) {
+            pending.operands.add(new int[] { a, b });
+            pending.sums.add(sum);
+            full = added();
+        }
+        send(full);
+        return sum;
+    }
+
+    /**
+     * @param taskType registered task type, see {@link ComputeServer#getTaskTypes()}
+     * @param argument argument of the task
+     * @return future of the task's result, completed exceptionally if the task fails
+     */
+    public CompletableFuture<Object> call(String taskType, Serializable argument) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        Batch full;
+        synchronized (this) {
+            pending.taskTypes.add(taskType);
+            pending.arguments.add(argument);
+            pending.results.add(result);
+            full = added();
+        }
+        send(full);
+        return result;
+    }
+
+    /**
+     * Sends the pending calls, if any
+     */
+    public void flush() {
+        Batch batch;
+        synchronized (this) {
+            batch = take();
+        }
+        send(batch);
+    }
+
+    /**
+     * Sends the pending calls and stops the flush timer
+     */
+    public void shutdown() {
+        ticker.shutdown();
+        flush();
+    }
+
+    /**
+     * @return the batch to send now if the call just added filled it, otherwise null
+     */
+    private Batch added() {
+        int size = pending.size();
+        if (size >= maxCalls) {
+            return take();
+        }
+        if (size == 1) {
+            Batch batch = pending;
+            ticker.schedule(() -> flush(batch), windowMicros, TimeUnit.MICROSECONDS);
+        }
+        return null;
+    }
+
+    /**
+     * Sends {@code batch} if it is still the pending one, i.e. it was not already sent full
+     */
+    private void flush(Batch batch) {
+        synchronized (this) {
+            if (pending != batch) {
+                return;
+            }
+            take();
+        }
+        send(batch);
+    }
+
+    private Batch take() {
+        Batch batch = pending;
+        if (batch.size() == 0) {
+            return null;
+        }
+        pending = new Batch();
+        return batch;
+    }
+
+    private void send(Batch batch) {
+        if (batch == null) {
+            return;
+        }
+        if (!batch.sums.isEmpty()) {
+            int[] a = new int[batch.operands.size()];
+            int[] b = new int[a.length];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = batch.operands.get(i)[0];
+                b[i] = batch.operands.get(i)[1];
+            }
+            try {
+                int[] sums = computeServer.addAll(a, b);
+                for (int i = 0; i < sums.length; i++) {
+                    batch.sums.get(i).complete(sums[i]);
+                }
+            } catch (RemoteException remoteException) {
+                batch.sums.forEach(sum -> sum.completeExceptionally(remoteException));
+            }
+        }
+        if (!batch.results.isEmpty()) {
+            try {
+                Object[] results = computeServer.invokeAll(batch.taskTypes.toArray(new String[0]),
+                        batch.arguments.toArray(new Serializable[0]));
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] instanceof Exception) {
+                        batch.results.get(i).completeExceptionally((Exception) results[i]);
+                    } else {
+                        batch.results.get(i).complete(results[i]);
+                    }
+                }
+            } catch (RemoteException remoteException) {
+                batch.results.forEach(result -> result.completeExceptionally(remoteException));
+            }
+        }
+    }
+}
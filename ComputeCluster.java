@@ -0,0 +1,474 @@
+import java.io.Serializable;
+import java.net.MalformedURLException;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.rmi.ServerException;
+import java.rmi.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client-side scheduler spreading compute calls over several compute nodes, used in place of a
+ * single {@link ComputeServer}. Nodes are either listed up front or discovered in an RMI registry,
+ * where nodes started with {@code Server computeNode <port>} register themselves next to the main
+ * compute server.
+ * <p>
+ * Each call goes to the node with the lowest load, estimated from the calls this client has in
+ * flight on it, the tasks pending on the server as of the last probe and the node's smoothed
+ * latency. A call that could not reach its node marks the node down and is retried on the next
+ * node. A call that failed after it may have reached the node also marks the node down, but is not
+ * retried, since tasks like {@code submit} must not run twice; nor are errors reported by a node
+ * itself. Down nodes are probed every
+ * {@code probeMillis} and used again once they answer. {@link #sortInts(int[])} splits arrays of
+ * {@code splitSortThreshold} or more elements across nodes and merges the sorted parts.
+ * <p>
+ * Async task ids are prefixed with the index of the node running the task, so results are fetched
+ * from that node; they are lost if it dies. {@link #sortFileAsync(String)} always runs on the
+ * first node, the main compute server sharing the file server directory.
+ */
+public class ComputeCluster implements ComputeServer {
+
+    public static final int DEFAULT_SPLIT_SORT_THRESHOLD = 1 << 20;
+    public static final int DEFAULT_PROBE_MILLIS = 1000;
+
+    /**
+     * Weight of the latest call in a node's smoothed latency
+     */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private static final char TASK_ID_SEPARATOR = '/';
+
+    private final List<Node> nodes = new CopyOnWriteArrayList<>();
+    private final Set<String> nodeUrls = new HashSet<>();
+
+    /**
+     * Registry nodes are discovered in, or null if the nodes were listed
+     */
+    private final String registryUrl;
+    private final String path;
+    private final int splitSortThreshold;
+
+    private final ExecutorService splitExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "compute-cluster-split");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "compute-cluster-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A compute node and what this client knows of its load
+     */
+    private static final class Node {
+        private final int index;
+        private final String url;
+        private volatile ComputeServer server;
+        private volatile boolean up;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile int serverPending;
+        private volatile double latencyMicros = 1000;
+        private final LongAdder calls = new LongAdder();
+
+        private Node(int index, String url) {
+            this.index = index;
+            this.url = url;
+        }
+
+        private double load() {
+            return (inFlight.get() + serverPending + 1) * latencyMicros;
+        }
+
+        /**
+         * @return stub of the node, looked up again after the node was marked down
+         */
+        private ComputeServer connect() throws RemoteException {
+            ComputeServer server = this.server;
+            if (server == null) {
+                try {
+                    server = (ComputeServer) Naming.lookup(url);
+                } catch (NotBoundException | MalformedURLException e) {
+                    throw new ConnectException("Cannot look up compute node " + url, e);
+                }
+                this.server = server;
+            }
+            return server;
+        }
+
+        private synchronized void recordLatency(long nanos) {
+            latencyMicros += LATENCY_SMOOTHING * (nanos / 1000.0 - latencyMicros);
+        }
+
+        @Override
+        public String toString() {
+            return url + (up ? " up" : " down") + ", calls=" + calls.sum() + ", pending=" + serverPending
+                    + ", latency=" + Math.round(latencyMicros) + "us";
+        }
+    }
+
+    @FunctionalInterface
+    private interface NodeCall<T> {
+        T call(ComputeServer server, int nodeIndex) throws RemoteException;
+    }
+
+    /**
+     * @param nodeUrls RMI urls of the compute nodes; the first one is used for file sorts
+     * @param splitSortThreshold length from which {@link #sortInts(int[])} is split across nodes
+     * @param probeMillis interval of load and health checks
+     */
+    public ComputeCluster(List<String> nodeUrls, int splitSortThreshold, long probeMillis) {
+        this(null, null, nodeUrls, splitSortThreshold, probeMillis);
+    }
+
+    /**
+     * @param registryUrl registry of the main compute server, e.g. {@code rmi://localhost:9001}
+     * @param path name of the main compute server in the registry; further nodes are those bound
+     *        under {@code path + "-"} followed by any suffix
+     * @param splitSortThreshold length from which {@link #sortInts(int[])} is split across nodes
+     * @param probeMillis interval of load and health checks, and of discovery of new nodes
+     */
+    public ComputeCluster(String registryUrl, String path, int splitSortThreshold, long probeMillis) {
+        this(registryUrl, path, List.of(registryUrl + path), splitSortThreshold, probeMillis);
+    }
+
+    private ComputeCluster(String registryUrl, String path, List<String> nodeUrls, int splitSortThreshold, long probeMillis) {
+        this.registryUrl = registryUrl;
+        this.path = path;
+        this.splitSortThreshold = Math.max(1, splitSortThreshold);
+        for (String url : nodeUrls) {
+            addNode(url);
+        }
+        probe();
+        prober.scheduleWithFixedDelay(this::probe, probeMillis, probeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int add(int a, int b) throws RemoteException {
+        return call((server, node) -> server.add(a, b));
+    }
+
+    @Override
+    public List<Integer> sort(List<Integer> array) throws RemoteException {
+        return call((server, node) -> server.sort(array));
+    }
+
+    /**
+     * Sorts on one node, or, from {@code splitSortThreshold} elements, as one part per live node
+     * sorted in parallel and merged here.
+     */
+    @Override
+    public int[] sortInts(int[] array) throws RemoteException {
+        int parts = Math.min(countUp(), array.length / splitSortThreshold);
+        if (parts < 2) {
+            return call((server, node) -> server.sortInts(array));
+        }
+        List<Future<int[]>> sortedParts = new ArrayList<>();
+        for (int part = 0; part < parts; part++) {
+            int[] values = Arrays.copyOfRange(array, (int) ((long) array.length * part / parts),
+                    (int) ((long) array.length * (part + 1) / parts));
+            sortedParts.add(splitExecutor.submit(() -> call((server, node) -> server.sortInts(values))));
+        }
+        int[][] sorted = new int[parts][];
+        for (int part = 0; part < parts; part++) {
+            try {
+                sorted[part] = sortedParts.get(part).get();
+            } catch (ExecutionException e) {
+                sortedParts.forEach(future -> future.cancel(true));
+                throw e.getCause() instanceof RemoteException ? (RemoteException) e.getCause()
+                        : new RemoteException("Error sorting part " + part, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted sorting across nodes", e);
+            }
+        }
+        merge(sorted, array);
+        return array;
+    }
+
+    @Override
+    public long[] sortLongs(long[] array) throws RemoteException {
+        return call((server, node) -> server.sortLongs(array));
+    }
+
+    @Override
+    public int[] addAll(int[] a, int[] b) throws RemoteException {
+        return call((server, node) -> server.addAll(a, b));
+    }
+
+    @Override
+    public Object[] invokeAll(String[] taskTypes, Serializable[] arguments) throws RemoteException {
+        return call((server, node) -> server.invokeAll(taskTypes, arguments));
+    }
+
+    @Override
+    public String addAsync(int a, int b) throws RemoteException {
+        return call((server, node) -> taskId(node, server.addAsync(a, b)));
+    }
+
+    @Override
+    public String sortAsync(List<Integer> array) throws RemoteException {
+        return call((server, node) -> taskId(node, server.sortAsync(array)));
+    }
+
+    @Override
+    public String sortFileAsync(String fileName) throws RemoteException {
+        return callOn(nodes.get(0), (server, node) -> taskId(node, server.sortFileAsync(fileName)));
+    }
+
+    @Override
+    public String submit(String taskType, Serializable argument, TaskPriority priority) throws RemoteException {
+        return call((server, node) -> taskId(node, server.submit(taskType, argument, priority)));
+    }
+
+    @Override
+    public String submit(String taskType, Serializable argument) throws RemoteException {
+        return call((server, node) -> taskId(node, server.submit(taskType, argument)));
+    }
+
+    @Override
+    public Object getResult(String taskId) throws RemoteException {
+        String nodeTaskId = nodeTaskId(taskId);
+        return callOn(nodeOf(taskId), (server, node) -> server.getResult(nodeTaskId));
+    }
+
+    @Override
+    public Object awaitResult(String taskId, long timeoutMillis) throws RemoteException {
+        String nodeTaskId = nodeTaskId(taskId);
+        return callOn(nodeOf(taskId), (server, node) -> server.awaitResult(nodeTaskId, timeoutMillis));
+    }
+
+    @Override
+    public boolean cancel(String taskId) throws RemoteException {
+        String nodeTaskId = nodeTaskId(taskId);
+        return callOn(nodeOf(taskId), (server, node) -> server.cancel(nodeTaskId));
+    }
+
+    @Override
+    public Set<String> getTaskTypes() throws RemoteException {
+        return call((server, node) -> server.getTaskTypes());
+    }
+
+    /**
+     * @return tasks pending on the live nodes as of their last probe
+     */
+    @Override
+    public int getPendingTasks() {
+        int pending = 0;
+        for (Node node : nodes) {
+            if (node.up) {
+                pending += node.serverPending;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return number of nodes answering the last probe or call
+     */
+    public int countUp() {
+        int up = 0;
+        for (Node node : nodes) {
+            if (node.up) {
+                up++;
+            }
+        }
+        return up;
+    }
+
+    public void shutdown() {
+        prober.shutdown();
+        splitExecutor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ComputeCluster");
+        for (Node node : nodes) {
+            builder.append("\n  ").append(node.index).append(": ").append(node);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Runs a call on the least loaded node, moving on to the next one while nodes cannot be reached
+     */
+    private <T> T call(NodeCall<T> call) throws RemoteException {
+        Set<Node> tried = new HashSet<>();
+        RemoteException failure = null;
+        Node node;
+        while ((node = acquire(tried)) != null) {
+            tried.add(node);
+            try {
+                return run(node, call);
+            } catch (RemoteException remoteException) {
+                if (!isNotDelivered(remoteException)) {
+                    throw remoteException;
+                }
+                failure = remoteException;
+            }
+        }
+        throw new RemoteException("No compute node available", failure);
+    }
+
+    /**
+     * Runs a call on the given node only
+     */
+    private <T> T callOn(Node node, NodeCall<T> call) throws RemoteException {
+        node.inFlight.incrementAndGet();
+        return run(node, call);
+    }
+
+    /**
+     * Picks the least loaded live node not tried yet, or a down one if no live node is left, and
+     * counts the call as in flight on it
+     */
+    private synchronized Node acquire(Set<Node> tried) {
+        Node best = null;
+        for (Node node : nodes) {
+            if (tried.contains(node)) {
+                continue;
+            }
+            if (best == null || (node.up && !best.up) || (node.up == best.up && node.load() < best.load())) {
+                best = node;
+            }
+        }
+        if (best != null) {
+            best.inFlight.incrementAndGet();
+        }
+        return best;
+    }
+
+    /**
+     * Runs a call on a node already counted as in flight
+     */
+    private <T> T run(Node node, NodeCall<T> call) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            T result = call.call(node.connect(), node.index);
+            node.recordLatency(System.nanoTime() - start);
+            node.calls.increment();
+            node.up = true;
+            return result;
+        } catch (RemoteException remoteException) {
+            if (isNodeFailure(remoteException)) {
+                markDown(node, remoteException);
+            }
+            throw remoteException;
+        } finally {
+            node.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if the call failed in transport, as opposed to the node reporting an error
+     */
+    private static boolean isNodeFailure(RemoteException remoteException) {
+        return !(remoteException instanceof ServerException) && !(remoteException instanceof ServerError);
+    }
+
+    /**
+     * @return true if the call failed before the node received it, so it is safe to send it to another node
+     */
+    private static boolean isNotDelivered(RemoteException remoteException) {
+        return remoteException instanceof ConnectException || remoteException instanceof ConnectIOException
+                || remoteException instanceof NoSuchObjectException || remoteException instanceof UnknownHostException;
+    }
+
+    private void markDown(Node node, RemoteException cause) {
+        node.server = null;
+        if (node.up) {
+            node.up = false;
+            Log.info("Compute node %s is down: %s", node.url, cause.getMessage());
+        }
+    }
+
+    /**
+     * Discovers new nodes and refreshes the load and state of all of them
+     */
+    private void probe() {
+        if (registryUrl != null) {
+            try {
+                for (String name : Naming.list(registryUrl)) {
+                    // entries are listed as //host:port/name
+                    String boundName = name.substring(name.lastIndexOf('/'));
+                    if (boundName.startsWith(path + "-")) {
+                        addNode(registryUrl + boundName);
+                    }
+                }
+            } catch (RemoteException | MalformedURLException e) {
+                // the main node is probed below and marked down if its registry is gone
+            }
+        }
+        for (Node node : nodes) {
+            try {
+                int pending = node.connect().getPendingTasks();
+                node.serverPending = pending;
+                if (!node.up) {
+                    node.up = true;
+                    Log.info("Compute node %s is up", node.url);
+                }
+            } catch (RemoteException remoteException) {
+                markDown(node, remoteException);
+            }
+        }
+    }
+
+    private synchronized void addNode(String url) {
+        if (nodeUrls.add(url)) {
+            nodes.add(new Node(nodes.size(), url));
+        }
+    }
+
+    private static String taskId(int node, String nodeTaskId) {
+        return node + String.valueOf(TASK_ID_SEPARATOR) + nodeTaskId;
+    }
+
+    private Node nodeOf(String taskId) throws RemoteException {
+        int separator = taskId.indexOf(TASK_ID_SEPARATOR);
+        try {
+            return nodes.get(Integer.parseInt(taskId.substring(0, separator)));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new RemoteException("Unknown task id " + taskId);
+        }
+    }
+
+    private static String nodeTaskId(String taskId) {
+        return taskId.substring(taskId.indexOf(TASK_ID_SEPARATOR) + 1);
+    }
+
+    /**
+     * Merges sorted arrays into {@code output}, taking the smallest head of the few parts each time
+     */
+    private static void merge(int[][] parts, int[] output) {
+        int[] heads = new int[parts.length];
+        for (int i = 0; i < output.length; i++) {
+            int min = -1;
+            for (int part = 0; part < parts.length; part++) {
+                if (heads[part] < parts[part].length
+                        && (min < 0 || parts[part][heads[part]] < parts[min][heads[min]])) {
+                    min = part;
+                }
+            }
+            output[i] = parts[min][heads[min]++];
+        }
+    }
+}
@@ -1,14 +1,112 @@
+import java.io.Serializable;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.List;
+import java.util.Set;
 
 /**
- * API for Compute Server, supports add & sort
+ * API for Compute Server, supports add & sort. Prefer {@link #sortInts(int[])} and
+ * {@link #sortLongs(long[])} over {@link #sort(List)}, which boxes every element. Async calls return a task id whose result is
+ * fetched with {@link #awaitResult(String, long)}, which returns as soon as the task completes.
+ * The async calls are shorthands for {@link #submit(String, Serializable, TaskPriority)} of the
+ * built-in task types. Many small calls are cheaper as one {@link #addAll(int[], int[])} or
+ * {@link #invokeAll(String[], Serializable[])} round trip, see {@link ComputeBatcher}.
  */
 public interface ComputeServer extends Remote {
     int add(int a, int b) throws RemoteException;
     List<Integer> sort(List<Integer> array) throws RemoteException;
+
+    /**
+     * @param array values to sort
+     * @return {@code array} sorted in ascending order
+     */
+    int[] sortInts(int[] array) throws RemoteException;
+
+    /**
+     * @param array values to sort
+     * @return {@code array} sorted in ascending order
+     */
+    long[] sortLongs(long[] array) throws RemoteException;
+
+    /**
+     * Adds operand pairs in one call
+     * @param a first operands
+     * @param b second operands, as many as {@code a}
+     * @return {@code a[i] + b[i]} for every i
+     */
+    int[] addAll(int[] a, int[] b) throws RemoteException;
+
+    /**
+     * Runs a list of registered tasks in one call, each in the lane of its task type, and waits for
+     * all of them. A call that fails does not stop the others; its slot of the result holds the
+     * exception instead
+     * @param taskTypes registered task types, see {@link #getTaskTypes()}
+     * @param arguments argument of each task
+     * @return result, or exception, of each task
+     * @throws RemoteException if the arrays differ in length
+     */
+    Object[] invokeAll(String[] taskTypes, Serializable[] arguments) throws RemoteException;
     String addAsync(int a, int b) throws RemoteException;
     String sortAsync(List<Integer> array) throws RemoteException;
+
+    /**
+     * Sorts a file of big-endian 32-bit ints synced to the file server, without loading it into
+     * memory. The result of the task is the name of the sorted file, {@code fileName + ".sorted"}
+     * @param fileName file name relative to the file server directory
+     * @return task id
+     */
+    String sortFileAsync(String fileName) throws RemoteException;
     Object getResult(String taskId) throws RemoteException;
+
+    /**
+     * Longest wait {@link #awaitResult(String, long)} accepts, so a call cannot hold a server
+     * thread indefinitely
+     */
+    long MAX_AWAIT_MILLIS = 60_000;
+
+    /**
+     * Waits for the result of an async task
+     * @param taskId id returned by an async call
+     * @param timeoutMillis longest time to wait, capped at {@link #MAX_AWAIT_MILLIS}
+     * @return the result, or null if the task did not complete in time
+     * @throws RemoteException if the task id is unknown or the task failed
+     */
+    Object awaitResult(String taskId, long timeoutMillis) throws RemoteException;
+
+    /**
+     * Submits a task of a registered type. The built-in types are {@code add} (an {@code int[]} of
+     * two values), {@code sort} (a {@code List<Integer>}), {@code sortInts}, {@code sortLongs} and,
+     * on a server with a data directory, {@code sortFile} (a file name)
+     * @param taskType registered task type, see {@link #getTaskTypes()}
+     * @param argument argument of the task
+     * @param priority lane to run in; {@link TaskPriority#INTERACTIVE} tasks never wait behind
+     *        {@link TaskPriority#BATCH} ones
+     * @return task id
+     * @throws RemoteException if the type is unknown, the argument does not fit it, or the lane is
+     *         full, in which case the client should retry later
+     */
+    String submit(String taskType, Serializable argument, TaskPriority priority) throws RemoteException;
+
+    /**
+     * Submits a task of a registered type in the lane of its type
+     * @see #submit(String, Serializable, TaskPriority)
+     */
+    String submit(String taskType, Serializable argument) throws RemoteException;
+
+    /**
+     * Cancels an async task, interrupting it if it is running
+     * @param taskId id returned by an async call
+     * @return false if the task is unknown or already complete
+     */
+    boolean cancel(String taskId) throws RemoteException;
+
+    /**
+     * @return names of the task types accepted by {@link #submit(String, Serializable, TaskPriority)}
+     */
+    Set<String> getTaskTypes() throws RemoteException;
+
+    /**
+     * @return async tasks queued or running on the server, a measure of its load
+     */
+    int getPendingTasks() throws RemoteException;
 }
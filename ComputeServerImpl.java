@@ -1,30 +1,132 @@
-import java.rmi.server.UnicastRemoteObject;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The {@code ComputeServerImpl} class implements the {@link ComputeServer} interface
  * to provide synchronous and asynchronous computation services via RMI (Remote Method Invocation).
- * It extends {@link UnicastRemoteObject} to allow remote access.
- * 
+ * It is not a remote object itself; export it through {@link MeteredRemote#export}, so that calls
+ * reach it only through the metered proxy.
+ * <p>
+ * Async tasks run on a {@link TaskEngine}; add and the sorts are registered task types, and
+ * further types can be added with {@link #getEngine()}.
  */
-public class ComputeServerImpl extends UnicastRemoteObject implements ComputeServer {
+public class ComputeServerImpl implements ComputeServer {
    
-    private final ExecutorService executor = Executors.newFixedThreadPool(10);
+    /**
+     * Array length from which sorts are split across the common fork/join pool. Below it the
+     * fork/join overhead outweighs the gain
+     */
+    static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+    private final TaskEngine engine;
+
+    private final ResultCache resultStore;
+
+    /**
+     * File server whose files {@link #sortFileAsync(String)} reads and writes, or null
+     */
+    private final FileServerImpl fileServer;
 
-    private final ConcurrentHashMap<String, Future<?>> resultStore = new ConcurrentHashMap<>();
+    private final ExternalSort externalSort;
 
     private final AtomicInteger taskIdCounter = new AtomicInteger(0);
 
+    private final Metrics metrics = new Metrics("ComputeServer");
+    private final LongAdder tasksSubmitted = metrics.counter("tasksSubmitted");
+    private final LongAdder tasksRejected = metrics.counter("tasksRejected");
+
     /**
-     * Constructs a new {@ComputeServerImpl ComputeServerImpl} object and exports it to accept incoming RMI calls.
-     * 
-     * @throws RemoteException if the export to the RMI runtime fails.
+     * Constructs a new {@ComputeServerImpl ComputeServerImpl} object.
      */
     protected ComputeServerImpl() throws RemoteException {
-        super();
+        this(new ResultCache());
+    }
+
+    /**
+     * Constructs a new {@ComputeServerImpl ComputeServerImpl} object keeping async results in {@code resultStore}.
+     * 
+     * @param resultStore bounded store of async task results.
+     */
+    protected ComputeServerImpl(ResultCache resultStore) throws RemoteException {
+        this(resultStore, new TaskEngine(), null, ExternalSort.DEFAULT_RUN_BYTES);
+    }
+
+    /**
+     * Constructs a new {@ComputeServerImpl ComputeServerImpl} object that can also sort files of the file server.
+     * 
+     * @param resultStore bounded store of async task results.
+     * @param fileServer the file server whose files are sorted.
+     * @param sortRunBytes bytes of a file sorted in memory at a time by {@link #sortFileAsync(String)}.
+     * @throws RemoteException if the sort directory cannot be created.
+     */
+    protected ComputeServerImpl(ResultCache resultStore, FileServerImpl fileServer, int sortRunBytes) throws RemoteException {
+        this(resultStore, new TaskEngine(), fileServer, sortRunBytes);
+    }
+
+    /**
+     * Constructs a new {@ComputeServerImpl ComputeServerImpl} object running async tasks on {@code engine}.
+     * 
+     * @param resultStore bounded store of async task results.
+     * @param engine engine the built-in task types are registered with.
+     * @param fileServer the file server whose files are sorted, or null if files cannot be sorted.
+     * @param sortRunBytes bytes of a file sorted in memory at a time by {@link #sortFileAsync(String)}.
+     * @throws RemoteException if the sort directory cannot be created.
+     */
+    protected ComputeServerImpl(ResultCache resultStore, TaskEngine engine, FileServerImpl fileServer, int sortRunBytes) throws RemoteException {
+        this.resultStore = resultStore;
+        this.engine = engine;
+        this.fileServer = fileServer;
+        if (fileServer == null) {
+            this.externalSort = null;
+        } else {
+            try {
+                this.externalSort = new ExternalSort(fileServer.getRoot().resolve(ExternalSort.TEMP_DIR_NAME), sortRunBytes);
+                externalSort.clearTempDir();
+            } catch (IOException ioException) {
+                throw new RemoteException("Error opening sort directory", ioException);
+            }
+        }
+        registerTasks();
+        metrics.gauge("interactivePending", () -> engine.getPending(TaskPriority.INTERACTIVE));
+        metrics.gauge("batchPending", () -> engine.getPending(TaskPriority.BATCH));
+        metrics.gauge("resultStoreEntries", resultStore::size);
+        metrics.gauge("resultStoreBytes", resultStore::getResultBytes);
+        metrics.gauge("resultStoreHits", resultStore::getHits);
+        metrics.gauge("resultStoreMisses", resultStore::getMisses);
+        metrics.gauge("resultStoreEvictions", resultStore::getEvictions);
+    }
+
+    /**
+     * Registers add and the sorts. Small computations run interactive by default, list, array and
+     * file sorts run batch.
+     */
+    @SuppressWarnings("unchecked")
+    private void registerTasks() {
+        engine.register("add", int[].class, TaskPriority.INTERACTIVE, operands -> {
+            if (operands.length != 2) {
+                throw new IllegalArgumentException("add takes 2 operands, got " + operands.length);
+            }
+            return add(operands[0], operands[1]);
+        });
+        engine.register("sort", List.class, TaskPriority.BATCH, array -> sort((List<Integer>) array));
+        engine.register("sortInts", int[].class, TaskPriority.BATCH, this::sortInts);
+        engine.register("sortLongs", long[].class, TaskPriority.BATCH, this::sortLongs);
+        if (externalSort != null) {
+            engine.register("sortFile", String.class, TaskPriority.BATCH, this::sortFile);
+        }
     }
 
     /**
@@ -41,7 +143,8 @@ public class ComputeServerImpl extends UnicastRemoteObject implements ComputeSer
     }
 
     /**
-     * Sorts a list of integers in ascending order.
+     * Sorts a list of integers in ascending order. Kept for compatibility: the list is unboxed and
+     * sorted with {@link #sortInts(int[])}.
      * 
      * @param array the list of integers to be sorted.
      * @return the sorted list of integers.
@@ -49,10 +152,146 @@ public class ComputeServerImpl extends UnicastRemoteObject implements ComputeSer
      */
     @Override
     public List<Integer> sort(List<Integer> array) throws RemoteException {
-        array.sort(Integer::compareTo);
+        int[] values = new int[array.size()];
+        int index = 0;
+        for (Integer value : array) {
+            values[index++] = value;
+        }
+        sortInts(values);
+        List<Integer> sorted = new ArrayList<>(values.length);
+        for (int value : values) {
+            sorted.add(value);
+        }
+        return sorted;
+    }
+
+    /**
+     * Sorts an array of integers in place, in parallel from {@link #PARALLEL_SORT_THRESHOLD} elements.
+     * 
+     * @param array the integers to be sorted.
+     * @return {@code array}, sorted.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    @Override
+    public int[] sortInts(int[] array) throws RemoteException {
+        if (array.length >= PARALLEL_SORT_THRESHOLD) {
+            Arrays.parallelSort(array);
+        } else {
+            Arrays.sort(array);
+        }
         return array;
     }
 
+    /**
+     * Sorts an array of longs in place, in parallel from {@link #PARALLEL_SORT_THRESHOLD} elements.
+     * 
+     * @param array the longs to be sorted.
+     * @return {@code array}, sorted.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    @Override
+    public long[] sortLongs(long[] array) throws RemoteException {
+        if (array.length >= PARALLEL_SORT_THRESHOLD) {
+            Arrays.parallelSort(array);
+        } else {
+            Arrays.sort(array);
+        }
+        return array;
+    }
+
+    /**
+     * Adds operand pairs, so many additions cost one RMI round trip.
+     * 
+     * @param a the first operands.
+     * @param b the second operands.
+     * @return the pairwise sums.
+     * @throws RemoteException if the arrays differ in length.
+     */
+    @Override
+    public int[] addAll(int[] a, int[] b) throws RemoteException {
+        if (a.length != b.length) {
+            throw new RemoteException("Operand arrays differ in length: " + a.length + " and " + b.length);
+        }
+        int[] sums = new int[a.length];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = a[i] + b[i];
+        }
+        return sums;
+    }
+
+    /**
+     * Submits each task to the {@link TaskEngine} lane of its type, as async calls do, and waits
+     * for all of them, so the RMI thread only waits and batch work stays off the interactive
+     * threads. When a lane is full, the batch waits for its own oldest task before trying again;
+     * a task is only rejected if none of the batch's tasks is left to wait for.
+     * 
+     * @param taskTypes the registered task types.
+     * @param arguments the argument of each task.
+     * @return the result of each task, or the exception it failed with.
+     * @throws RemoteException if the arrays differ in length or the call was interrupted.
+     */
+    @Override
+    public Object[] invokeAll(String[] taskTypes, Serializable[] arguments) throws RemoteException {
+        if (taskTypes.length != arguments.length) {
+            throw new RemoteException("Got " + taskTypes.length + " task types for " + arguments.length + " arguments");
+        }
+        Object[] results = new Object[taskTypes.length];
+        List<FutureTask<Object>> futures = new ArrayList<>(Collections.nCopies(results.length, null));
+        Deque<Integer> running = new ArrayDeque<>();
+        try {
+            for (int i = 0; i < results.length; i++) {
+                FutureTask<Object> future;
+                try {
+                    future = new FutureTask<>(engine.prepare(taskTypes[i], arguments[i]));
+                } catch (IllegalArgumentException e) {
+                    results[i] = e;
+                    continue;
+                }
+                Executor lane = engine.lane(engine.defaultPriority(taskTypes[i]));
+                while (true) {
+                    try {
+                        lane.execute(future);
+                        tasksSubmitted.increment();
+                        futures.set(i, future);
+                        running.add(i);
+                        break;
+                    } catch (RejectedExecutionException e) {
+                        if (running.isEmpty()) {
+                            tasksRejected.increment();
+                            results[i] = e;
+                            break;
+                        }
+                        int oldest = running.poll();
+                        results[oldest] = resultOf(futures.get(oldest));
+                    }
+                }
+            }
+            for (int i : running) {
+                results[i] = resultOf(futures.get(i));
+            }
+        } catch (InterruptedException e) {
+            for (FutureTask<Object> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while running " + results.length + " tasks", e);
+        }
+        return results;
+    }
+
+    /**
+     * @return the result of a completed task, or the exception it failed with
+     */
+    private static Object resultOf(FutureTask<Object> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
     /**
      * Initiates an asynchronous addition of two integers and returns a unique task ID to track the result.
      * 
@@ -63,11 +302,7 @@ public class ComputeServerImpl extends UnicastRemoteObject implements ComputeSer
      */
     @Override
     public String addAsync(int i, int j) throws RemoteException {
-        Callable<Integer> task = () -> add(i, j);
-        Future<Integer> future = executor.submit(task);
-        String taskId = generateTaskId();
-        resultStore.put(taskId, future);
-        return taskId;
+        return submit("add", new int[] { i, j });
     }
 
     /**
@@ -79,16 +314,128 @@ public class ComputeServerImpl extends UnicastRemoteObject implements ComputeSer
      */
     @Override
     public String sortAsync(List<Integer> array) throws RemoteException {
-        Callable<List<Integer>> task = () -> sort(array);
-        Future<List<Integer>> future = executor.submit(task);
+        return submitTask("sort", array, null);
+    }
+
+    /**
+     * Initiates an asynchronous external merge sort of a file in the file server directory and returns
+     * a unique task ID to track the result, the name of the sorted file.
+     * 
+     * @param fileName the file to sort, relative to the file server directory.
+     * @return {@link String} a unique task ID for the asynchronous sorting operation.
+     * @throws RemoteException if the server has no file server or the name is not a valid file name.
+     */
+    @Override
+    public String sortFileAsync(String fileName) throws RemoteException {
+        if (externalSort == null) {
+            throw new RemoteException("Compute server has no data directory to sort files in");
+        }
+        fileServer.resolvePath(fileName);
+        return submit("sortFile", fileName);
+    }
+
+    /**
+     * Submits a task of a registered type to the {@link TaskEngine}.
+     * 
+     * @param taskType the registered task type.
+     * @param argument the argument of the task.
+     * @param priority the lane to run in, or null for the lane of the task type.
+     * @return {@link String} a unique task ID for the asynchronous operation.
+     * @throws RemoteException if the type is unknown, the argument does not fit it, or the lane is full.
+     */
+    @Override
+    public String submit(String taskType, Serializable argument, TaskPriority priority) throws RemoteException {
+        return submitTask(taskType, argument, priority);
+    }
+
+    /**
+     * Submits a task of a registered type in the lane of its type.
+     * 
+     * @param taskType the registered task type.
+     * @param argument the argument of the task.
+     * @return {@link String} a unique task ID for the asynchronous operation.
+     * @throws RemoteException if the type is unknown, the argument does not fit it, or the lane is full.
+     */
+    @Override
+    public String submit(String taskType, Serializable argument) throws RemoteException {
+        return submitTask(taskType, argument, null);
+    }
+
+    /**
+     * Cancels an asynchronous operation. A queued task never runs; a running one is interrupted,
+     * which stops file sorts between runs and merge buffers.
+     * 
+     * @param taskId {@link String} the unique task ID associated with the asynchronous operation.
+     * @return {@code true} if the task was cancelled, {@code false} if it is unknown or already complete.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    @Override
+    public boolean cancel(String taskId) throws RemoteException {
+        Future<?> future = resultStore.get(taskId);
+        return future != null && future.cancel(true);
+    }
+
+    /**
+     * @return names of the task types registered with the engine.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    @Override
+    public Set<String> getTaskTypes() throws RemoteException {
+        return engine.getTaskTypes();
+    }
+
+    /**
+     * @return async tasks admitted to the engine and not yet finished, in both lanes.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    @Override
+    public int getPendingTasks() throws RemoteException {
+        return engine.getPending(TaskPriority.INTERACTIVE) + engine.getPending(TaskPriority.BATCH);
+    }
+
+    /**
+     * @param priority the lane to run in, or null for the lane of the task type.
+     */
+    private String submitTask(String taskType, Object argument, TaskPriority priority) throws RemoteException {
+        Callable<Object> task;
+        try {
+            task = engine.prepare(taskType, argument);
+        } catch (IllegalArgumentException e) {
+            throw new RemoteException(e.getMessage(), e);
+        }
         String taskId = generateTaskId();
-        resultStore.put(taskId, future);
+        try {
+            resultStore.submit(taskId, task, engine.lane(priority == null ? engine.defaultPriority(taskType) : priority));
+            tasksSubmitted.increment();
+        } catch (RejectedExecutionException e) {
+            tasksRejected.increment();
+            throw new RemoteException("Compute server busy, retry later: " + e.getMessage(), e);
+        }
         return taskId;
     }
 
+    /**
+     * Sorts a file of the file server with {@link ExternalSort}. The sorted file is written through
+     * the file server, so it takes the path lock and version stamp of any other write.
+     * 
+     * @param fileName the file to sort, relative to the file server directory.
+     * @return the name of the sorted file.
+     * @throws IOException if the file cannot be sorted or the sort was cancelled.
+     */
+    private String sortFile(String fileName) throws IOException {
+        Path input = fileServer.resolvePath(fileName);
+        String outputName = fileName + ".sorted";
+        long start = System.nanoTime();
+        AtomicLong count = new AtomicLong();
+        if (fileServer.writeServerFile(outputName, output -> count.set(externalSort.sort(input, output)))) {
+            Log.info("Sorted %d values of %s in %d ms", count.get(), fileName, (System.nanoTime() - start) / 1_000_000);
+        }
+        return outputName;
+    }
+
     /**
      * Retrieves the result of an asynchronous operation identified by the given task ID.
-     * If the task is not yet complete, {@code null} is returned.
+     * If the task is not yet complete, or its result was evicted, {@code null} is returned.
      * 
      * @param taskId {@link String} the unique task ID associated with the asynchronous operation.
      * @return the result of the asynchronous operation, or {@code null} if the task is not yet completed.
@@ -99,14 +446,45 @@ public class ComputeServerImpl extends UnicastRemoteObject implements ComputeSer
         Future<?> future = resultStore.get(taskId);
         if (future != null && future.isDone()) {
             try {
-                return future.get();
-            } catch (InterruptedException | ExecutionException e) {
+                Object result = future.get();
+                resultStore.resultRead(taskId);
+                return result;
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
                 throw new RemoteException("Error getting result", e);
             }
         }
         return null;
     }
 
+    /**
+     * Blocks on the task's {@link Future} until it completes or the timeout elapses, so the result
+     * is returned as soon as it is ready.
+     * 
+     * @param taskId {@link String} the unique task ID associated with the asynchronous operation.
+     * @param timeoutMillis the longest time to wait, capped at {@link #MAX_AWAIT_MILLIS}.
+     * @return the result of the asynchronous operation, or {@code null} if it did not complete in time.
+     * @throws RemoteException if the task ID is unknown or expired, or the operation failed.
+     */
+    @Override
+    public Object awaitResult(String taskId, long timeoutMillis) throws RemoteException {
+        Future<?> future = resultStore.get(taskId);
+        if (future == null) {
+            throw new RemoteException("Unknown or expired task id " + taskId);
+        }
+        try {
+            Object result = future.get(Math.min(Math.max(0, timeoutMillis), MAX_AWAIT_MILLIS), TimeUnit.MILLISECONDS);
+            resultStore.resultRead(taskId);
+            return result;
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting for task " + taskId, e);
+        } catch (ExecutionException | CancellationException e) {
+            throw new RemoteException("Error getting result", e);
+        }
+    }
+
     /**
      * Generates a unique task ID for asynchronous operations.
      * 
@@ -117,9 +495,30 @@ public class ComputeServerImpl extends UnicastRemoteObject implements ComputeSer
     }
 
     /**
-     * Shuts down the executor service, preventing new tasks from being submitted.
+     * @return store of async results, for its hit, miss and eviction counts
+     */
+    public ResultCache getResultStore() {
+        return resultStore;
+    }
+
+    /**
+     * @return metrics of the server; RMI method latencies are recorded when it is exported through {@link MeteredRemote}
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return engine running the async tasks, to register further task types with
+     */
+    public TaskEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Shuts down the task engine, preventing new tasks from being submitted.
      */
     public void shutdown() {
-        executor.shutdown();
+        engine.shutdown();
     }
 }
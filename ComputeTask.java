@@ -0,0 +1,10 @@
+/**
+ * Computation registered with a {@link TaskEngine} under a task type name and run by
+ * {@link ComputeServer#submit(String, java.io.Serializable, TaskPriority)}
+ * @param <A> argument sent by the client
+ * @param <R> result returned to the client, serializable
+ */
+@FunctionalInterface
+public interface ComputeTask<A, R> {
+    R run(A argument) throws Exception;
+}
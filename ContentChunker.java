@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content defined chunking with a gear rolling hash. Chunk boundaries depend only on the bytes
+ * around them, so an insert or delete only changes the chunks it touches and identical regions of
+ * different files produce identical chunks.
+ */
+public class ContentChunker {
+
+    public static final int MIN_CHUNK_SIZE = 2 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * 13 bits set gives an average chunk size of about 8 KB past the minimum
+     */
+    private static final long BOUNDARY_MASK = (1L << 13) - 1;
+
+    /**
+     * Bytes of the file scanned per slice of the {@link MappedFile}
+     */
+    private static final int SCAN_BYTES = 4 * 1024 * 1024;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5EEDC0DEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Position, length and strong hash of one chunk of a file
+     */
+    public static class ChunkRef {
+        private final String hash;
+        private final long offset;
+        private final int length;
+
+        public ChunkRef(String hash, long offset, int length) {
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Splits a file into content defined chunks, see {@link #chunk(MappedFile)}
+     * @param path file to split
+     * @return {@link List} of chunks in file order
+     * @throws IOException
+     */
+    public static List<ChunkRef> chunk(Path path) throws IOException {
+        try (MappedFile file = MappedFile.open(path, MappedFile.DEFAULT_THRESHOLD)) {
+            return chunk(file);
+        } catch (InternalError internalError) {
+            throw MappedFile.changed(internalError);
+        }
+    }
+
+    /**
+     * Splits a file into content defined chunks. The file is scanned and hashed in place, so a
+     * mapped file is never copied into the heap
+     * @param file file to split
+     * @return {@link List} of chunks in file order
+     * @throws IOException
+     */
+    public static List<ChunkRef> chunk(MappedFile file) throws IOException {
+        List<ChunkRef> chunks = new ArrayList<>();
+        MessageDigest digest = newDigest();
+        long offset = 0;
+        int length = 0;
+        long hash = 0;
+        for (long position = 0; position < file.size(); position += SCAN_BYTES) {
+            ByteBuffer view = file.slice(position, (int) Math.min(SCAN_BYTES, file.size() - position));
+            int limit = view.limit();
+            int segmentStart = 0;
+            for (int i = 0; i < limit; i++) {
+                length++;
+                hash = (hash << 1) + GEAR[view.get(i) & 0xff];
+                if ((length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) || length >= MAX_CHUNK_SIZE) {
+                    digest.update(view.limit(i + 1).position(segmentStart));
+                    view.limit(limit);
+                    chunks.add(new ChunkRef(toHex(digest.digest()), offset, length));
+                    segmentStart = i + 1;
+                    offset += length;
+                    length = 0;
+                    hash = 0;
+                }
+            }
+            digest.update(view.position(segmentStart));
+        }
+        if (length > 0) {
+            chunks.add(new ChunkRef(toHex(digest.digest()), offset, length));
+        }
+        return chunks;
+    }
+
+    /**
+     * @param data chunk bytes
+     * @return hex encoded SHA-256 of {@code data}, the key of the chunk in {@link ChunkStore}
+     */
+    public static String hash(byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.io.Serializable;
+
+/**
+ * One step of a delta: either copy a block from the receiver's existing copy or write literal bytes
+ */
+public class DeltaInstruction implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int blockIndex;
+    private final byte[] literal;
+
+    private DeltaInstruction(int blockIndex, byte[] literal) {
+        this.blockIndex = blockIndex;
+        this.literal = literal;
+    }
+
+    /**
+     * @param blockIndex index of the block in the receiver's copy
+     * @return instruction copying that block
+     */
+    public static DeltaInstruction block(int blockIndex) {
+        return new DeltaInstruction(blockIndex, null);
+    }
+
+    /**
+     * @param literal bytes the receiver does not have
+     * @return instruction writing those bytes
+     */
+    public static DeltaInstruction literal(byte[] literal) {
+        return new DeltaInstruction(-1, literal);
+    }
+
+    public boolean isBlock() {
+        return literal == null;
+    }
+
+    public int getBlockIndex() {
+        return blockIndex;
+    }
+
+    public byte[] getLiteral() {
+        return literal;
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.rmi.ServerException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rsync style delta encoding. The receiver sends a {@link BlockSignature} (rolling + strong checksum)
+ * for every block of its copy, the sender slides a window over its own copy and emits a block
+ * reference wherever the window matches a signature and literal bytes everywhere else.
+ */
+public class DeltaSync {
+
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int MOD = 1 << 16;
+
+    /**
+     * Picks a block size of roughly sqrt(fileSize), which keeps both the signature list and
+     * the per-mismatch literal cost small
+     * @param fileSize size of the file being synced
+     * @return block size in bytes
+     */
+    public static int blockSizeFor(long fileSize) {
+        int blockSize = MIN_BLOCK_SIZE;
+        while (blockSize < MAX_BLOCK_SIZE && (long) blockSize * blockSize < fileSize) {
+            blockSize <<= 1;
+        }
+        return blockSize;
+    }
+
+    /**
+     * Computes the signature of every block of a file
+     * @param path file to read
+     * @param blockSize block size in bytes
+     * @return {@link List} of signatures, one per block
+     * @throws IOException
+     */
+    public static List<BlockSignature> computeSignatures(Path path, int blockSize) throws IOException {
+        List<BlockSignature> signatures = new ArrayList<>();
+        MessageDigest digest = newDigest();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(path.toFile()), blockSize)) {
+            byte[] block = new byte[blockSize];
+            int read;
+            int index = 0;
+            while ((read = in.readNBytes(block, 0, blockSize)) > 0) {
+                digest.update(block, 0, read);
+                signatures.add(new BlockSignature(index++, read, weakChecksum(block, 0, read), digest.digest()));
+            }
+        }
+        return signatures;
+    }
+
+    /**
+     * Digest of a whole signature list, which the sender returns with its delta so the receiver can
+     * tell whether its copy is still the one the delta was computed against
+     * @param signatures signatures from {@link #computeSignatures(Path, int)}
+     * @return hex encoded digest
+     */
+    public static String basisDigest(List<BlockSignature> signatures) {
+        MessageDigest digest = newDigest();
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        for (BlockSignature signature : signatures) {
+            digest.update(length.clear().putInt(signature.getLength()).flip());
+            digest.update(signature.getStrong());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @param delta delta from {@link #computeDelta(MappedFile, List, int, long)}
+     * @param signatures signatures the delta was computed against
+     * @return true if the delta references every block of the receiver's copy in order and
+     *         nothing else, so the sender's copy has the same contents
+     */
+    public static boolean isUnchanged(List<DeltaInstruction> delta, List<BlockSignature> signatures) {
+        if (delta.size() != signatures.size()) {
+            return false;
+        }
+        for (int i = 0; i < delta.size(); i++) {
+            if (!delta.get(i).isBlock() || delta.get(i).getBlockIndex() != signatures.get(i).getIndex()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the delta that turns the receiver's copy (described by {@code signatures}) into {@code path},
+     * see {@link #computeDelta(MappedFile, List, int, long)}
+     * @param path sender's copy of the file
+     * @param signatures signatures of the receiver's copy
+     * @param blockSize block size the signatures were computed with
+     * @param maxLiteralBytes upper bound of literal bytes to buffer
+     * @return {@link List} of delta instructions, or {@code null} if a full upload is cheaper
+     * @throws IOException
+     */
+    public static List<DeltaInstruction> computeDelta(Path path, List<BlockSignature> signatures, int blockSize,
+            long maxLiteralBytes) throws IOException {
+        try (MappedFile file = MappedFile.open(path, MappedFile.DEFAULT_THRESHOLD)) {
+            return computeDelta(file, signatures, blockSize, maxLiteralBytes);
+        } catch (InternalError internalError) {
+            throw MappedFile.changed(internalError);
+        }
+    }
+
+    /**
+     * Computes the delta that turns the receiver's copy (described by {@code signatures}) into {@code file}.
+     * The window slides over the file in place; only literal bytes are copied out
+     * @param file sender's copy of the file
+     * @param signatures signatures of the receiver's copy
+     * @param blockSize block size the signatures were computed with
+     * @param maxLiteralBytes upper bound of literal bytes to buffer
+     * @return {@link List} of delta instructions, or {@code null} if more than {@code maxLiteralBytes}
+     *         would have to be sent and a full upload is cheaper
+     * @throws IOException
+     */
+    public static List<DeltaInstruction> computeDelta(MappedFile file, List<BlockSignature> signatures, int blockSize,
+            long maxLiteralBytes) throws IOException {
+        Map<Integer, List<BlockSignature>> index = new HashMap<>();
+        for (BlockSignature signature : signatures) {
+            index.computeIfAbsent(signature.getWeak(), weak -> new ArrayList<>()).add(signature);
+        }
+
+        List<DeltaInstruction> delta = new ArrayList<>();
+        long literalBytes = 0;
+        MessageDigest digest = newDigest();
+
+        long size = file.size();
+        long position = 0;
+        long literalStart = 0;
+        int length = (int) Math.min(blockSize, size);
+        int checksum = weakChecksum(file.slice(position, length));
+        int a = checksum & 0xffff;
+        int b = checksum >>> 16;
+
+        while (length > 0) {
+            BlockSignature match = null;
+            List<BlockSignature> candidates = index.get((b << 16) | a);
+            if (candidates != null) {
+                digest.update(file.slice(position, length));
+                byte[] strong = digest.digest();
+                for (BlockSignature candidate : candidates) {
+                    if (candidate.getLength() == length && Arrays.equals(candidate.getStrong(), strong)) {
+                        match = candidate;
+                        break;
+                    }
+                }
+            }
+
+            if (match != null) {
+                flushLiteral(file, literalStart, position, delta);
+                delta.add(DeltaInstruction.block(match.getIndex()));
+                position += length;
+                literalStart = position;
+                length = (int) Math.min(blockSize, size - position);
+                checksum = weakChecksum(file.slice(position, length));
+                a = checksum & 0xffff;
+                b = checksum >>> 16;
+                continue;
+            }
+
+            if (++literalBytes > maxLiteralBytes) {
+                return null;
+            }
+            int out = file.get(position) & 0xff;
+            if (position + length < size) {
+                int next = file.get(position + length) & 0xff;
+                a = Math.floorMod(a - out + next, MOD);
+                b = Math.floorMod(b - length * out + a, MOD);
+            } else {
+                a = Math.floorMod(a - out, MOD);
+                b = Math.floorMod(b - length * out, MOD);
+                length--;
+            }
+            position++;
+            if (position - literalStart >= blockSize) {
+                flushLiteral(file, literalStart, position, delta);
+                literalStart = position;
+            }
+        }
+        flushLiteral(file, literalStart, position, delta);
+        return delta;
+    }
+
+    /**
+     * Rebuilds a file from the receiver's copy and a delta
+     * @param basis receiver's current copy
+     * @param delta instructions produced by {@link #computeDelta(Path, List, int, long)}
+     * @param blockSize block size the delta was computed with
+     * @param session upload session the rebuilt file is written to
+     * @throws ServerException if an instruction refers to a block the basis does not have
+     * @throws IOException
+     */
+    public static void applyDelta(Path basis, List<DeltaInstruction> delta, int blockSize, UploadSession session)
+            throws IOException {
+        try (FileChannel basisChannel = FileChannel.open(basis, StandardOpenOption.READ)) {
+            long blockCount = (basisChannel.size() + blockSize - 1) / blockSize;
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            for (DeltaInstruction instruction : delta) {
+                if (instruction.isBlock()) {
+                    if (instruction.getBlockIndex() < 0 || instruction.getBlockIndex() >= blockCount) {
+                        throw new ServerException("Block " + instruction.getBlockIndex() + " outside of the " + blockCount
+                                + " blocks of " + basis.getFileName());
+                    }
+                    block.clear();
+                    long position = (long) instruction.getBlockIndex() * blockSize;
+                    while (block.hasRemaining() && basisChannel.read(block, position + block.position()) > 0) {
+                        // keep reading until the block is full or the basis ends
+                    }
+                    block.flip();
+                    session.write(block);
+                } else {
+                    session.write(instruction.getLiteral());
+                }
+            }
+        }
+    }
+
+    /**
+     * Rsync rolling checksum of a byte range
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a = (a + (data[offset + i] & 0xff)) % MOD;
+            b = (b + (length - i) * (data[offset + i] & 0xff)) % MOD;
+        }
+        return (b << 16) | a;
+    }
+
+    /**
+     * Rsync rolling checksum of the remaining bytes of a buffer
+     */
+    static int weakChecksum(ByteBuffer data) {
+        int a = 0;
+        int b = 0;
+        int length = data.remaining();
+        for (int i = 0; i < length; i++) {
+            int value = data.get(data.position() + i) & 0xff;
+            a = (a + value) % MOD;
+            b = (b + (length - i) * value) % MOD;
+        }
+        return (b << 16) | a;
+    }
+
+    /**
+     * Adds the bytes between {@code start} and {@code end} as a literal instruction
+     */
+    private static void flushLiteral(MappedFile file, long start, long end, List<DeltaInstruction> delta) throws IOException {
+        if (end > start) {
+            byte[] literal = new byte[(int) (end - start)];
+            file.read(start, literal, 0, literal.length);
+            delta.add(DeltaInstruction.literal(literal));
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
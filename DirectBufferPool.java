@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed size pool of direct buffers used on the server write path. Writing a heap buffer to a
+ * {@link FileChannel} makes the JDK copy it into a temporary direct buffer sized to the write, so
+ * each RMI thread would otherwise cache its own chunk sized direct buffer; going through the pool
+ * keeps the direct memory used for writes bounded and reused.
+ */
+public class DirectBufferPool {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private static final DirectBufferPool SHARED = new DirectBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    /**
+     * @param bufferSize capacity of each buffer
+     * @param maxPooled buffers kept for reuse; more may be handed out, but extra ones are dropped on release
+     */
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * @return pool shared by all upload sessions of the server
+     */
+    public static DirectBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return a cleared direct buffer, to be handed back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool
+     * @param buffer buffer obtained from {@link #acquire()}
+     */
+    public void release(ByteBuffer buffer) {
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Writes a byte range at the channel's position, copying it through a pooled direct buffer
+     * @param channel file to write
+     * @param data bytes to write
+     * @param offset start of the range
+     * @param length length of the range
+     * @return bytes written
+     * @throws IOException
+     */
+    public long write(FileChannel channel, byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            int end = offset + length;
+            for (int position = offset; position < end; position += buffer.capacity()) {
+                buffer.clear();
+                buffer.put(data, position, Math.min(buffer.capacity(), end - position));
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            return length;
+        } finally {
+            release(buffer);
+        }
+    }
+}
@@ -1,49 +1,244 @@
-import java.nio.file.*;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 /**
- * Utility class which performs periodic scan on a directory for file changes
+ * Long lived watcher for a directory tree. One {@link WatchService} is kept for the lifetime of the
+ * watcher, subdirectories are registered as they appear and events for regular files are streamed
+ * to a consumer with absolute paths.
+ * <p>
+ * The watcher keeps the size and modification time of every file it has seen. When the
+ * {@link WatchService} reports {@code OVERFLOW} (events were dropped), the tree is rescanned and
+ * the differences against that snapshot are reported as create, modify and delete events.
+ * Files matching the {@code excluded} filter, such as the client's own index, are never reported.
  */
-public class DirectoryWatcher {
+public class DirectoryWatcher implements Closeable {
 
-    private final String directoryPath;
+    private final Path root;
     private final Integer timeOut;
+    private final WatchService watchService;
+    private final Predicate<Path> excluded;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+    private final Set<Path> registeredDirs = new HashSet<>();
+    private final Map<Path, FileState> snapshot = new ConcurrentHashMap<>();
+    private volatile boolean closed;
 
-    public DirectoryWatcher(String directoryPath, int timeout) {
-        this.directoryPath = directoryPath;
+    private static final class FileState {
+        private final long size;
+        private final long modifiedAt;
+
+        private FileState(BasicFileAttributes attributes) {
+            this.size = attributes.size();
+            this.modifiedAt = attributes.lastModifiedTime().toMillis();
+        }
+
+        private boolean sameAs(FileState other) {
+            return other != null && size == other.size && modifiedAt == other.modifiedAt;
+        }
+    }
+
+    /**
+     * Opens the {@link WatchService} and registers the directory tree
+     * @param directoryPath root directory to watch
+     * @param timeout seconds to wait for events before reporting the directory idle
+     * @throws IOException
+     */
+    public DirectoryWatcher(String directoryPath, int timeout) throws IOException {
+        this(directoryPath, timeout, path -> false);
+    }
+
+    /**
+     * Opens the {@link WatchService} and registers the directory tree
+     * @param directoryPath root directory to watch
+     * @param timeout seconds to wait for events before reporting the directory idle
+     * @param excluded files that are ignored
+     * @throws IOException
+     */
+    public DirectoryWatcher(String directoryPath, int timeout, Predicate<Path> excluded) throws IOException {
+        this.root = Paths.get(directoryPath).toAbsolutePath().normalize();
         this.timeOut = timeout;
+        this.excluded = excluded;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        registerTree(root, null);
+        System.out.println("Watching directory: " + root + " (" + watchedDirs.size() + " directories, "
+                + snapshot.size() + " files)");
     }
 
-    public List<WatchEvent<?>> watch() {
-        Path path = Paths.get(directoryPath);
+    /**
+     * @return absolute root of the watched tree
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Streams events until the watcher is closed or the thread is interrupted
+     * @param consumer receives the event kind and the absolute path of the affected file
+     * @param onIdle invoked whenever {@code timeOut} seconds pass without events
+     */
+    public void watch(BiConsumer<WatchEvent.Kind<?>, Path> consumer, Runnable onIdle) {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.poll(timeOut, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+
+            if (key == null) {
+                onIdle.run();
+                continue;
+            }
+
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    rescan(consumer);
+                    continue;
+                }
+                handleEvent(event.kind(), dir.resolve((Path) event.context()), consumer);
+            }
 
-        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
-            path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
-                    StandardWatchEventKinds.ENTRY_DELETE,
-                    StandardWatchEventKinds.ENTRY_MODIFY);
+            if (!key.reset()) {
+                registeredDirs.remove(watchedDirs.remove(key));
+            }
+        }
+    }
 
-            System.out.println("Watching directory: " + path);
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watchService.close();
+    }
 
-            WatchKey key = watchService.poll(timeOut, TimeUnit.SECONDS);
+    private void handleEvent(WatchEvent.Kind<?> kind, Path path, BiConsumer<WatchEvent.Kind<?>, Path> consumer) {
+        if (excluded.test(path)) {
+            return;
+        }
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            if (snapshot.remove(path) != null) {
+                consumer.accept(kind, path);
+            } else {
+                // a directory was removed or moved away, report every file we knew below it
+                Iterator<Path> iterator = snapshot.keySet().iterator();
+                while (iterator.hasNext()) {
+                    Path known = iterator.next();
+                    if (known.startsWith(path)) {
+                        iterator.remove();
+                        consumer.accept(kind, known);
+                    }
+                }
+            }
+            return;
+        }
 
-            if (key != null) {
-                List<WatchEvent<?>> events = new ArrayList<>(key.pollEvents());
+        BasicFileAttributes attributes = readAttributes(path);
+        if (attributes == null) {
+            return;
+        }
+        if (attributes.isDirectory()) {
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                // files may land in the new directory before it is registered
+                registerTree(path, consumer);
+            }
+            return;
+        }
+        snapshot.put(path, new FileState(attributes));
+        consumer.accept(kind, path);
+    }
 
-                boolean valid = key.reset();
-                if (!valid) {
-                    return null;
+    /**
+     * Registers every directory below {@code start} and records its files. When {@code consumer}
+     * is not null, files not in the snapshot are reported as created
+     */
+    private void registerTree(Path start, BiConsumer<WatchEvent.Kind<?>, Path> consumer) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                    if (registeredDirs.add(dir)) {
+                        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                        watchedDirs.put(key, dir);
+                    }
+                    return FileVisitResult.CONTINUE;
                 }
 
-                return events;
-            } 
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && !excluded.test(file)) {
+                        FileState previous = snapshot.put(file, new FileState(attributes));
+                        if (consumer != null && previous == null) {
+                            consumer.accept(StandardWatchEventKinds.ENTRY_CREATE, file);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
 
-        } catch (IOException | InterruptedException e) {
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exception) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * Walks the whole tree after events were dropped and reports what changed since the snapshot
+     */
+    private void rescan(BiConsumer<WatchEvent.Kind<?>, Path> consumer) {
+        System.out.println("Watch events overflowed, rescanning " + root);
+        Map<Path, FileState> previous = new HashMap<>(snapshot);
+        snapshot.clear();
+        registerTree(root, null);
+
+        for (Map.Entry<Path, FileState> entry : snapshot.entrySet()) {
+            FileState before = previous.remove(entry.getKey());
+            if (before == null) {
+                consumer.accept(StandardWatchEventKinds.ENTRY_CREATE, entry.getKey());
+            } else if (!entry.getValue().sameAs(before)) {
+                consumer.accept(StandardWatchEventKinds.ENTRY_MODIFY, entry.getKey());
+            }
+        }
+        for (Path deleted : previous.keySet()) {
+            consumer.accept(StandardWatchEventKinds.ENTRY_DELETE, deleted);
+        }
+    }
 
-        return null;
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 }
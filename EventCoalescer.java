@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Sits between {@link DirectoryWatcher} and the sync call. Events are merged per path until the
+ * path has been quiet for {@code quietWindowMillis} and, for creates and modifies, until the file's
+ * size and modification time stop changing. Only then is one operation dispatched per path.
+ * <p>
+ * Merge rules: create + modify is a create, create + delete cancels out, delete + create is a
+ * modify (the server still holds the old copy) and anything followed by a delete is a delete.
+ */
+public class EventCoalescer {
+
+    private final long quietWindowMillis;
+    private final BiConsumer<WatchEvent.Kind<?>, Path> dispatcher;
+    private final Map<Path, PendingEvent> pending = new LinkedHashMap<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+
+    private final LongAdder eventsReceived = new LongAdder();
+    private final LongAdder operationsDispatched = new LongAdder();
+
+    private static class PendingEvent {
+        private WatchEvent.Kind<?> kind;
+        private long lastEventAt;
+        private long size = -1;
+        private long modifiedAt = -1;
+    }
+
+    /**
+     * @param quietWindowMillis time a path has to go without events before it is dispatched
+     * @param dispatcher receives the merged operation kind and the affected path
+     */
+    public EventCoalescer(long quietWindowMillis, BiConsumer<WatchEvent.Kind<?>, Path> dispatcher) {
+        this.quietWindowMillis = quietWindowMillis;
+        this.dispatcher = dispatcher;
+        long tickMillis = Math.max(10, quietWindowMillis / 2);
+        ticker.scheduleWithFixedDelay(this::dispatchReady, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a watch event for a path
+     * @param kind {@link StandardWatchEventKinds} kind of the event
+     * @param path affected path
+     */
+    public synchronized void submit(WatchEvent.Kind<?> kind, Path path) {
+        eventsReceived.increment();
+        PendingEvent event = pending.get(path);
+        if (event == null) {
+            event = new PendingEvent();
+            event.kind = kind;
+            pending.put(path, event);
+        } else {
+            WatchEvent.Kind<?> merged = merge(event.kind, kind);
+            if (merged == null) {
+                pending.remove(path);
+                return;
+            }
+            event.kind = merged;
+        }
+        event.lastEventAt = System.currentTimeMillis();
+        if (event.kind != StandardWatchEventKinds.ENTRY_DELETE) {
+            BasicFileAttributes attributes = readAttributes(path);
+            if (attributes != null) {
+                event.size = attributes.size();
+                event.modifiedAt = attributes.lastModifiedTime().toMillis();
+            }
+        }
+    }
+
+    /**
+     * @return number of watch events submitted
+     */
+    public long getEventsReceived() {
+        return eventsReceived.sum();
+    }
+
+    /**
+     * @return number of operations handed to the dispatcher
+     */
+    public long getOperationsDispatched() {
+        return operationsDispatched.sum();
+    }
+
+    /**
+     * Stops the dispatch timer. Pending events are dropped
+     */
+    public void shutdown() {
+        ticker.shutdown();
+    }
+
+    /**
+     * @return the kind of the merged event, or {@code null} if the two events cancel out
+     */
+    private static WatchEvent.Kind<?> merge(WatchEvent.Kind<?> previous, WatchEvent.Kind<?> next) {
+        if (next == StandardWatchEventKinds.ENTRY_DELETE) {
+            return previous == StandardWatchEventKinds.ENTRY_CREATE ? null : next;
+        }
+        if (previous == StandardWatchEventKinds.ENTRY_CREATE) {
+            return previous;
+        }
+        return StandardWatchEventKinds.ENTRY_MODIFY;
+    }
+
+    private void dispatchReady() {
+        List<Map.Entry<Path, WatchEvent.Kind<?>>> ready = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<Path, PendingEvent>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Path, PendingEvent> entry = iterator.next();
+                PendingEvent event = entry.getValue();
+                if (now - event.lastEventAt < quietWindowMillis) {
+                    continue;
+                }
+                if (event.kind != StandardWatchEventKinds.ENTRY_DELETE) {
+                    BasicFileAttributes attributes = readAttributes(entry.getKey());
+                    if (attributes == null) {
+                        // the file vanished without a delete event reaching us yet
+                        if (event.kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                            iterator.remove();
+                            continue;
+                        }
+                        event.kind = StandardWatchEventKinds.ENTRY_DELETE;
+                    } else if (attributes.size() != event.size || attributes.lastModifiedTime().toMillis() != event.modifiedAt) {
+                        // still being written, wait for another quiet window
+                        event.size = attributes.size();
+                        event.modifiedAt = attributes.lastModifiedTime().toMillis();
+                        event.lastEventAt = now;
+                        continue;
+                    }
+                }
+                ready.add(Map.entry(entry.getKey(), event.kind));
+                iterator.remove();
+            }
+        }
+        for (Map.Entry<Path, WatchEvent.Kind<?>> entry : ready) {
+            operationsDispatched.increment();
+            try {
+                dispatcher.accept(entry.getValue(), entry.getKey());
+            } catch (RuntimeException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * External merge sort of a binary file of big-endian 32-bit ints, as written by
+ * {@link java.io.DataOutputStream#writeInt(int)}, for files larger than the heap. The input is
+ * memory-mapped one run at a time; each run is copied to an {@code int[]}, sorted with
+ * {@link Arrays#parallelSort(int[])} across all cores and written to a mapped run file. The runs
+ * are then k-way merged through mapped views into the output, in several passes if there are more
+ * than {@link #MAX_FAN_IN} of them. Heap use is one run plus the merge output buffer. A sort
+ * whose thread is interrupted stops at the next run or output buffer and removes its files.
+ */
+public class ExternalSort {
+
+    /**
+     * Directory (relative to the server directory) holding the runs of sorts in progress
+     */
+    public static final String TEMP_DIR_NAME = ".sort";
+
+    public static final int DEFAULT_RUN_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Runs merged in one pass, bounding the number of open mappings
+     */
+    private static final int MAX_FAN_IN = 128;
+
+    private static final int OUTPUT_BUFFER_BYTES = 1024 * 1024;
+
+    private final Path tempDir;
+    private final int runInts;
+
+    /**
+     * @param tempDir directory for run files, created if missing
+     * @param runBytes bytes of input sorted in memory at a time
+     * @throws IOException
+     */
+    public ExternalSort(Path tempDir, int runBytes) throws IOException {
+        this.tempDir = Files.createDirectories(tempDir);
+        this.runInts = Math.max(1, runBytes / Integer.BYTES);
+    }
+
+    /**
+     * Sorts {@code input} into {@code output}, which is replaced atomically once complete
+     * @param input file of big-endian ints
+     * @param output sorted file to create
+     * @return number of values sorted
+     * @throws IOException if the input is not a whole number of ints or cannot be read
+     */
+    public long sort(Path input, Path output) throws IOException {
+        List<Path> runs = new ArrayList<>();
+        Path sorted = Files.createTempFile(tempDir, "sorted", ".part");
+        try {
+            long count;
+            try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+                long size = in.size();
+                if (size % Integer.BYTES != 0) {
+                    throw new IOException(input + " is not a file of 32-bit ints: " + size + " bytes");
+                }
+                count = size / Integer.BYTES;
+                int[] run = new int[(int) Math.min(runInts, Math.max(1, count))];
+                for (long start = 0; start < count; start += run.length) {
+                    checkInterrupted();
+                    int length = (int) Math.min(run.length, count - start);
+                    in.map(FileChannel.MapMode.READ_ONLY, start * Integer.BYTES, (long) length * Integer.BYTES)
+                            .asIntBuffer().get(run, 0, length);
+                    Arrays.parallelSort(run, 0, length);
+                    // a single run is the output already
+                    Path runFile = count <= run.length ? sorted : Files.createTempFile(tempDir, "run", ".part");
+                    if (runFile != sorted) {
+                        runs.add(runFile);
+                    }
+                    writeRun(runFile, run, length);
+                }
+            }
+            while (runs.size() > MAX_FAN_IN) {
+                List<Path> merged = new ArrayList<>();
+                try {
+                    for (int from = 0; from < runs.size(); from += MAX_FAN_IN) {
+                        List<Path> group = runs.subList(from, Math.min(runs.size(), from + MAX_FAN_IN));
+                        Path runFile = Files.createTempFile(tempDir, "run", ".part");
+                        merged.add(runFile);
+                        merge(group, runFile);
+                    }
+                } catch (IOException ioException) {
+                    deleteAll(merged);
+                    throw ioException;
+                }
+                deleteAll(runs);
+                runs = merged;
+            }
+            if (!runs.isEmpty()) {
+                merge(runs, sorted);
+            }
+            Files.move(sorted, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return count;
+        } finally {
+            deleteAll(runs);
+            Files.deleteIfExists(sorted);
+        }
+    }
+
+    /**
+     * Removes run files left behind by sorts cut off by a restart
+     * @throws IOException
+     */
+    public void clearTempDir() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(tempDir)) {
+            files = stream.collect(Collectors.toList());
+        }
+        deleteAll(files);
+    }
+
+    private static void writeRun(Path runFile, int[] run, int length) throws IOException {
+        try (FileChannel out = FileChannel.open(runFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (length > 0) {
+                out.map(FileChannel.MapMode.READ_WRITE, 0, (long) length * Integer.BYTES).asIntBuffer().put(run, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Cursor over one mapped run during a merge
+     */
+    private static final class RunCursor {
+        private final IntBuffer values;
+        private int head;
+
+        private RunCursor(MappedByteBuffer mapped) {
+            this.values = mapped.asIntBuffer();
+        }
+
+        private boolean advance() {
+            if (!values.hasRemaining()) {
+                return false;
+            }
+            head = values.get();
+            return true;
+        }
+    }
+
+    private static void merge(List<Path> runs, Path output) throws IOException {
+        PriorityQueue<RunCursor> heap = new PriorityQueue<>(runs.size(), (a, b) -> Integer.compare(a.head, b.head));
+        for (Path run : runs) {
+            try (FileChannel channel = FileChannel.open(run, StandardOpenOption.READ)) {
+                // the mapping stays valid after the channel is closed
+                RunCursor cursor = new RunCursor(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                if (cursor.advance()) {
+                    heap.add(cursor);
+                }
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_BYTES);
+        IntBuffer values = buffer.asIntBuffer();
+        checkInterrupted();
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (!heap.isEmpty()) {
+                RunCursor cursor = heap.poll();
+                values.put(cursor.head);
+                if (!values.hasRemaining()) {
+                    flush(out, buffer, values);
+                    checkInterrupted();
+                }
+                if (cursor.advance()) {
+                    heap.add(cursor);
+                }
+            }
+            flush(out, buffer, values);
+        }
+    }
+
+    private static void flush(FileChannel out, ByteBuffer buffer, IntBuffer values) throws IOException {
+        buffer.clear().limit(values.position() * Integer.BYTES);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        values.clear();
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Sort cancelled");
+        }
+    }
+
+    private static void deleteAll(List<Path> files) throws IOException {
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
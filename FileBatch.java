@@ -0,0 +1,140 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of small file uploads and deletes packed into one byte array for
+ * {@link FileServer#applyBatch(byte[])}. Each operation is encoded as a type byte, the file name
+ * and, for uploads, the length and contents of the file.
+ */
+public class FileBatch {
+
+    public static final byte UPLOAD = 0;
+    public static final byte DELETE = 1;
+
+    /**
+     * One decoded operation of a batch
+     */
+    public static class Operation {
+        private final byte type;
+        private final String fileName;
+        private final byte[] data;
+
+        public Operation(byte type, String fileName, byte[] data) {
+            this.type = type;
+            this.fileName = fileName;
+            this.data = data;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private int operationCount;
+
+    /**
+     * Appends an upload of a whole file
+     * @param fileName name of the file on the server
+     * @param data file contents
+     */
+    public void addUpload(String fileName, byte[] data) {
+        try {
+            out.writeByte(UPLOAD);
+            out.writeUTF(fileName);
+            out.writeInt(data.length);
+            out.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        operationCount++;
+    }
+
+    /**
+     * Appends a delete
+     * @param fileName name of the file on the server
+     */
+    public void addDelete(String fileName) {
+        try {
+            out.writeByte(DELETE);
+            out.writeUTF(fileName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        operationCount++;
+    }
+
+    public int getOperationCount() {
+        return operationCount;
+    }
+
+    public boolean isEmpty() {
+        return operationCount == 0;
+    }
+
+    /**
+     * @return encoded size of the batch in bytes
+     */
+    public int getSizeBytes() {
+        return buffer.size();
+    }
+
+    /**
+     * @return the encoded batch
+     */
+    public byte[] toByteArray() {
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Empties the batch so it can be reused
+     */
+    public void reset() {
+        buffer.reset();
+        operationCount = 0;
+    }
+
+    /**
+     * Decodes a batch produced by {@link #toByteArray()}
+     * @param payload encoded batch
+     * @return {@link List} of operations in order
+     * @throws IOException if the payload is malformed
+     */
+    public static List<Operation> decode(byte[] payload) throws IOException {
+        List<Operation> operations = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            int type;
+            while ((type = in.read()) >= 0) {
+                String fileName = in.readUTF();
+                if (type == UPLOAD) {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    operations.add(new Operation(UPLOAD, fileName, data));
+                } else if (type == DELETE) {
+                    operations.add(new Operation(DELETE, fileName, null));
+                } else {
+                    throw new IOException("Unknown batch operation " + type);
+                }
+            }
+        } catch (EOFException | NegativeArraySizeException e) {
+            throw new IOException("Truncated batch", e);
+        }
+        return operations;
+    }
+}
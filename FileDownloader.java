@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Client side of {@link FileServer#readRange(String, long, int)}. A file is split into ranges that
+ * are fetched over {@code parallelStreams} concurrent RMI calls and written at their offsets into a
+ * temp file next to the target, which is moved into place once every range has arrived.
+ */
+public class FileDownloader {
+
+    /**
+     * Suffix of temp files holding downloads in progress
+     */
+    public static final String TEMP_SUFFIX = ".download";
+
+    private final FileServer fileServer;
+    private final int rangeSize;
+    private final ExecutorService streams;
+
+    /**
+     * @param fileServer FileServer obj. This is a rmi object
+     * @param rangeSize bytes fetched per call, capped at {@link FileServer#MAX_READ_LENGTH}
+     * @param parallelStreams number of ranges fetched at the same time
+     */
+    public FileDownloader(FileServer fileServer, int rangeSize, int parallelStreams) {
+        this.fileServer = fileServer;
+        this.rangeSize = Math.min(rangeSize, FileServer.MAX_READ_LENGTH);
+        this.streams = Executors.newFixedThreadPool(parallelStreams);
+    }
+
+    /**
+     * @param path local file
+     * @return true if {@code path} is the temp file of a download in progress
+     */
+    public static boolean isTempFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * Downloads a file and gives it the server's modification time
+     * @param file metadata from {@link FileServer#listFiles()}
+     * @param target local file to create or replace
+     * @throws IOException if a range cannot be fetched or written
+     */
+    public void download(FileInfo file, Path target) throws IOException {
+        Path parent = Files.createDirectories(target.toAbsolutePath().getParent());
+        Path temp = parent.resolve("." + target.getFileName() + TEMP_SUFFIX);
+        List<Future<?>> ranges = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (long offset = 0; offset < file.getSize(); offset += rangeSize) {
+                long rangeOffset = offset;
+                int length = (int) Math.min(rangeSize, file.getSize() - offset);
+                ranges.add(streams.submit(() -> {
+                    fetchRange(file.getFileName(), channel, rangeOffset, length);
+                    return null;
+                }));
+            }
+            for (Future<?> range : ranges) {
+                range.get();
+            }
+            channel.force(false);
+        } catch (InterruptedException | ExecutionException exception) {
+            for (Future<?> range : ranges) {
+                range.cancel(true);
+            }
+            Files.deleteIfExists(temp);
+            if (exception instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            Throwable cause = exception.getCause() != null ? exception.getCause() : exception;
+            throw cause instanceof IOException ? (IOException) cause
+                    : new IOException("Error downloading " + file.getFileName(), cause);
+        }
+        Files.setLastModifiedTime(temp, FileTime.fromMillis(file.getLastModified()));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Stops the download threads
+     */
+    public void shutdown() {
+        streams.shutdown();
+    }
+
+    private void fetchRange(String fileName, FileChannel channel, long offset, int length) throws IOException {
+        byte[] data = fileServer.readRange(fileName, offset, length);
+        if (data.length != length) {
+            throw new IOException(fileName + " changed on the server during download");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+}
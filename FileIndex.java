@@ -0,0 +1,242 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent record of the size, modification time and content hash of a set of files, keyed by
+ * file name. Stored as an append only log of put and remove records and loaded into memory on
+ * open; the log is rewritten once it holds mostly stale records.
+ * <p>
+ * A torn record at the end of the log, left by a crash, is dropped on open. Appends are not
+ * forced, so the index suits state that can be recomputed: a lost record only means the file is
+ * hashed again.
+ */
+public class FileIndex implements Closeable {
+
+    private static final byte PUT = 0;
+    private static final byte REMOVE = 1;
+
+    /**
+     * Log size, in records, below which the log is never compacted
+     */
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    /**
+     * Recorded state of one file
+     */
+    public static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+
+        public Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return true if a file with this size and modification time is unchanged since it was recorded
+         */
+        public boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    private final Path indexFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private FileChannel channel;
+    private int records;
+
+    /**
+     * Loads an index, creating an empty one if there is none
+     * @param indexFile file holding the log
+     * @throws IOException
+     */
+    public FileIndex(Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+        long validBytes = load();
+        this.channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > validBytes) {
+            System.out.println("Dropping torn record at the end of " + indexFile);
+            channel.truncate(validBytes);
+        }
+        channel.position(validBytes);
+    }
+
+    /**
+     * @return copy of all entries, keyed by file name
+     */
+    public synchronized Map<String, Entry> entries() {
+        return new HashMap<>(entries);
+    }
+
+    /**
+     * @param fileName file name
+     * @return recorded state of the file, or null if there is none
+     */
+    public synchronized Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    /**
+     * Records the state of a file
+     * @param fileName file name
+     * @param entry state of the file
+     * @throws IOException
+     */
+    public synchronized void put(String fileName, Entry entry) throws IOException {
+        entries.put(fileName, entry);
+        append(PUT, fileName, entry);
+    }
+
+    /**
+     * Forgets a file
+     * @param fileName file name
+     * @throws IOException
+     */
+    public synchronized void remove(String fileName) throws IOException {
+        if (entries.remove(fileName) != null) {
+            append(REMOVE, fileName, null);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    private void append(byte type, String fileName, Entry entry) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(encode(type, fileName, entry));
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        records++;
+        if (records >= MIN_COMPACT_RECORDS && records > 2 * entries.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the log with one put record per live entry
+     */
+    private void compact() throws IOException {
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                ByteBuffer record = ByteBuffer.wrap(encode(PUT, entry.getKey(), entry.getValue()));
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            out.force(false);
+        }
+        channel.close();
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(indexFile, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        records = entries.size();
+    }
+
+    /**
+     * Replays the log into {@code entries}
+     * @return length of the log up to the last complete record
+     */
+    private long load() throws IOException {
+        if (!Files.exists(indexFile)) {
+            return 0;
+        }
+        long validBytes = 0;
+        try (FileChannel in = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Channels.newInputStream(in)));
+            DataInputStream data = new DataInputStream(counter);
+            while (true) {
+                try {
+                    byte type = data.readByte();
+                    String fileName = data.readUTF();
+                    if (type == PUT) {
+                        entries.put(fileName, new Entry(data.readLong(), data.readLong(), data.readUTF()));
+                    } else if (type == REMOVE) {
+                        entries.remove(fileName);
+                    } else {
+                        break;
+                    }
+                } catch (EOFException | UTFDataFormatException e) {
+                    break;
+                }
+                records++;
+                validBytes = counter.count;
+            }
+        }
+        return validBytes;
+    }
+
+    private static byte[] encode(byte type, String fileName, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(fileName);
+        if (type == PUT) {
+            out.writeLong(entry.getSize());
+            out.writeLong(entry.getLastModified());
+            out.writeUTF(entry.getHash());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
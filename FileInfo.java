@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Metadata of one file as listed by {@link FileServer#listFiles()}. Both sides hash files with
+ * {@link #contentHash(Path)}, so equal hashes mean a file does not need to be transferred.
+ */
+public class FileInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Files from this size are hashed through memory mapped regions rather than read into a buffer
+     */
+    private static final long MIN_MAPPED_BYTES = 1024 * 1024;
+
+    /**
+     * Bytes mapped at a time, which bounds the address space one hash holds
+     */
+    private static final long MAPPED_REGION_BYTES = 64L * 1024 * 1024;
+
+    private final String fileName;
+    private final long size;
+    private final long lastModified;
+    private final String hash;
+
+    public FileInfo(String fileName, long size, long lastModified, String hash) {
+        this.fileName = fileName;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return modification time in milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Hashes the contents of a file with CRC32C, which is cheap enough to run over whole directories
+     * @param path file to hash
+     * @return hash as 8 hex digits
+     * @throws IOException
+     */
+    public static String contentHash(Path path) throws IOException {
+        return contentHash(path, Long.MAX_VALUE);
+    }
+
+    /**
+     * Hashes the first {@code length} bytes of a file, or the whole file if it is shorter. Large
+     * files are mapped and hashed in place, so the bytes are never copied out of the page cache;
+     * CRC32C runs on the CPU's CRC instructions, so hashing keeps up with reading
+     * @param path file to hash
+     * @param length number of bytes to hash
+     * @return hash as 8 hex digits
+     * @throws IOException
+     */
+    public static String contentHash(Path path, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = Math.min(length, channel.size());
+            if (size >= MIN_MAPPED_BYTES) {
+                hashMapped(channel, size, crc);
+            } else {
+                hashRead(channel, length, crc);
+            }
+        }
+        return formatHash(crc);
+    }
+
+    private static void hashMapped(FileChannel channel, long size, CRC32C crc) throws IOException {
+        try {
+            for (long position = 0; position < size; position += MAPPED_REGION_BYTES) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_REGION_BYTES, size - position)));
+            }
+        } catch (InternalError internalError) {
+            // the JVM reports a file truncated under a mapping as an InternalError
+            throw new IOException("File changed while hashing", internalError);
+        }
+    }
+
+    private static void hashRead(FileChannel channel, long length, CRC32C crc) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            if (channel.read(buffer) <= 0) {
+                break;
+            }
+            buffer.flip();
+            remaining -= buffer.remaining();
+            crc.update(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Hashes bytes already in memory, giving the same result as {@link #contentHash(Path)} on a file
+     * holding them
+     * @param data file contents
+     * @return hash as 8 hex digits
+     */
+    public static String contentHash(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return formatHash(crc);
+    }
+
+    /**
+     * @param crc checksum of some bytes
+     * @return the checksum in the format of {@link #contentHash(Path)}
+     */
+    public static String formatHash(CRC32C crc) {
+        // the checksum fits in 32 bits; avoids String.format, which dominates hashing small files
+        String hex = Integer.toHexString((int) crc.getValue());
+        return "00000000".substring(hex.length()) + hex;
+    }
+}
@@ -1,11 +1,167 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
- * API for File Server, supports upload and delete file
+ * API for File Server, supports upload, download and delete file.
+ * <p>
+ * Large files should be sent through an upload session ({@link #openUpload(String)},
+ * {@link #writeChunk(String, byte[])}, {@link #commitUpload(String)}) so that neither side
+ * has to hold the whole file in memory. Uncompressed sessions survive dropped connections and
+ * server restarts: the client asks for {@link #getUploadStatus(String)} and continues from the
+ * returned offset with {@link #writeChunk(String, long, byte[])}. The data of a session may instead be sent over the bulk
+ * transfer socket, see {@link #getBulkPort()}.
  */
 public interface FileServer extends Remote {
     void uploadFile(byte[] file, String fileName) throws RemoteException;
 
     void delete(String fileName) throws RemoteException;
+
+    /**
+     * Opens a new upload session for {@code fileName}
+     * @param fileName name of the file to create on the server
+     * @return upload id to pass to {@link #writeChunk(String, byte[])} and {@link #commitUpload(String)}
+     */
+    String openUpload(String fileName) throws RemoteException;
+
+    /**
+     * Opens a new upload session whose chunks are encoded with {@code codec}. For
+     * {@link TransferCodec#DEFLATE} the chunks together form one deflate stream
+     * @param fileName name of the file to create on the server
+     * @param codec encoding of the chunks, see {@link TransferCodec#probe(java.nio.file.Path)}
+     * @return upload id to pass to {@link #writeChunk(String, byte[])} and {@link #commitUpload(String)}
+     */
+    String openUpload(String fileName, TransferCodec codec) throws RemoteException;
+
+    /**
+     * Opens a new upload session and reserves the decoded size of the file up front
+     * @param fileName name of the file to create on the server
+     * @param codec encoding of the chunks
+     * @param expectedSize decoded size of the file, 0 if unknown
+     * @return upload id to pass to {@link #writeChunk(String, byte[])} and {@link #commitUpload(String)}
+     */
+    String openUpload(String fileName, TransferCodec codec, long expectedSize) throws RemoteException;
+
+    /**
+     * @return port of the bulk transfer side channel, see {@link BulkTransferServer}, or 0 if it is disabled
+     */
+    int getBulkPort() throws RemoteException;
+
+    /**
+     * Appends a chunk to an open upload session
+     * @param uploadId id returned by {@link #openUpload(String)}
+     * @param chunk next chunk of the file
+     */
+    void writeChunk(String uploadId, byte[] chunk) throws RemoteException;
+
+    /**
+     * Appends a chunk to an open upload session if the session has received exactly {@code offset}
+     * bytes, so resending a chunk whose reply was lost is rejected instead of appended twice
+     * @param uploadId id returned by {@link #openUpload(String)}
+     * @param offset position of the chunk in the data sent for this session
+     * @param chunk next chunk of the file
+     */
+    void writeChunk(String uploadId, long offset, byte[] chunk) throws RemoteException;
+
+    /**
+     * @param uploadId id returned by {@link #openUpload(String)}
+     * @return offset to continue from and hash of the data received, or null if the session is
+     *         unknown, for example because it was committed or aborted
+     */
+    UploadStatus getUploadStatus(String uploadId) throws RemoteException;
+
+    /**
+     * Completes the upload and atomically replaces the target file
+     * @param uploadId id returned by {@link #openUpload(String)}
+     */
+    void commitUpload(String uploadId) throws RemoteException;
+
+    /**
+     * Discards an upload session and its partial data
+     * @param uploadId id returned by {@link #openUpload(String)}
+     */
+    void abortUpload(String uploadId) throws RemoteException;
+
+    /**
+     * Returns the block signatures of the server's copy of a file, see {@link DeltaSync}
+     * @param fileName file to describe
+     * @param blockSize block size in bytes
+     * @return {@link List} of block signatures, empty if the server has no copy
+     */
+    List<BlockSignature> getSignatures(String fileName, int blockSize) throws RemoteException;
+
+    /**
+     * Rebuilds a file from the server's current copy and a delta computed against {@link #getSignatures(String, int)}
+     * @param fileName file to rebuild
+     * @param blockSize block size the delta was computed with
+     * @param basisDigest {@link DeltaSync#basisDigest(List)} of the signatures the delta was computed against
+     * @param delta block references and literal bytes
+     * @return false if the server's copy changed since the signatures were taken and the file has to
+     *         be uploaded in full
+     */
+    boolean applyDelta(String fileName, int blockSize, String basisDigest, List<DeltaInstruction> delta) throws RemoteException;
+
+    /**
+     * Asks which chunks of a file the server's chunk store does not hold, see {@link ContentChunker}
+     * @param chunkHashes hashes of the file's chunks
+     * @return {@link List} of hashes the client has to send with {@link #uploadChunks(List)}
+     */
+    List<String> findMissingChunks(List<String> chunkHashes) throws RemoteException;
+
+    /**
+     * Adds chunks to the server's chunk store. The server keys each chunk by its own hash of the bytes
+     * @param chunks chunk contents
+     */
+    void uploadChunks(List<byte[]> chunks) throws RemoteException;
+
+    /**
+     * Adds chunks to the server's chunk store, each chunk encoded on its own with {@code codec}
+     * @param chunks encoded chunk contents
+     * @param codec encoding of every chunk
+     */
+    void uploadChunks(List<byte[]> chunks, TransferCodec codec) throws RemoteException;
+
+    /**
+     * Creates or replaces a file from chunks already held in the chunk store
+     * @param fileName file to create
+     * @param chunkHashes hashes of the file's chunks in order
+     */
+    void commitManifest(String fileName, List<String> chunkHashes) throws RemoteException;
+
+    /**
+     * Applies many small uploads and deletes in one call
+     * @param payload operations encoded with {@link FileBatch}
+     */
+    void applyBatch(byte[] payload) throws RemoteException;
+
+    /**
+     * Lists every file on the server, excluding the server's own bookkeeping directories
+     * @return {@link List} of file metadata, names relative to the server directory
+     */
+    List<FileInfo> listFiles() throws RemoteException;
+
+    /**
+     * Checks whether the server's copy of a file already has some content, so a client can skip
+     * uploading a file that was touched or rewritten with the same bytes. The server keeps the
+     * hashes of its files, so the check reads no file data unless the file changed on disk
+     * @param fileName name of the file on the server
+     * @param size size of the client's copy
+     * @param hash {@link FileInfo#contentHash(java.nio.file.Path)} of the client's copy
+     * @return true if the server's copy has this size and hash, false if it differs or does not exist
+     */
+    boolean precheck(String fileName, long size, String hash) throws RemoteException;
+
+    /**
+     * Reads part of a file. Clients stream a file by reading consecutive ranges, possibly in parallel
+     * @param fileName name of the file on the server
+     * @param offset position of the first byte to read
+     * @param length number of bytes to read, at most {@link #MAX_READ_LENGTH}
+     * @return bytes read, fewer than {@code length} only at the end of the file
+     */
+    byte[] readRange(String fileName, long offset, int length) throws RemoteException;
+
+    /**
+     * Largest range served by one {@link #readRange(String, long, int)} call
+     */
+    int MAX_READ_LENGTH = 8 * 1024 * 1024;
 }
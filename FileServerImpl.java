@@ -1,50 +1,1022 @@
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
+import java.rmi.ServerException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Implementation of {@link FileServer}
+ * <p>
+ * Many clients may write concurrently. Every write is stamped from {@code versionClock} when it
+ * starts and prepared in a temp file without holding any lock; only the final atomic move over the
+ * target runs under the target's {@link PathLocks} stripe, and only if no write with a newer stamp
+ * was applied to that file in the meantime (last writer wins). Readers therefore always see a
+ * complete version of a file, and writes to different files do not serialize on one lock.
+ * <p>
+ * It is not a remote object itself; export it through {@link MeteredRemote#export}, so that calls
+ * reach it only through the metered proxy.
  */
-public class FileServerImpl extends UnicastRemoteObject implements FileServer {
+public class FileServerImpl implements FileServer {
+
+    /**
+     * Directory (relative to the server directory) holding in-flight uploads
+     */
+    private static final String UPLOAD_DIR_NAME = ".uploads";
+
+    /**
+     * Directory (relative to the server directory) holding the content addressed chunk store
+     */
+    private static final String STORE_DIR_NAME = ".store";
+
+    /**
+     * Directory (relative to the server directory) holding the persisted content hashes
+     */
+    private static final String HASH_DIR_NAME = ".hashes";
+
+    /**
+     * Name of the {@link FileIndex} of content hashes in {@code HASH_DIR_NAME}
+     */
+    private static final String HASH_INDEX_FILE_NAME = "index";
+
+    /**
+     * Journal (relative to the server directory) that makes batched uploads durable
+     */
+    private static final String JOURNAL_FILE_NAME = ".journal/batch.journal";
+
+    /**
+     * Journal size that triggers a checkpoint of batched uploads
+     */
+    private static final long MAX_JOURNAL_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Bytes written to a resumable upload between two checkpoints of its offset
+     */
+    private static final long CHECKPOINT_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * Suffix of the state file next to the temp file of a resumable upload
+     */
+    private static final String UPLOAD_STATE_SUFFIX = ".state";
+
+    /**
+     * Age after which an upload abandoned by its client is dropped, on startup and by the reaper
+     */
+    private static final long UPLOAD_EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Time an uncommitted chunk is kept after it was last uploaded or found, see {@link ChunkStore#collectGarbage(long)}
+     */
+    private static final long CHUNK_EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Interval at which open uploads are checked for expiry and unreferenced chunks are collected
+     */
+    private static final long UPLOAD_REAP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Top level directories holding server state rather than synced files
+     */
+    private static final Set<String> INTERNAL_DIR_NAMES = Set.of(UPLOAD_DIR_NAME, STORE_DIR_NAME, HASH_DIR_NAME, ExternalSort.TEMP_DIR_NAME,
+            Paths.get(JOURNAL_FILE_NAME).getName(0).toString());
+
+    /**
+     * Number of locks the file paths are striped over, see {@link PathLocks}
+     */
+    private static final int PATH_LOCK_STRIPES = 64;
 
     private final String serverDirName;
+
+    private final ConcurrentHashMap<String, UploadSession> uploadSessions = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService uploadReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "upload-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ChunkStore chunkStore;
+
+    private final BatchJournal journal;
+
+    private volatile BulkTransferServer bulkTransferServer;
+
+    /**
+     * Size, mtime and content hash of each file, reused by {@link #listFiles()} and
+     * {@link #precheck(String, long, String)} while size and mtime are unchanged. Writes through
+     * this server update or drop their file's entry under its path lock
+     */
+    private final ConcurrentHashMap<String, FileInfo> listedFiles = new ConcurrentHashMap<>();
+
+    /**
+     * Persisted copy of {@code listedFiles}, so files need not be hashed again after a restart
+     */
+    private final FileIndex hashIndex;
+
+    private final PathLocks pathLocks = new PathLocks(PATH_LOCK_STRIPES);
+
+    private final AtomicLong versionClock = new AtomicLong();
+
+    /**
+     * Stamp of the last write applied to each file, kept after a delete so an older upload still in
+     * flight cannot bring the file back
+     */
+    private final ConcurrentHashMap<Path, Long> appliedVersions = new ConcurrentHashMap<>();
+
+    private final Metrics metrics = new Metrics("FileServer");
+    private final LongAdder bytesReceived = metrics.counter("bytesReceived");
+    private final LongAdder bytesSent = metrics.counter("bytesSent");
+    private final LongAdder filesWritten = metrics.counter("filesWritten");
+    private final LongAdder writesSuperseded = metrics.counter("writesSuperseded");
+    private final LongAdder uploadsSkipped = metrics.counter("uploadsSkipped");
+    private final Metrics.Timer bulkTransfers = metrics.timer("bulkTransfer");
+
+    /**
+     * Final step of a write, run under the target's path lock
+     */
+    private interface PathWrite {
+        void apply() throws IOException;
+    }
+
+    /**
+     * Produces the content of a file the server writes itself, see {@link #writeServerFile(String, FileProducer)}
+     */
+    interface FileProducer {
+        void writeTo(Path temp) throws IOException;
+    }
     
     protected FileServerImpl(String serverDirName) throws RemoteException {
-        super();
         this.serverDirName = serverDirName;
+        try {
+            this.chunkStore = new ChunkStore(Paths.get(serverDirName, STORE_DIR_NAME), getRoot());
+            this.journal = new BatchJournal(Paths.get(serverDirName, JOURNAL_FILE_NAME), MAX_JOURNAL_BYTES);
+            this.hashIndex = new FileIndex(Files.createDirectories(Paths.get(serverDirName, HASH_DIR_NAME))
+                    .resolve(HASH_INDEX_FILE_NAME));
+            hashIndex.entries().forEach((fileName, entry) -> listedFiles.put(fileName,
+                    new FileInfo(fileName, entry.getSize(), entry.getLastModified(), entry.getHash())));
+            restoreUploads();
+            journal.replay(this::applyBatchPayload);
+        } catch (IOException ioException) {
+            throw new RemoteException("Error opening server storage", ioException);
+        }
+        metrics.gauge("uploadSessions", uploadSessions::size);
+        metrics.gauge("listedFiles", listedFiles::size);
+        uploadReaper.scheduleWithFixedDelay(() -> {
+            reapUploads(UPLOAD_EXPIRY_MILLIS);
+            collectChunks(CHUNK_EXPIRY_MILLIS);
+        }, UPLOAD_REAP_INTERVAL_MILLIS, UPLOAD_REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return absolute server directory
+     */
+    Path getRoot() {
+        return Paths.get(serverDirName).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Writes a file produced on the server, such as a file sorted by the compute server, the way
+     * client writes are made: stamped when it starts, prepared in a temp file and moved into place
+     * under the path lock unless a newer write was applied meanwhile
+     * @param fileName file to write, relative to the server directory
+     * @param producer writes the content to the temp file it is given
+     * @return false if the write was superseded and not applied
+     * @throws IOException if the name is invalid or the content cannot be produced
+     */
+    boolean writeServerFile(String fileName, FileProducer producer) throws IOException {
+        Path path = resolvePath(fileName);
+        long version = versionClock.incrementAndGet();
+        Path temp = Files.createDirectories(Paths.get(serverDirName, UPLOAD_DIR_NAME)).resolve(UUID.randomUUID() + ".part");
+        try {
+            producer.writeTo(temp);
+            boolean applied = applyIfNewer(path, version, () -> {
+                moveIntoPlace(temp, path);
+                chunkStore.remove(remoteName(path));
+                forgetHash(path);
+            });
+            if (applied) {
+                filesWritten.increment();
+            } else {
+                writesSuperseded.increment();
+                Log.info("Discarded " + fileName + " written by the server, superseded by a newer write");
+            }
+            return applied;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return metrics of the server; RMI method latencies are recorded when it is exported through {@link MeteredRemote}
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     @Override
     public void uploadFile(byte[] file, String fileName) throws RemoteException {
-        try (FileOutputStream fos = new FileOutputStream(serverDirName+"/"+fileName)) {
-            fos.write(file);
-            System.out.println("Created new file with name" + fileName);
+        Path path = resolvePath(fileName);
+        long version = versionClock.incrementAndGet();
+        bytesReceived.add(file.length);
+        Path temp = null;
+        try {
+            temp = Files.createDirectories(Paths.get(serverDirName, UPLOAD_DIR_NAME)).resolve(UUID.randomUUID() + ".part");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                DirectBufferPool.shared().write(channel, file, 0, file.length);
+                channel.force(false);
+            }
+            Path source = temp;
+            String hash = FileInfo.contentHash(file);
+            if (applyIfNewer(path, version, () -> {
+                moveIntoPlace(source, path);
+                chunkStore.remove(remoteName(path));
+                rememberHash(path, hash);
+            })) {
+                filesWritten.increment();
+                Log.info("Created new file with name" + fileName);
+            } else {
+                Files.deleteIfExists(temp);
+                writesSuperseded.increment();
+                Log.info("Discarded upload of " + fileName + ", superseded by a newer write");
+            }
         } catch (IOException ioException) {
             ioException.printStackTrace();
-            System.out.println("Error uploading file with name "+ fileName);
+            Log.info("Error uploading file with name "+ fileName);
+            try {
+                if (temp != null) {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException deleteException) {
+                deleteException.printStackTrace();
+            }
         }
     }
 
     @Override
     public void delete(String fileName) throws RemoteException {
-        Path path = Paths.get(serverDirName + "/" +fileName);
+        Path path = resolvePath(fileName);
+        long version = versionClock.incrementAndGet();
 
         try {
-            Files.delete(path);
-            System.out.println("File deleted successfully!");
+            boolean applied = applyIfNewer(path, version, () -> {
+                Files.delete(path);
+                chunkStore.remove(remoteName(path));
+                forgetHash(path);
+            });
+            Log.info(applied ? "File deleted successfully!"
+                    : "Ignored delete of " + fileName + ", superseded by a newer write");
         } catch (NoSuchFileException e) {
-            System.out.println("No such file exists: " + path);
+            Log.info("No such file exists: " + path);
         } catch (DirectoryNotEmptyException e) {
-            System.out.println("Directory is not empty: " + path);
+            Log.info("Directory is not empty: " + path);
         } catch (IOException e) {
-            System.out.println("Unable to delete file: " + path);
+            Log.info("Unable to delete file: " + path);
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public String openUpload(String fileName) throws RemoteException {
+        return openUpload(fileName, TransferCodec.NONE);
+    }
+
+    @Override
+    public String openUpload(String fileName, TransferCodec codec) throws RemoteException {
+        return openUpload(fileName, codec, 0);
+    }
+
+    @Override
+    public String openUpload(String fileName, TransferCodec codec, long expectedSize) throws RemoteException {
+        Path target = resolvePath(fileName);
+        String uploadId = UUID.randomUUID().toString();
+        uploadSessions.put(uploadId, newSession(fileName, target, uploadId, codec, expectedSize));
+        return uploadId;
+    }
+
+    @Override
+    public int getBulkPort() {
+        BulkTransferServer server = bulkTransferServer;
+        return server != null ? server.getPort() : 0;
+    }
+
+    /**
+     * Starts the bulk transfer side channel
+     * @param port port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public void startBulkTransfer(int port) throws IOException {
+        bulkTransferServer = new BulkTransferServer(port, this);
+        Log.info("Accepting bulk transfers on port " + bulkTransferServer.getPort());
+    }
+
+    @Override
+    public void writeChunk(String uploadId, byte[] chunk) throws RemoteException {
+        UploadSession session = getSession(uploadId);
+        bytesReceived.add(chunk.length);
+        try {
+            session.receive(chunk);
+            checkpointIfDue(uploadId, session);
+        } catch (IOException ioException) {
+            abortUpload(uploadId);
+            throw new RemoteException("Error writing chunk for " + session.getFileName(), ioException);
+        }
+    }
+
+    @Override
+    public void writeChunk(String uploadId, long offset, byte[] chunk) throws RemoteException {
+        UploadSession session = getSession(uploadId);
+        boolean received;
+        bytesReceived.add(chunk.length);
+        try {
+            received = session.receive(offset, chunk);
+            checkpointIfDue(uploadId, session);
+        } catch (IOException ioException) {
+            abortUpload(uploadId);
+            throw new RemoteException("Error writing chunk for " + session.getFileName(), ioException);
+        }
+        if (!received) {
+            throw new RemoteException("Chunk for " + session.getFileName() + " at offset " + offset
+                    + " does not continue the upload, query its status");
+        }
+    }
+
+    @Override
+    public UploadStatus getUploadStatus(String uploadId) throws RemoteException {
+        UploadSession session = uploadSessions.get(uploadId);
+        if (session == null) {
+            return null;
+        }
+        try {
+            return session.status();
+        } catch (IOException ioException) {
+            throw new RemoteException("Error reading upload of " + session.getFileName(), ioException);
+        }
+    }
+
+    /**
+     * Receives the data of an upload session from the bulk transfer socket. Whatever arrived is
+     * checkpointed, also when the connection breaks, so the client can resume from there
+     * @param uploadId id returned by {@link #openUpload(String)}
+     * @param source socket positioned at the file data
+     * @param offset position of the data in the upload
+     * @param count number of bytes that follow
+     * @throws IOException if the data cannot be received
+     */
+    void receiveBulk(String uploadId, ReadableByteChannel source, long offset, long count) throws IOException {
+        UploadSession session = getSession(uploadId);
+        long start = System.nanoTime();
+        long received = session.getBytesReceived();
+        boolean failed = true;
+        try {
+            session.transferFrom(source, offset, count);
+            failed = false;
+        } finally {
+            bytesReceived.add(session.getBytesReceived() - received);
+            bulkTransfers.record(start, failed);
+            if (session.isResumable() && session.getBytesSinceCheckpoint() > 0) {
+                session.checkpoint(stateFile(uploadId));
+            }
+        }
+    }
+
+    @Override
+    public void commitUpload(String uploadId) throws RemoteException {
+        UploadSession session = getSession(uploadId);
+        uploadSessions.remove(uploadId);
+        try {
+            session.prepareCommit();
+            boolean published = applyIfNewer(session.getTarget(), session.getVersion(), () -> publish(session));
+            deleteStateFile(uploadId);
+            if (!published) {
+                session.abort();
+                writesSuperseded.increment();
+                Log.info("Discarded upload of " + session.getFileName() + ", superseded by a newer write");
+                return;
+            }
+            filesWritten.increment();
+            Log.info("Created new file with name " + session.getFileName());
+            if (session.getBytesReceived() != session.getBytesWritten()) {
+                Log.info("Received %d bytes for %d bytes written (ratio %.2f), decode CPU %.2f ms",
+                        session.getBytesReceived(), session.getBytesWritten(),
+                        (double) session.getBytesWritten() / Math.max(1, session.getBytesReceived()),
+                        session.getDecodeCpuNanos() / 1e6);
+            }
+        } catch (IOException ioException) {
+            reopenUpload(uploadId, session);
+            throw new RemoteException("Error committing upload for " + session.getFileName(), ioException);
+        }
+    }
+
+    @Override
+    public void abortUpload(String uploadId) throws RemoteException {
+        UploadSession session = uploadSessions.remove(uploadId);
+        if (session != null) {
+            session.abort();
+            deleteStateFile(uploadId);
+        }
+    }
+
+    /**
+     * Closes and deletes the uploads no client has touched for {@code expiryMillis}, so abandoned
+     * sessions do not hold their file handle and temp file until a restart
+     * @param expiryMillis idle time after which a session is dropped
+     * @return number of sessions dropped
+     */
+    int reapUploads(long expiryMillis) {
+        int reaped = 0;
+        for (Map.Entry<String, UploadSession> entry : uploadSessions.entrySet()) {
+            UploadSession session = entry.getValue();
+            if (session.getIdleMillis() > expiryMillis && uploadSessions.remove(entry.getKey(), session)) {
+                session.abort();
+                try {
+                    Files.deleteIfExists(stateFile(entry.getKey()));
+                } catch (IOException ioException) {
+                    ioException.printStackTrace();
+                }
+                reaped++;
+                Log.info("Dropped upload of " + session.getFileName() + ", idle for "
+                        + TimeUnit.MILLISECONDS.toMinutes(session.getIdleMillis()) + " minutes");
+            }
+        }
+        return reaped;
+    }
+
+    /**
+     * Deletes the staged chunks no file was committed from, see {@link ChunkStore#collectGarbage(long)}
+     * @param expiryMillis time an uncommitted chunk is kept
+     * @return number of chunks deleted
+     */
+    int collectChunks(long expiryMillis) {
+        try {
+            int deleted = chunkStore.collectGarbage(expiryMillis);
+            if (deleted > 0) {
+                Log.info("Deleted " + deleted + " uncommitted chunks");
+            }
+            return deleted;
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Runs the final step of a write under the path lock of its target, unless a write with a
+     * newer stamp was applied to the target first
+     * @param path target of the write
+     * @param version stamp issued when the write started
+     * @param write final step, typically the atomic move of a prepared temp file
+     * @return false if the write was superseded and not applied
+     * @throws IOException if the write fails
+     */
+    private boolean applyIfNewer(Path path, long version, PathWrite write) throws IOException {
+        Lock lock = pathLocks.forPath(path);
+        while (true) {
+            // checkpointing takes the journal lock, which batches hold while taking path locks
+            journal.checkpointIfDirty(path);
+            lock.lock();
+            try {
+                if (journal.isDirty(path)) {
+                    // a batch wrote the file since the checkpoint
+                    continue;
+                }
+                Long applied = appliedVersions.get(path);
+                if (applied != null && applied > version) {
+                    return false;
+                }
+                write.apply();
+                appliedVersions.put(path, version);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return true if {@code path} is still the file {@code attributes} were read from
+     */
+    private static boolean isUnchanged(Path path, BasicFileAttributes attributes) throws IOException {
+        BasicFileAttributes current;
+        try {
+            current = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        return current.size() == attributes.size()
+                && current.lastModifiedTime().equals(attributes.lastModifiedTime())
+                && Objects.equals(current.fileKey(), attributes.fileKey());
+    }
+
+    private static void moveIntoPlace(Path temp, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Checkpoints a resumable session once {@code CHECKPOINT_BYTES} were written since the last checkpoint
+     */
+    private void checkpointIfDue(String uploadId, UploadSession session) throws IOException {
+        if (session.isResumable() && session.getBytesSinceCheckpoint() >= CHECKPOINT_BYTES) {
+            session.checkpoint(stateFile(uploadId));
+        }
+    }
+
+    private Path stateFile(String uploadId) {
+        return Paths.get(serverDirName, UPLOAD_DIR_NAME, uploadId + UPLOAD_STATE_SUFFIX);
+    }
+
+    private void deleteStateFile(String uploadId) {
+        try {
+            Files.deleteIfExists(stateFile(uploadId));
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens a resumable upload again at its last checkpoint
+     * @param uploadId id of the upload
+     * @return the reopened session
+     * @throws IOException if the checkpoint or the data it covers cannot be read
+     */
+    private UploadSession restoreUpload(String uploadId) throws IOException {
+        Path stateFile = stateFile(uploadId);
+        UploadSession.Checkpoint checkpoint = UploadSession.readCheckpoint(stateFile);
+        UploadSession session = new UploadSession(checkpoint, resolvePath(checkpoint.getFileName()),
+                stateFile.resolveSibling(uploadId + ".part"));
+        session.setVersion(versionClock.incrementAndGet());
+        uploadSessions.put(uploadId, session);
+        return session;
+    }
+
+    /**
+     * Keeps a resumable upload whose commit failed open at its last checkpoint, so the retry
+     * continues from there instead of sending the whole file again
+     */
+    private void reopenUpload(String uploadId, UploadSession session) {
+        if (!session.isResumable() || !Files.exists(stateFile(uploadId))) {
+            session.abort();
+            return;
+        }
+        session.close();
+        try {
+            UploadSession reopened = restoreUpload(uploadId);
+            Log.info("Upload of " + reopened.getFileName() + " kept open at offset " + reopened.getBytesWritten());
+        } catch (IOException ioException) {
+            Log.info("Dropping upload " + uploadId + ": " + ioException.getMessage());
+            session.abort();
+            deleteStateFile(uploadId);
+        }
+    }
+
+    /**
+     * Reopens resumable uploads at their last checkpoint and removes temp files no session owns
+     * anymore, such as those of compressed uploads cut off by a restart
+     * @throws IOException if the upload directory cannot be listed
+     */
+    private void restoreUploads() throws IOException {
+        Path uploadDir = Files.createDirectories(Paths.get(serverDirName, UPLOAD_DIR_NAME));
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(uploadDir)) {
+            files = stream.collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (!name.endsWith(UPLOAD_STATE_SUFFIX)) {
+                continue;
+            }
+            String uploadId = name.substring(0, name.length() - UPLOAD_STATE_SUFFIX.length());
+            try {
+                if (System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() > UPLOAD_EXPIRY_MILLIS) {
+                    throw new IOException("Upload " + uploadId + " expired");
+                }
+                UploadSession session = restoreUpload(uploadId);
+                Log.info("Resumable upload of " + session.getFileName() + " restored at offset "
+                        + session.getBytesWritten());
+            } catch (IOException ioException) {
+                Log.info("Dropping upload " + uploadId + ": " + ioException.getMessage());
+                Files.deleteIfExists(file);
+            }
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            int dot = name.indexOf('.');
+            if (!uploadSessions.containsKey(dot < 0 ? name : name.substring(0, dot))) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Override
+    public List<BlockSignature> getSignatures(String fileName, int blockSize) throws RemoteException {
+        Path path = resolvePath(fileName);
+        if (!Files.isRegularFile(path)) {
+            return Collections.emptyList();
+        }
+        try {
+            return DeltaSync.computeSignatures(path, blockSize);
+        } catch (IOException ioException) {
+            throw new RemoteException("Error computing signatures for " + fileName, ioException);
+        }
+    }
+
+    @Override
+    public boolean applyDelta(String fileName, int blockSize, String basisDigest, List<DeltaInstruction> delta)
+            throws RemoteException {
+        Path target = resolvePath(fileName);
+        UploadSession session = newSession(fileName, target, UUID.randomUUID().toString(), TransferCodec.NONE, 0);
+        AtomicBoolean basisChanged = new AtomicBoolean();
+        try {
+            // taken before the digest, so a write racing the digest shows up as changed attributes
+            Long basisVersion = appliedVersions.get(target);
+            BasicFileAttributes basis = Files.isRegularFile(target) ? Files.readAttributes(target, BasicFileAttributes.class) : null;
+            if (basis == null || !basisDigest.equals(DeltaSync.basisDigest(DeltaSync.computeSignatures(target, blockSize)))) {
+                session.abort();
+                Log.info("Rejected delta for " + fileName + ", computed against a different copy");
+                return false;
+            }
+            DeltaSync.applyDelta(target, delta, blockSize, session);
+            session.prepareCommit();
+            boolean applied = applyIfNewer(target, session.getVersion(), () -> {
+                if (!Objects.equals(appliedVersions.get(target), basisVersion) || !isUnchanged(target, basis)) {
+                    basisChanged.set(true);
+                    throw new IOException("Basis of the delta for " + fileName + " changed");
+                }
+                publish(session);
+            });
+            if (!applied) {
+                session.abort();
+                writesSuperseded.increment();
+                Log.info("Discarded delta for " + fileName + ", superseded by a newer write");
+                return true;
+            }
+            filesWritten.increment();
+            Log.info("Applied delta to file with name " + fileName);
+            return true;
+        } catch (IOException | RuntimeException exception) {
+            session.abort();
+            if (basisChanged.get()) {
+                Log.info("Rejected delta for " + fileName + ", the file changed while it was rebuilt");
+                return false;
+            }
+            if (exception instanceof ServerException) {
+                throw (ServerException) exception;
+            }
+            throw new RemoteException("Error applying delta to " + fileName, exception);
+        }
+    }
+
+    @Override
+    public List<String> findMissingChunks(List<String> chunkHashes) throws RemoteException {
+        try {
+            return chunkStore.findMissing(chunkHashes);
+        } catch (IllegalArgumentException illegalArgumentException) {
+            throw new RemoteException(illegalArgumentException.getMessage());
+        } catch (IOException ioException) {
+            throw new RemoteException("Error looking up chunks", ioException);
+        }
+    }
+
+    @Override
+    public void uploadChunks(List<byte[]> chunks) throws RemoteException {
+        uploadChunks(chunks, TransferCodec.NONE);
+    }
+
+    @Override
+    public void uploadChunks(List<byte[]> chunks, TransferCodec codec) throws RemoteException {
+        try {
+            for (byte[] chunk : chunks) {
+                bytesReceived.add(chunk.length);
+                chunkStore.put(codec == TransferCodec.DEFLATE ? TransferCodec.inflate(chunk) : chunk);
+            }
+        } catch (IOException ioException) {
+            throw new RemoteException("Error storing chunks", ioException);
+        }
+    }
+
+    @Override
+    public void commitManifest(String fileName, List<String> chunkHashes) throws RemoteException {
+        Path target = resolvePath(fileName);
+        UploadSession session = newSession(fileName, target, UUID.randomUUID().toString(), TransferCodec.NONE, 0);
+        try {
+            List<Integer> chunkLengths = chunkStore.assemble(chunkHashes, session);
+            session.prepareCommit();
+            boolean applied = applyIfNewer(target, session.getVersion(), () -> {
+                publish(session);
+                chunkStore.putManifest(remoteName(target), chunkHashes, chunkLengths);
+            });
+            if (!applied) {
+                session.abort();
+                writesSuperseded.increment();
+                Log.info("Discarded " + fileName + " from chunks, superseded by a newer write");
+                return;
+            }
+            filesWritten.increment();
+            Log.info("Created new file with name " + fileName + " from " + chunkHashes.size() + " chunks");
+        } catch (IOException | IllegalArgumentException exception) {
+            session.abort();
+            throw new RemoteException("Error assembling " + fileName + " from chunks", exception);
+        }
+    }
+
+    @Override
+    public void applyBatch(byte[] payload) throws RemoteException {
+        List<FileBatch.Operation> operations;
+        bytesReceived.add(payload.length);
+        try {
+            operations = FileBatch.decode(payload);
+        } catch (IOException ioException) {
+            throw new RemoteException("Malformed batch", ioException);
+        }
+        for (FileBatch.Operation operation : operations) {
+            resolvePath(operation.getFileName());
+        }
+        long version = versionClock.incrementAndGet();
+        AtomicInteger superseded = new AtomicInteger();
+        try {
+            journal.append(payload, journaled -> superseded.set(applyOperations(operations, version)));
+            if (superseded.get() > 0) {
+                // the journal must not replay the skipped operations over the newer writes
+                journal.checkpoint();
+            } else {
+                journal.checkpointIfNeeded();
+            }
+        } catch (IOException ioException) {
+            throw new RemoteException("Error journaling batch", ioException);
+        }
+        Log.info("Applied batch of " + operations.size() + " operations");
+    }
+
+    @Override
+    public List<FileInfo> listFiles() throws RemoteException {
+        Path root = Paths.get(serverDirName).toAbsolutePath().normalize();
+        List<FileInfo> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(root)) {
+            List<Path> paths = stream.filter(Files::isRegularFile)
+                    .filter(path -> !INTERNAL_DIR_NAMES.contains(root.relativize(path).getName(0).toString()))
+                    .collect(Collectors.toList());
+            for (Path path : paths) {
+                files.add(describe(path));
+            }
+        } catch (IOException | UncheckedIOException exception) {
+            throw new RemoteException("Error listing files", exception);
+        }
+        return files;
+    }
+
+    @Override
+    public boolean precheck(String fileName, long size, String hash) throws RemoteException {
+        Path path = resolvePath(fileName);
+        try {
+            FileInfo current = describe(path);
+            if (current.getSize() == size && current.getHash().equals(hash)) {
+                uploadsSkipped.increment();
+                return true;
+            }
+            return false;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException ioException) {
+            throw new RemoteException("Error hashing " + fileName, ioException);
+        }
+    }
+
+    /**
+     * Describes a file, hashing it only if it changed since it was last hashed. A changed file is
+     * hashed under its path lock, so a concurrent write cannot pair its attributes with the old hash
+     * @param path file in the server directory
+     * @return size, mtime and hash of the file
+     * @throws NoSuchFileException if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    private FileInfo describe(Path path) throws IOException {
+        String fileName = remoteName(path);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        FileInfo listed = listedFiles.get(fileName);
+        if (listed != null && listed.getSize() == attributes.size()
+                && listed.getLastModified() == attributes.lastModifiedTime().toMillis()) {
+            return listed;
+        }
+        Lock lock = pathLocks.forPath(path);
+        lock.lock();
+        try {
+            return rememberHash(path, FileInfo.contentHash(path));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the hash of a file just written; the caller holds the file's path lock
+     * @param path file in the server directory
+     * @param hash {@link FileInfo#contentHash(Path)} of its contents
+     * @return the new entry
+     * @throws IOException if the file's attributes cannot be read or the hash not persisted
+     */
+    private FileInfo rememberHash(Path path, String hash) throws IOException {
+        String fileName = remoteName(path);
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        FileInfo listed = new FileInfo(fileName, attributes.size(), attributes.lastModifiedTime().toMillis(), hash);
+        listedFiles.put(fileName, listed);
+        hashIndex.put(fileName, new FileIndex.Entry(listed.getSize(), listed.getLastModified(), hash));
+        return listed;
+    }
+
+    /**
+     * Drops the hash of a file deleted or rewritten without one; the caller holds the file's path lock
+     * @param path file in the server directory
+     * @throws IOException if the removal cannot be persisted
+     */
+    private void forgetHash(Path path) throws IOException {
+        String fileName = remoteName(path);
+        listedFiles.remove(fileName);
+        hashIndex.remove(fileName);
+    }
+
+    /**
+     * Moves a prepared session over its target and drops the chunk manifest of the content it
+     * replaced; the hash of the target is recomputed when next needed
+     */
+    private void publish(UploadSession session) throws IOException {
+        session.publish();
+        chunkStore.remove(remoteName(session.getTarget()));
+        forgetHash(session.getTarget());
+    }
+
+    /**
+     * @param path file in the server directory
+     * @return name of the file relative to the server directory, as listed by {@link #listFiles()}
+     */
+    private String remoteName(Path path) {
+        return Util.toRemoteFileName(Paths.get(serverDirName).toAbsolutePath().normalize(), path);
+    }
+
+    @Override
+    public byte[] readRange(String fileName, long offset, int length) throws RemoteException {
+        Path path = resolvePath(fileName);
+        if (offset < 0 || length < 0 || length > MAX_READ_LENGTH) {
+            throw new RemoteException("Invalid range " + offset + "+" + length + " of " + fileName);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int available = (int) Math.max(0, Math.min(length, channel.size() - offset));
+            ByteBuffer buffer = ByteBuffer.allocate(available);
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+                // keep reading until the range is complete
+            }
+            bytesSent.add(buffer.position());
+            return buffer.position() == available ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+        } catch (IOException ioException) {
+            throw new RemoteException("Error reading " + fileName, ioException);
+        }
+    }
+
+    /**
+     * Decodes and applies a journaled batch during replay
+     * @param payload encoded batch
+     */
+    private void applyBatchPayload(byte[] payload) {
+        try {
+            applyOperations(FileBatch.decode(payload), versionClock.incrementAndGet());
+        } catch (IOException ioException) {
+            Log.info("Skipping malformed batch in journal");
+        }
+    }
+
+    /**
+     * Writes the files of a batch without fsync; {@link BatchJournal} holds the batch until the
+     * files are checkpointed. Runs inside {@link BatchJournal#append}, so it must not checkpoint
+     * @param operations decoded batch
+     * @param version stamp of the batch
+     * @return number of operations skipped because a newer write was applied first
+     */
+    private int applyOperations(List<FileBatch.Operation> operations, long version) {
+        int superseded = 0;
+        for (FileBatch.Operation operation : operations) {
+            String fileName = operation.getFileName();
+            Path temp = null;
+            try {
+                Path path = resolvePath(fileName);
+                if (operation.getType() == FileBatch.UPLOAD) {
+                    temp = Files.createDirectories(Paths.get(serverDirName, UPLOAD_DIR_NAME))
+                            .resolve(UUID.randomUUID() + ".part");
+                    Files.write(temp, operation.getData());
+                }
+                Lock lock = pathLocks.forPath(path);
+                lock.lock();
+                try {
+                    Long applied = appliedVersions.get(path);
+                    if (applied != null && applied > version) {
+                        superseded++;
+                        continue;
+                    }
+                    if (temp != null) {
+                        moveIntoPlace(temp, path);
+                        rememberHash(path, FileInfo.contentHash(operation.getData()));
+                    } else {
+                        Files.deleteIfExists(path);
+                        forgetHash(path);
+                    }
+                    chunkStore.remove(remoteName(path));
+                    appliedVersions.put(path, version);
+                    journal.markDirty(path);
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException ioException) {
+                Log.info("Error applying batched operation on " + fileName);
+                ioException.printStackTrace();
+            } finally {
+                try {
+                    if (temp != null) {
+                        Files.deleteIfExists(temp);
+                    }
+                } catch (IOException ioException) {
+                    ioException.printStackTrace();
+                }
+            }
+        }
+        return superseded;
+    }
+
+    /**
+     * Creates an upload session whose temp file lives in the upload directory
+     * @param fileName client supplied file name
+     * @param target resolved target path
+     * @param uploadId id of the session
+     * @param codec encoding of the chunks the client sends
+     * @param expectedSize decoded size of the file, 0 if unknown
+     * @return the session
+     * @throws RemoteException if the temp file cannot be created
+     */
+    private UploadSession newSession(String fileName, Path target, String uploadId, TransferCodec codec,
+            long expectedSize) throws RemoteException {
+        try {
+            Path uploadDir = Files.createDirectories(Paths.get(serverDirName, UPLOAD_DIR_NAME));
+            UploadSession session = new UploadSession(fileName, target, uploadDir.resolve(uploadId + ".part"), codec,
+                    expectedSize);
+            session.setVersion(versionClock.incrementAndGet());
+            return session;
+        } catch (IOException ioException) {
+            throw new RemoteException("Error opening upload for " + fileName, ioException);
+        }
+    }
+
+    /**
+     * Looks up an open upload session
+     * @param uploadId id returned by {@link #openUpload(String)}
+     * @return the session
+     * @throws RemoteException if no such session is open
+     */
+    UploadSession getSession(String uploadId) throws RemoteException {
+        UploadSession session = uploadSessions.get(uploadId);
+        if (session == null) {
+            throw new RemoteException("Unknown upload id " + uploadId);
+        }
+        return session;
+    }
+
+    /**
+     * Resolves a client supplied file name against the server directory
+     * @param fileName file name relative to the server directory
+     * @return resolved path
+     * @throws RemoteException if the name escapes the server directory or points into one of the
+     *         directories holding server state
+     */
+    Path resolvePath(String fileName) throws RemoteException {
+        Path root = Paths.get(serverDirName).toAbsolutePath().normalize();
+        Path path = root.resolve(fileName).normalize();
+        if (!path.startsWith(root) || path.equals(root)
+                || INTERNAL_DIR_NAMES.contains(root.relativize(path).getName(0).toString())) {
+            throw new RemoteException("Invalid file name " + fileName);
+        }
+        return path;
+    }
+}
@@ -0,0 +1,594 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
+
+/**
+ * Client side of the {@link FileServer} upload protocols. Picks between a delta upload for
+ * modified files, a deduplicated chunk store upload and a plain chunked upload. With compression
+ * enabled, full uploads are deflated when {@link TransferCodec#probe(Path)} finds the file compressible.
+ * Files from {@code bulkThreshold} bytes are sent raw over the server's {@link BulkTransferServer}
+ * socket instead, skipping RMI serialization.
+ * <p>
+ * Failed uploads are retried up to {@code maxRetries} times with exponential backoff, unless the
+ * server itself rejected them with a {@link ServerException}, such as for an invalid name. I/O errors
+ * on the server, such as a failed commit, are retried; the server keeps the session at its last checkpoint. Uncompressed
+ * streamed and bulk uploads continue from the offset the server reports for their session, after
+ * checking that the local file still starts with the bytes the server holds; deduplicated uploads
+ * resume naturally since chunks stored by an earlier attempt are not sent again.
+ */
+public class FileUploader {
+
+    /**
+     * Upper bound, in upload chunks, of literal bytes a delta may buffer before falling back to a full upload
+     */
+    private static final int MAX_DELTA_CHUNKS = 16;
+
+    /**
+     * Upper bound of the wait between two attempts of an upload or batch
+     */
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final FileServer fileServer;
+    private final int chunkSize;
+    private final boolean deduplicate;
+    private final boolean compress;
+    private final String bulkHost;
+    private final long bulkThreshold;
+    private final long mappedReadThreshold;
+    private volatile int bulkPort = -1;
+    private final int maxRetries;
+    private final long retryBackoffMillis;
+
+    /**
+     * Open resumable upload sessions by file name, kept across attempts so a retry continues where
+     * the previous attempt stopped
+     */
+    private final ConcurrentHashMap<String, String> resumableUploads = new ConcurrentHashMap<>();
+
+    public FileUploader(FileServer fileServer, int chunkSize, boolean deduplicate, boolean compress) {
+        this(fileServer, chunkSize, deduplicate, compress, null, 0, 0, 0);
+    }
+
+    /**
+     * @param fileServer FileServer obj. This is a rmi object
+     * @param chunkSize size of each upload chunk in bytes
+     * @param deduplicate whether full uploads go through the server's chunk store
+     * @param compress whether full uploads may be compressed
+     * @param bulkHost host of the bulk transfer socket, normally the RMI server address
+     * @param bulkThreshold size from which files are sent over the bulk transfer socket, 0 to disable
+     * @param maxRetries number of times a failed upload is retried
+     * @param retryBackoffMillis wait before the first retry, doubled for every further retry
+     */
+    public FileUploader(FileServer fileServer, int chunkSize, boolean deduplicate, boolean compress, String bulkHost,
+            long bulkThreshold, int maxRetries, long retryBackoffMillis) {
+        this(fileServer, chunkSize, deduplicate, compress, bulkHost, bulkThreshold, MappedFile.DEFAULT_THRESHOLD, maxRetries,
+                retryBackoffMillis);
+    }
+
+    /**
+     * @param fileServer FileServer obj. This is a rmi object
+     * @param chunkSize size of each upload chunk in bytes
+     * @param deduplicate whether full uploads go through the server's chunk store
+     * @param compress whether full uploads may be compressed
+     * @param bulkHost host of the bulk transfer socket, normally the RMI server address
+     * @param bulkThreshold size from which files are sent over the bulk transfer socket, 0 to disable
+     * @param mappedReadThreshold size from which files are read through a {@link MappedFile} mapping
+     * @param maxRetries number of times a failed upload is retried
+     * @param retryBackoffMillis wait before the first retry, doubled for every further retry
+     */
+    public FileUploader(FileServer fileServer, int chunkSize, boolean deduplicate, boolean compress, String bulkHost,
+            long bulkThreshold, long mappedReadThreshold, int maxRetries, long retryBackoffMillis) {
+        this.fileServer = fileServer;
+        this.chunkSize = chunkSize;
+        this.deduplicate = deduplicate;
+        this.compress = compress;
+        this.bulkHost = bulkHost;
+        this.bulkThreshold = bulkThreshold;
+        this.mappedReadThreshold = mappedReadThreshold;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    /**
+     * Uploads a created or modified file, retrying failed attempts
+     * @param path local file
+     * @param fileName name of the file on the server
+     * @param modified true if the server is expected to hold an older copy
+     * @throws IOException if the last attempt failed
+     */
+    public void upload(Path path, String fileName, boolean modified) throws IOException {
+        uploadWithRetries(fileName, () -> {
+            uploadOnce(path, fileName, modified);
+            return null;
+        });
+    }
+
+    /**
+     * Uploads a modified file without hashing it first: the delta is computed from the mapped file,
+     * which is hashed as it is read, and nothing is sent if no block changed. Only when the delta
+     * is abandoned is the file read again, by the full upload
+     * @param path local file
+     * @param fileName name of the file on the server
+     * @return {@link FileInfo#contentHash(Path)} of the file as it was uploaded
+     * @throws IOException if the last attempt failed
+     */
+    public String uploadModified(Path path, String fileName) throws IOException {
+        return uploadWithRetries(fileName, () -> {
+            try (MappedFile file = MappedFile.open(path, mappedReadThreshold)) {
+                boolean applied = uploadDelta(file, fileName);
+                String hash = file.contentHash();
+                if (!applied) {
+                    uploadFull(path, fileName);
+                }
+                return hash;
+            } catch (InternalError internalError) {
+                throw MappedFile.changed(internalError);
+            }
+        });
+    }
+
+    /**
+     * @return size from which files are read through a {@link MappedFile} mapping
+     */
+    public long getMappedReadThreshold() {
+        return mappedReadThreshold;
+    }
+
+    private <T> T uploadWithRetries(String fileName, Attempt<T> attempt) throws IOException {
+        try {
+            return withRetries("Upload of " + fileName, attempt);
+        } catch (IOException ioException) {
+            if (isFinal(ioException)) {
+                discardResumable(fileName);
+            }
+            throw ioException;
+        }
+    }
+
+    /**
+     * Sends a batch of small file uploads and deletes, retrying failed attempts like uploads
+     * @param batch operations to apply
+     * @throws IOException if the last attempt failed
+     */
+    public void applyBatch(FileBatch batch) throws IOException {
+        byte[] payload = batch.toByteArray();
+        withRetries("Batch of " + batch.getOperationCount() + " operations", () -> {
+            fileServer.applyBatch(payload);
+            return null;
+        });
+    }
+
+    /**
+     * One attempt of an operation run by {@link FileUploader#withRetries(String, Attempt)}
+     */
+    private interface Attempt<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs an operation, retrying it up to {@code maxRetries} times with exponential backoff
+     * @param description operation named in the retry messages
+     * @param attempt the operation
+     * @return result of the successful attempt
+     * @throws FileSystemException at once if the local file is gone or unreadable
+     * @throws ServerException at once if the server rejected the operation
+     * @throws IOException if the last attempt failed
+     */
+    private <T> T withRetries(String description, Attempt<T> attempt) throws IOException {
+        for (int retry = 0;; retry++) {
+            try {
+                return attempt.run();
+            } catch (IOException ioException) {
+                if (isFinal(ioException) || retry >= maxRetries) {
+                    throw ioException;
+                }
+                long backoff = backoffMillis(retry);
+                System.out.println(description + " failed (" + ioException.getMessage() + "), retry "
+                        + (retry + 1) + " of " + maxRetries + " in " + backoff + " ms");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw ioException;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if retrying cannot help: the local file is unreadable, or the server rejected the
+     *         call instead of failing on an I/O error of its own, such as a disk that is full
+     */
+    private static boolean isFinal(IOException ioException) {
+        if (ioException instanceof FileSystemException) {
+            return true;
+        }
+        if (!(ioException instanceof ServerException)) {
+            return false;
+        }
+        for (Throwable cause = ioException.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException && !(cause instanceof RemoteException)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void uploadOnce(Path path, String fileName, boolean modified) throws IOException {
+        try {
+            if (modified && uploadDelta(path, fileName)) {
+                return;
+            }
+            uploadFull(path, fileName);
+        } catch (InternalError internalError) {
+            // the file shrank under a mapping; the retry reads it again
+            throw MappedFile.changed(internalError);
+        }
+    }
+
+    private void uploadFull(Path path, String fileName) throws IOException {
+        if (bulkThreshold > 0 && Files.size(path) >= bulkThreshold && uploadBulk(path, fileName)) {
+            return;
+        }
+        if (deduplicate) {
+            uploadDeduplicated(path, fileName);
+        } else {
+            uploadStreamed(path, fileName);
+        }
+    }
+
+    /**
+     * Asks the server whether its copy of a file already has the local contents, see {@link FileServer#precheck}
+     * @param fileName name of the file on the server
+     * @param size size of the local file
+     * @param hash {@link FileInfo#contentHash(Path)} of the local file
+     * @return true if the upload can be skipped
+     * @throws RemoteException
+     */
+    public boolean isUnchanged(String fileName, long size, String hash) throws RemoteException {
+        return fileServer.precheck(fileName, size, hash);
+    }
+
+    /**
+     * Deletes a file on the server
+     * @param fileName name of the file on the server
+     * @throws RemoteException
+     */
+    public void delete(String fileName) throws RemoteException {
+        fileServer.delete(fileName);
+    }
+
+    /**
+     * Streams a file to the server in chunks of {@code chunkSize} bytes. Files from
+     * {@code mappedReadThreshold} bytes are mapped, so at most one chunk is copied into the heap at
+     * a time; the binary transport sends uncompressed chunks straight from the mapping
+     * @param path local file
+     * @param fileName name of the file on the server
+     * @throws IOException
+     */
+    public void uploadStreamed(Path path, String fileName) throws IOException {
+        TransferCodec codec = compress ? TransferCodec.probe(path) : TransferCodec.NONE;
+        if (codec == TransferCodec.NONE) {
+            uploadResumable(path, fileName);
+            return;
+        }
+        try (MappedFile file = MappedFile.open(path, mappedReadThreshold)) {
+            String uploadId = fileServer.openUpload(fileName, codec, file.size());
+            try {
+                sendDeflated(file, uploadId, fileName);
+                fileServer.commitUpload(uploadId);
+            } catch (IOException | InternalError e) {
+                abortQuietly(uploadId);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Sends a file uncompressed in chunks tagged with their offset, continuing the session of a
+     * previous failed attempt if there is one
+     * @param path local file
+     * @param fileName name of the file on the server
+     * @throws IOException
+     */
+    private void uploadResumable(Path path, String fileName) throws IOException {
+        try (MappedFile file = MappedFile.open(path, mappedReadThreshold)) {
+            String uploadId = resumableUploads.get(fileName);
+            long offset = uploadId != null ? resumeOffset(path, fileName, uploadId) : -1;
+            if (offset < 0) {
+                uploadId = fileServer.openUpload(fileName, TransferCodec.NONE, file.size());
+                resumableUploads.put(fileName, uploadId);
+                offset = 0;
+            }
+            byte[] buffer = null;
+            while (offset < file.size()) {
+                int length = (int) Math.min(chunkSize, file.size() - offset);
+                ByteBuffer chunk = file.slice(offset, length);
+                if (fileServer instanceof BinaryFileClient) {
+                    ((BinaryFileClient) fileServer).writeChunk(uploadId, offset, chunk);
+                } else if (chunk.hasArray() && chunk.arrayOffset() == 0 && chunk.array().length == length) {
+                    // a file read into the heap in one piece
+                    fileServer.writeChunk(uploadId, offset, chunk.array());
+                } else {
+                    if (buffer == null || buffer.length != length) {
+                        buffer = new byte[length];
+                    }
+                    chunk.get(buffer);
+                    fileServer.writeChunk(uploadId, offset, buffer);
+                }
+                offset += length;
+            }
+            fileServer.commitUpload(uploadId);
+            resumableUploads.remove(fileName);
+        }
+    }
+
+    /**
+     * Asks the server how far an earlier attempt got
+     * @param path local file
+     * @param fileName name of the file on the server
+     * @param uploadId session of the earlier attempt
+     * @return offset to continue from, or -1 if the upload has to start over
+     * @throws IOException
+     */
+    private long resumeOffset(Path path, String fileName, String uploadId) throws IOException {
+        UploadStatus status = fileServer.getUploadStatus(uploadId);
+        if (status != null && status.getHash() != null && status.getOffset() <= Files.size(path)
+                && status.getHash().equals(FileInfo.contentHash(path, status.getOffset()))) {
+            System.out.println("Resuming upload of " + fileName + " at offset " + status.getOffset());
+            return status.getOffset();
+        }
+        resumableUploads.remove(fileName);
+        if (status != null) {
+            abortQuietly(uploadId);
+        }
+        return -1;
+    }
+
+    private void discardResumable(String fileName) {
+        String uploadId = resumableUploads.remove(fileName);
+        if (uploadId != null) {
+            abortQuietly(uploadId);
+        }
+    }
+
+    /**
+     * Aborts a session without masking the error that caused the abort
+     */
+    private void abortQuietly(String uploadId) {
+        try {
+            fileServer.abortUpload(uploadId);
+        } catch (RemoteException remoteException) {
+            System.out.println("Could not abort upload " + uploadId + ": " + remoteException.getMessage());
+        }
+    }
+
+    /**
+     * @param attempt number of the failed attempt, starting at 0
+     * @return exponential backoff with jitter, so clients that failed together do not retry together
+     */
+    private long backoffMillis(int attempt) {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, retryBackoffMillis << Math.min(attempt, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * Sends a file over the bulk transfer socket with {@link FileChannel#transferTo}, so the file
+     * data never enters the Java heap on either side
+     * @param path local file
+     * @param fileName name of the file on the server
+     * @return true if the file was uploaded, false if the server has no bulk transfer port
+     * @throws IOException
+     */
+    public boolean uploadBulk(Path path, String fileName) throws IOException {
+        if (bulkPort < 0) {
+            bulkPort = fileServer.getBulkPort();
+        }
+        if (bulkPort == 0) {
+            return false;
+        }
+        long size = Files.size(path);
+        String uploadId = resumableUploads.get(fileName);
+        long offset = uploadId != null ? resumeOffset(path, fileName, uploadId) : -1;
+        if (offset < 0) {
+            uploadId = fileServer.openUpload(fileName, TransferCodec.NONE, size);
+            resumableUploads.put(fileName, uploadId);
+            offset = 0;
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+                SocketChannel socket = SocketChannel.open(new InetSocketAddress(bulkHost, bulkPort))) {
+            BulkTransferServer.writeHeader(socket, uploadId, offset, size - offset);
+            for (long sent = offset; sent < size;) {
+                long transferred = file.transferTo(sent, size - sent, socket);
+                if (transferred == 0) {
+                    throw new IOException(path + " shrank during upload");
+                }
+                sent += transferred;
+            }
+            BulkTransferServer.readStatus(socket);
+        }
+        fileServer.commitUpload(uploadId);
+        resumableUploads.remove(fileName);
+        return true;
+    }
+
+    /**
+     * Sends a file as one deflate stream cut into chunks of up to {@code chunkSize} compressed bytes
+     * @param file file contents, fed to the deflater a chunk at a time straight from the mapping
+     * @param uploadId session opened with {@link TransferCodec#DEFLATE}
+     * @param fileName name of the file on the server
+     * @throws IOException
+     */
+    private void sendDeflated(MappedFile file, String uploadId, String fileName) throws IOException {
+        Deflater deflater = new Deflater(TransferCodec.DEFLATE_LEVEL);
+        try {
+            byte[] output = new byte[chunkSize];
+            int outputLength = 0;
+            long rawBytes = 0;
+            long sentBytes = 0;
+            long cpuNanos = 0;
+            boolean finishing = false;
+            while (!deflater.finished()) {
+                if (!finishing && deflater.needsInput()) {
+                    int read = (int) Math.min(chunkSize, file.size() - rawBytes);
+                    if (read > 0) {
+                        deflater.setInput(file.slice(rawBytes, read));
+                        rawBytes += read;
+                    } else {
+                        deflater.finish();
+                        finishing = true;
+                    }
+                    continue;
+                }
+                long start = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+                outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+                cpuNanos += THREAD_MX_BEAN.getCurrentThreadCpuTime() - start;
+                if (outputLength == output.length) {
+                    fileServer.writeChunk(uploadId, output);
+                    sentBytes += outputLength;
+                    outputLength = 0;
+                }
+            }
+            if (outputLength > 0) {
+                fileServer.writeChunk(uploadId, Arrays.copyOf(output, outputLength));
+                sentBytes += outputLength;
+            }
+            reportCompression(fileName, rawBytes, sentBytes, cpuNanos);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void reportCompression(String fileName, long rawBytes, long sentBytes, long cpuNanos) {
+        System.out.printf("Compressed %s: %d -> %d bytes (ratio %.2f), compress CPU %.2f ms%n", fileName, rawBytes,
+                sentBytes, (double) rawBytes / Math.max(1, sentBytes), cpuNanos / 1e6);
+    }
+
+    /**
+     * Sends only the blocks that differ from the server's copy, see {@link DeltaSync}. Literal bytes
+     * are buffered in memory, so the delta is abandoned once they exceed half the file or
+     * {@code MAX_DELTA_CHUNKS} chunks, or half a request of the binary transport. A delta that only
+     * references the server's blocks in order is not sent at all
+     * @param path local file
+     * @param fileName name of the file on the server
+     * @return true if the delta was applied, false if the file has to be uploaded in full
+     * @throws IOException
+     */
+    public boolean uploadDelta(Path path, String fileName) throws IOException {
+        try (MappedFile file = MappedFile.open(path, mappedReadThreshold)) {
+            return uploadDelta(file, fileName);
+        }
+    }
+
+    private boolean uploadDelta(MappedFile file, String fileName) throws IOException {
+        long fileSize = file.size();
+        int blockSize = DeltaSync.blockSizeFor(fileSize);
+        List<BlockSignature> signatures = fileServer.getSignatures(fileName, blockSize);
+        if (signatures.isEmpty()) {
+            return false;
+        }
+        long maxLiteralBytes = Math.min(fileSize / 2, (long) MAX_DELTA_CHUNKS * chunkSize);
+        if (fileServer instanceof BinaryFileClient) {
+            // leaves the other half for the block references
+            maxLiteralBytes = Math.min(maxLiteralBytes, BinaryProtocol.MAX_PAYLOAD_BYTES / 2);
+        }
+        List<DeltaInstruction> delta = DeltaSync.computeDelta(file, signatures, blockSize, maxLiteralBytes);
+        if (delta == null) {
+            return false;
+        }
+        if (DeltaSync.isUnchanged(delta, signatures)) {
+            System.out.println("Skipped " + fileName + ", no block changed");
+            return true;
+        }
+        try {
+            return fileServer.applyDelta(fileName, blockSize, DeltaSync.basisDigest(signatures), delta);
+        } catch (MarshalException marshalException) {
+            // too large for one request of the binary transport
+            return false;
+        }
+    }
+
+    /**
+     * Splits a file with {@link ContentChunker}, sends only the chunks the server's chunk store is
+     * missing (batched up to {@code chunkSize} bytes per call) and commits the file's manifest. A
+     * file whose manifest is too long for the binary transport is uploaded in full instead
+     * @param path local file
+     * @param fileName name of the file on the server
+     * @return number of chunk bytes sent on the wire
+     * @throws IOException
+     */
+    public long uploadDeduplicated(Path path, String fileName) throws IOException {
+        List<String> hashes;
+        TransferCodec codec;
+        long bytesSent = 0;
+        long rawBytes = 0;
+        long cpuNanos = 0;
+        try (MappedFile file = MappedFile.open(path, mappedReadThreshold)) {
+            List<ContentChunker.ChunkRef> chunks = ContentChunker.chunk(file);
+            hashes = new ArrayList<>(chunks.size());
+            for (ContentChunker.ChunkRef chunk : chunks) {
+                hashes.add(chunk.getHash());
+            }
+            if (fileServer instanceof BinaryFileClient && !BinaryFileClient.fitsManifest(fileName, hashes)) {
+                uploadStreamed(path, fileName);
+                return file.size();
+            }
+            Set<String> missing = new HashSet<>(fileServer.findMissingChunks(hashes));
+            codec = compress && !missing.isEmpty() ? TransferCodec.probe(path) : TransferCodec.NONE;
+
+            List<byte[]> batch = new ArrayList<>();
+            long batchBytes = 0;
+            for (ContentChunker.ChunkRef chunk : chunks) {
+                if (!missing.remove(chunk.getHash())) {
+                    continue;
+                }
+                byte[] data = new byte[chunk.getLength()];
+                file.read(chunk.getOffset(), data, 0, data.length);
+                rawBytes += data.length;
+                if (codec == TransferCodec.DEFLATE) {
+                    long start = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+                    data = TransferCodec.deflate(data);
+                    cpuNanos += THREAD_MX_BEAN.getCurrentThreadCpuTime() - start;
+                }
+                batch.add(data);
+                batchBytes += data.length;
+                if (batchBytes >= chunkSize) {
+                    fileServer.uploadChunks(batch, codec);
+                    bytesSent += batchBytes;
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+            if (!batch.isEmpty()) {
+                fileServer.uploadChunks(batch, codec);
+                bytesSent += batchBytes;
+            }
+        }
+        if (codec == TransferCodec.DEFLATE) {
+            reportCompression(fileName, rawBytes, bytesSent, cpuNanos);
+        }
+        fileServer.commitManifest(fileName, hashes);
+        return bytesSent;
+    }
+}
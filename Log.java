@@ -0,0 +1,113 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchronous, rate-limited console log for the servers' hot paths. A call only checks the rate
+ * limit and queues the message; formatting and printing happen on a background thread, so a slow
+ * console never holds up an RMI call. Messages over {@code maxLinesPerSecond}, or arriving while
+ * the queue is full, are dropped and reported as one "suppressed" line per second.
+ */
+public final class Log {
+
+    public static final int DEFAULT_MAX_LINES_PER_SECOND = 100;
+
+    private static final int QUEUE_CAPACITY = 10_000;
+
+    private static final BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static volatile int maxLinesPerSecond = DEFAULT_MAX_LINES_PER_SECOND;
+    private static final AtomicLong windowSecond = new AtomicLong();
+    private static final AtomicInteger linesInWindow = new AtomicInteger();
+    private static final LongAdder suppressed = new LongAdder();
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-drain"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * @param linesPerSecond messages printed per second at most, further ones are dropped
+     */
+    public static void setMaxLinesPerSecond(int linesPerSecond) {
+        maxLinesPerSecond = linesPerSecond;
+    }
+
+    public static void info(String message) {
+        enqueue(new Object[] { message });
+    }
+
+    /**
+     * @param format {@link String#format} pattern, formatted on the log thread
+     * @param args arguments of the pattern; they must not be changed after the call
+     */
+    public static void info(String format, Object... args) {
+        Object[] entry = new Object[args.length + 1];
+        entry[0] = format;
+        System.arraycopy(args, 0, entry, 1, args.length);
+        enqueue(entry);
+    }
+
+    /**
+     * @return messages dropped so far
+     */
+    public static long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    private static void enqueue(Object[] entry) {
+        long second = System.currentTimeMillis() / 1000;
+        long window = windowSecond.get();
+        if (second != window && windowSecond.compareAndSet(window, second)) {
+            linesInWindow.set(0);
+        }
+        if (linesInWindow.incrementAndGet() > maxLinesPerSecond || !queue.offer(entry)) {
+            suppressed.increment();
+        }
+    }
+
+    private static void writeLoop() {
+        long reported = 0;
+        long reportedAt = 0;
+        while (true) {
+            try {
+                Object[] entry = queue.poll(1, TimeUnit.SECONDS);
+                if (entry != null) {
+                    System.out.println(format(entry));
+                }
+                long dropped = suppressed.sum();
+                long now = System.currentTimeMillis();
+                if (dropped != reported && now - reportedAt >= 1000) {
+                    System.out.println("Log: suppressed " + (dropped - reported) + " lines");
+                    reported = dropped;
+                    reportedAt = now;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void drain() {
+        Object[] entry;
+        while ((entry = queue.poll()) != null) {
+            System.out.println(format(entry));
+        }
+    }
+
+    private static String format(Object[] entry) {
+        if (entry.length == 1) {
+            return (String) entry[0];
+        }
+        Object[] args = new Object[entry.length - 1];
+        System.arraycopy(entry, 1, args, 0, args.length);
+        return String.format((String) entry[0], args);
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Read-only view of a local file for the upload paths. Files from {@code threshold} bytes are
+ * memory mapped one window at a time, so hashing, chunking and sending read the page cache in
+ * place and neither the heap nor the resident set grows with the file; smaller files are read into
+ * the heap once, which is cheaper than setting up a mapping.
+ * <p>
+ * A window is dropped when the reader moves past it and unmapped by the garbage collector once no
+ * buffer refers to it, never explicitly, so a buffer returned by {@link #slice(long, int)} stays
+ * safe to read for as long as the caller holds it. Dropped windows keep their address space until
+ * they are collected; their pages are clean page cache the kernel can reclaim at any time. The view
+ * must not be shared between threads. The size is fixed when the file is opened; if the file is
+ * truncated under a mapping, reads fail with the {@link InternalError} the JVM raises, see
+ * {@link #changed(InternalError)}.
+ * <p>
+ * Each window is hashed when it is mapped, so a reader that went through the file gets its
+ * {@link #contentHash()} without reading it again.
+ */
+public class MappedFile implements Closeable {
+
+    /**
+     * Files from this size are mapped when {@code client.mappedReadThreshold} is not configured
+     */
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Bytes mapped at a time, which bounds the pages one reader keeps referenced
+     */
+    private static final long WINDOW_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * A new window starts this far before the position that caused it, so a reader looking a
+     * little behind its position, like the delta window, does not remap on every step
+     */
+    private static final long WINDOW_LOOKBEHIND = WINDOW_BYTES / 4;
+
+    private final FileChannel channel;
+    private final long size;
+    private final boolean mapped;
+    private ByteBuffer window;
+    private long windowStart;
+    private final CRC32C hash = new CRC32C();
+    private long hashedBytes;
+
+    private MappedFile(FileChannel channel, long size, boolean mapped, ByteBuffer window) {
+        this.channel = channel;
+        this.size = size;
+        this.mapped = mapped;
+        this.window = window;
+    }
+
+    /**
+     * @param path local file
+     * @param threshold size from which the file is mapped rather than read into the heap; files
+     *        larger than one window are always mapped
+     * @return view of the file as it is now
+     * @throws IOException
+     */
+    public static MappedFile open(Path path, long threshold) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > 0 && (size >= threshold || size > WINDOW_BYTES)) {
+                return new MappedFile(channel, size, true, null);
+            }
+            ByteBuffer contents = ByteBuffer.allocate((int) size);
+            while (contents.hasRemaining() && channel.read(contents) > 0) {
+                // keep reading until the file is in memory
+            }
+            channel.close();
+            return new MappedFile(null, contents.position(), false, contents.flip());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return true if the file is memory mapped, false if it was read into the heap
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * @param position offset in the file
+     * @param length number of bytes, at most {@code size() - position}
+     * @return buffer holding the range from position 0
+     * @throws IOException
+     */
+    public ByteBuffer slice(long position, int length) throws IOException {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IndexOutOfBoundsException("Range " + position + "+" + length + " outside of " + size + " bytes");
+        }
+        ensureWindow(position, length);
+        return window.slice((int) (position - windowStart), length);
+    }
+
+    /**
+     * @param position offset in the file, less than {@code size()}
+     * @return the byte at {@code position}
+     * @throws IOException
+     */
+    public byte get(long position) throws IOException {
+        long index = position - windowStart;
+        if (window == null || index < 0 || index >= window.limit()) {
+            if (position < 0 || position >= size) {
+                throw new IndexOutOfBoundsException("Position " + position + " outside of " + size + " bytes");
+            }
+            ensureWindow(position, 1);
+            index = position - windowStart;
+        }
+        return window.get((int) index);
+    }
+
+    /**
+     * Copies a range of the file into an array
+     * @param position offset in the file
+     * @param target array to fill
+     * @param offset first index of {@code target} to fill
+     * @param length number of bytes, at most {@code size() - position}
+     * @throws IOException
+     */
+    public void read(long position, byte[] target, int offset, int length) throws IOException {
+        slice(position, length).get(target, offset, length);
+    }
+
+    /**
+     * Hashes the bytes no window has covered yet and returns the hash of the whole file
+     * @return {@link FileInfo#contentHash(Path)} of the contents this view reads
+     * @throws IOException
+     */
+    public String contentHash() throws IOException {
+        while (hashedBytes < size) {
+            ensureWindow(hashedBytes, (int) Math.min(WINDOW_BYTES, size - hashedBytes));
+            hashWindow();
+        }
+        return FileInfo.formatHash(hash);
+    }
+
+    /**
+     * Drops the current window and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        if (mapped) {
+            window = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * @param internalError error the JVM raised on a read of a mapped window
+     * @return the error as the {@link IOException} the upload paths handle
+     */
+    public static IOException changed(InternalError internalError) {
+        return new IOException("File changed while reading", internalError);
+    }
+
+    private void ensureWindow(long position, int length) throws IOException {
+        if (window != null && position >= windowStart && position + length <= windowStart + window.limit()) {
+            return;
+        }
+        window = null;
+        long lookbehind = length <= WINDOW_BYTES ? WINDOW_LOOKBEHIND : 0;
+        long start = Math.max(0, Math.min(position - lookbehind, size - WINDOW_BYTES));
+        long end = Math.min(size, Math.max(start + WINDOW_BYTES, position + length));
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        windowStart = start;
+        hashWindow();
+    }
+
+    /**
+     * Extends the hash over the current window if it continues the bytes hashed so far; windows
+     * further ahead are left to {@link #contentHash()}
+     */
+    private void hashWindow() {
+        long end = windowStart + window.limit();
+        if (hashedBytes >= windowStart && hashedBytes < end) {
+            hash.update(window.duplicate().position((int) (hashedBytes - windowStart)));
+            hashedBytes = end;
+        }
+    }
+}
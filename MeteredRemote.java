@@ -0,0 +1,60 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exports a remote object behind a proxy that records the latency and failures of every call in
+ * a {@link Metrics} timer named after the method, so the implementation needs no timing code.
+ * Overloads of a method share one timer. Clients must be handed the stub returned by
+ * {@link #export}, e.g. by binding it in the registry.
+ */
+public final class MeteredRemote implements InvocationHandler {
+
+    private final Object target;
+    private final Metrics metrics;
+    private final Map<Method, Metrics.Timer> timers = new ConcurrentHashMap<>();
+
+    private MeteredRemote(Object target, Metrics metrics) {
+        this.target = target;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param type remote interface clients call
+     * @param target implementation the calls are passed to
+     * @param metrics metrics the timers are kept in
+     * @param port port to export on, 0 for any
+     * @return stub of the metered object
+     * @throws RemoteException if the export fails
+     */
+    public static <T extends Remote> T export(Class<T> type, T target, Metrics metrics, int port) throws RemoteException {
+        Remote proxy = (Remote) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new MeteredRemote(target, metrics));
+        return type.cast(UnicastRemoteObject.exportObject(proxy, port));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(target, args);
+        }
+        Metrics.Timer timer = timers.computeIfAbsent(method, key -> metrics.timer(key.getName()));
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object result = method.invoke(target, args);
+            failed = false;
+            return result;
+        } catch (InvocationTargetException invocationTargetException) {
+            throw invocationTargetException.getCause();
+        } finally {
+            timer.record(start, failed);
+        }
+    }
+}
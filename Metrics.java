@@ -0,0 +1,215 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Low-overhead metrics of one server: {@link LongAdder} counters, gauges read on demand and a
+ * {@link Timer} per RMI method, filled by {@link MeteredRemote}. Once {@link #registerMBeans()}
+ * has been called, the metrics are visible over JMX (e.g. in jconsole) as
+ * {@code rmisync:type=<name>} and one {@code rmisync:type=<name>,method=<method>} per timer;
+ * {@link #startSnapshots(long)} also dumps them to the {@link Log} periodically.
+ */
+public class Metrics implements MetricsMXBean {
+
+    public static final int DEFAULT_SNAPSHOT_SECONDS = 60;
+
+    private static final String DOMAIN = "rmisync";
+
+    private static final ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Latency histogram and error count of one operation
+     */
+    public static final class Timer implements TimerMXBean {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * @param startNanos {@link System#nanoTime()} when the operation started
+         * @param failed whether the operation threw
+         */
+        public void record(long startNanos, boolean failed) {
+            latency.record(System.nanoTime() - startNanos);
+            if (failed) {
+                errors.increment();
+            }
+        }
+
+        @Override
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return latency.getMean() / 1000;
+        }
+
+        @Override
+        public long getP50Micros() {
+            return latency.getValueAtPercentile(50) / 1000;
+        }
+
+        @Override
+        public long getP99Micros() {
+            return latency.getValueAtPercentile(99) / 1000;
+        }
+
+        @Override
+        public long getP999Micros() {
+            return latency.getValueAtPercentile(99.9) / 1000;
+        }
+
+        @Override
+        public long getMaxMicros() {
+            return latency.getMax() / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d errors=%d mean=%.0fus p50=%dus p99=%dus p99.9=%dus max=%dus", getCount(),
+                    getErrors(), getMeanMicros(), getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+        }
+    }
+
+    private final String name;
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private volatile MBeanServer mbeanServer;
+
+    /**
+     * Counter values and time of the last snapshot, for the rates it reports
+     */
+    private Map<String, Long> lastCounts = Map.of();
+    private long lastSnapshotNanos = System.nanoTime();
+
+    /**
+     * @param name name of the server in JMX and snapshots
+     */
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the counter, created at 0 on first use
+     */
+    public LongAdder counter(String counterName) {
+        return counters.computeIfAbsent(counterName, key -> new LongAdder());
+    }
+
+    /**
+     * @param gaugeName name of the gauge
+     * @param value read whenever the gauge is reported
+     */
+    public void gauge(String gaugeName, LongSupplier value) {
+        gauges.put(gaugeName, value);
+    }
+
+    /**
+     * @return the timer, created on first use
+     */
+    public Timer timer(String timerName) {
+        Timer timer = timers.get(timerName);
+        if (timer == null) {
+            Timer created = new Timer();
+            timer = timers.putIfAbsent(timerName, created);
+            if (timer == null) {
+                timer = created;
+                register(timerName, created);
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Registers these metrics and their timers, including ones created later, with the platform MBean server
+     * @throws JMException if the name is already registered
+     */
+    public void registerMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName(DOMAIN, "type", name));
+        mbeanServer = server;
+        timers.forEach(this::register);
+    }
+
+    /**
+     * Logs a snapshot every {@code periodSeconds}
+     * @param periodSeconds interval, 0 or less to never log one
+     */
+    public void startSnapshots(long periodSeconds) {
+        if (periodSeconds > 0) {
+            snapshots.scheduleAtFixedRate(() -> Log.info(getSnapshot()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((counterName, counter) -> values.put(counterName, counter.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((gaugeName, gauge) -> values.put(gaugeName, gauge.getAsLong()));
+        return values;
+    }
+
+    /**
+     * @return all metrics as text, with the rate of each counter since the previous snapshot
+     */
+    @Override
+    public synchronized String getSnapshot() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - lastSnapshotNanos) / 1e9);
+        Map<String, Long> counts = getCounters();
+        StringBuilder snapshot = new StringBuilder(name).append(" metrics");
+        counts.forEach((counterName, count) -> snapshot.append(String.format("%n  %s=%d (%.1f/s)", counterName, count,
+                (count - lastCounts.getOrDefault(counterName, 0L)) / seconds)));
+        getGauges().forEach((gaugeName, value) -> snapshot.append(String.format("%n  %s=%d", gaugeName, value)));
+        new TreeMap<>(timers).forEach((timerName, timer) -> {
+            if (timer.getCount() > 0) {
+                snapshot.append(String.format("%n  %s %s", timerName, timer));
+            }
+        });
+        lastCounts = counts;
+        lastSnapshotNanos = now;
+        return snapshot.toString();
+    }
+
+    private void register(String timerName, Timer timer) {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + name + ",method=" + timerName);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(timer, objectName);
+            }
+        } catch (JMException jmException) {
+            Log.info("Could not register metrics of " + timerName + ": " + jmException.getMessage());
+        }
+    }
+}
@@ -0,0 +1,15 @@
+import java.util.Map;
+
+/**
+ * JMX view of a {@link Metrics}
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    /**
+     * @return all metrics as text
+     */
+    String getSnapshot();
+}
@@ -0,0 +1,35 @@
+import java.nio.file.Path;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks striped over file paths. A path always maps to the same lock, so writes to
+ * one file are serialized while writes to different files only contend when their paths share a
+ * stripe, and the number of locks stays bounded however many files the server holds.
+ */
+public class PathLocks {
+
+    private final Lock[] stripes;
+
+    /**
+     * @param stripes number of locks, a power of two
+     */
+    public PathLocks(int stripes) {
+        if (Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two: " + stripes);
+        }
+        this.stripes = new Lock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @param path normalized absolute path
+     * @return lock guarding writes to {@code path}
+     */
+    public Lock forPath(Path path) {
+        int hash = path.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+}
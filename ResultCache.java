@@ -0,0 +1,236 @@
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded store of async task results for {@link ComputeServerImpl}. A task stays in the store
+ * while it runs; once complete, its result is kept for at most {@code ttlMillis}, and the oldest
+ * completed results are evicted first whenever the store holds more than {@code maxEntries}
+ * tasks or more than {@code maxBytes} of estimated result size. Results can optionally be dropped
+ * on their first successful read.
+ * <p>
+ * Lookups are a plain {@link ConcurrentHashMap#get} plus an expiry check and take no lock;
+ * budget and TTL eviction run when a task completes.
+ */
+public class ResultCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024 * 1024;
+    public static final int DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final boolean removeOnRead;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Completed entries in completion order, so the head is the first to expire or be evicted
+     */
+    private final ConcurrentLinkedQueue<Entry> completed = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong resultBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Entry {
+        private final String taskId;
+        private final Future<?> future;
+        private volatile long completedAt;
+        private volatile long bytes;
+
+        private Entry(String taskId, Future<?> future) {
+            this.taskId = taskId;
+            this.future = future;
+        }
+
+        private boolean isExpired(long now, long ttlMillis) {
+            long completedAt = this.completedAt;
+            return completedAt != 0 && now - completedAt > ttlMillis;
+        }
+    }
+
+    public ResultCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_TTL_MILLIS, false);
+    }
+
+    /**
+     * @param maxEntries tasks kept, running or complete
+     * @param maxBytes estimated size of the completed results kept
+     * @param ttlMillis time a result is kept after its task completes
+     * @param removeOnRead whether a result is dropped once it has been read
+     */
+    public ResultCache(int maxEntries, long maxBytes, long ttlMillis, boolean removeOnRead) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.removeOnRead = removeOnRead;
+    }
+
+    /**
+     * Runs a task on {@code executor} and keeps its future under {@code taskId}
+     * @param taskId unique id of the task
+     * @param task computation
+     * @param executor executor running the task
+     * @return future of the task
+     * @throws RejectedExecutionException if the executor does not accept the task, which is then not kept
+     */
+    public <T> Future<T> submit(String taskId, Callable<T> task, Executor executor) {
+        Entry[] entry = new Entry[1];
+        FutureTask<T> future = new FutureTask<>(task) {
+            @Override
+            protected void done() {
+                onCompleted(entry[0]);
+            }
+        };
+        entry[0] = new Entry(taskId, future);
+        entries.put(taskId, entry[0]);
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException rejectedExecutionException) {
+            entries.remove(taskId, entry[0]);
+            throw rejectedExecutionException;
+        }
+        return future;
+    }
+
+    /**
+     * @param taskId id passed to {@link #submit}
+     * @return future of the task, or null if the id is unknown, evicted or expired
+     */
+    public Future<?> get(String taskId) {
+        Entry entry = entries.get(taskId);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis(), ttlMillis)) {
+            if (remove(entry)) {
+                evictions.increment();
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.future;
+    }
+
+    /**
+     * Records that the result of a completed task was handed to a client, dropping it if the
+     * cache removes results on read
+     * @param taskId id passed to {@link #submit}
+     */
+    public void resultRead(String taskId) {
+        if (removeOnRead) {
+            Entry entry = entries.get(taskId);
+            if (entry != null && entry.completedAt != 0) {
+                remove(entry);
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return tasks held, running or complete
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return estimated size of the completed results held
+     */
+    public long getResultBytes() {
+        return resultBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ResultCache[entries=" + size() + ", bytes=" + getResultBytes() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
+    private void onCompleted(Entry entry) {
+        long bytes = 0;
+        try {
+            if (!entry.future.isCancelled()) {
+                bytes = estimateBytes(entry.future.get());
+            }
+        } catch (Exception e) {
+            // a failed task only keeps its exception
+        }
+        entry.bytes = bytes;
+        entry.completedAt = System.currentTimeMillis();
+        if (entries.get(entry.taskId) == entry) {
+            resultBytes.addAndGet(bytes);
+            completed.add(entry);
+        }
+        evict();
+    }
+
+    /**
+     * Drops expired results and, oldest first, results over the budget
+     */
+    private synchronized void evict() {
+        long now = System.currentTimeMillis();
+        Entry head;
+        while ((head = completed.peek()) != null) {
+            boolean removed = entries.get(head.taskId) != head;
+            boolean overBudget = entries.size() > maxEntries || resultBytes.get() > maxBytes;
+            if (!removed && !overBudget && !head.isExpired(now, ttlMillis)) {
+                break;
+            }
+            completed.poll();
+            if (!removed && remove(head)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    private boolean remove(Entry entry) {
+        if (!entries.remove(entry.taskId, entry)) {
+            return false;
+        }
+        if (entry.completedAt != 0) {
+            resultBytes.addAndGet(-entry.bytes);
+        }
+        return true;
+    }
+
+    /**
+     * Rough heap size of a result, enough to keep large sorted lists within the byte budget
+     */
+    private static long estimateBytes(Object result) {
+        if (result instanceof Collection) {
+            // list object and backing array, plus a reference and a boxed value per element
+            return 56 + 20L * ((Collection<?>) result).size();
+        }
+        if (result instanceof int[]) {
+            return 16 + 4L * ((int[]) result).length;
+        }
+        if (result instanceof long[]) {
+            return 16 + 8L * ((long[]) result).length;
+        }
+        return 16;
+    }
+}
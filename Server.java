@@ -13,23 +13,46 @@ import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import javax.management.JMException;
+
 import org.yaml.snakeyaml.Yaml;
 
 public class Server {
 
     private static final String CONFIG_FILE_NAME = "config.yaml";
 
-    
+    /**
+     * Starts the file and compute servers. With {@code computeNode <port>} only an extra compute
+     * node is started on {@code port}, which registers itself with the main compute server's
+     * registry so clients spread tasks over it.
+     * 
+     * @param args Command line arguments
+     */
     public static void main(String[] args) {
         try {
             InputStream inputStream = new FileInputStream(new File(CONFIG_FILE_NAME));
             var yaml = new Yaml();
             Map<String, Object> data = yaml.load(inputStream);
+            Log.setMaxLinesPerSecond(Util.getMaxLogLinesPerSecond(data));
+            int snapshotSeconds = Util.getMetricsSnapshotSeconds(data);
+
+            if (args.length > 1 && args[0].equals("computeNode")) {
+                startComputeNode(Util.getComputeServerAddr(data), Util.getComputeServerPort(data), Util.getComputeServerPath(data),
+                        Integer.parseInt(args[1]), new ResultCache(Util.getResultCacheMaxEntries(data), Util.getResultCacheMaxBytes(data),
+                                Util.getResultTtlMillis(data), Util.getRemoveResultOnRead(data)),
+                        new TaskEngine(Util.getInteractiveThreads(data), Util.getInteractiveQueue(data),
+                                Util.getBatchThreads(data), Util.getBatchQueue(data)), snapshotSeconds);
+                return;
+            }
             
             String fileServerDir = Util.getServerDir(data);
             Integer port = Util.getServerPort(data);
             createDirIfNotExists(fileServerDir);
-            spawnServerThreads(Util.getServerAddr(data),port, fileServerDir, Util.getComputeServerPort(data), Util.getComputeServerPath(data));
+            ResultCache resultCache = new ResultCache(Util.getResultCacheMaxEntries(data), Util.getResultCacheMaxBytes(data),
+                    Util.getResultTtlMillis(data), Util.getRemoveResultOnRead(data));
+            TaskEngine taskEngine = new TaskEngine(Util.getInteractiveThreads(data), Util.getInteractiveQueue(data),
+                    Util.getBatchThreads(data), Util.getBatchQueue(data));
+            spawnServerThreads(Util.getServerAddr(data),port, Util.getBulkPort(data), Util.getBinaryPort(data), Util.getBinaryWorkers(data), fileServerDir, Util.getComputeServerPort(data), Util.getComputeServerPath(data), resultCache, taskEngine, Util.getSortRunBytes(data), snapshotSeconds);
         } catch (IOException ioException) {
             System.out.println("Could not read config file");
         }
@@ -50,31 +73,51 @@ public class Server {
         }
     }
 
-    private static void spawnServerThreads(String serverAddr,int fsPort, String serverDirName, int computePort, String computeServerPath) {
+    private static void spawnServerThreads(String serverAddr,int fsPort, int bulkPort, int binaryPort, int binaryWorkers, String serverDirName, int computePort, String computeServerPath,
+            ResultCache resultCache, TaskEngine taskEngine, int sortRunBytes, int snapshotSeconds) {
+        FileServerImpl fileServer;
+        try {
+            fileServer = new FileServerImpl(serverDirName);
+        } catch (RemoteException e) {
+            System.out.println("Error opening the File Server directory " + serverDirName);
+            e.printStackTrace();
+            return;
+        }
         ExecutorService executorService = Executors.newFixedThreadPool(2);
 
         executorService.submit(() -> {
             try {
-                FileServer fileServer = new FileServerImpl(serverDirName);
+                if (bulkPort > 0) {
+                    fileServer.startBulkTransfer(bulkPort);
+                }
+                if (binaryPort > 0) {
+                    BinaryTransportServer binaryServer = new BinaryTransportServer(binaryPort, binaryWorkers, fileServer, fileServer.getMetrics());
+                    System.out.println("Running binary file transport on port " + binaryServer.getPort());
+                }
                 LocateRegistry.createRegistry(fsPort);
                 String serverPath = "rmi://"+serverAddr+":" + fsPort+"/fileOp";
                 System.out.println("Running file server at " +  serverPath);
-                Naming.rebind(serverPath, fileServer);
+                Naming.rebind(serverPath, MeteredRemote.export(FileServer.class, fileServer, fileServer.getMetrics(), 0));
+                startMetrics(fileServer.getMetrics(), snapshotSeconds);
             } catch (RemoteException e) {
                 System.out.println("Error spawning thread to create File Server");
                 e.printStackTrace();
             } catch (MalformedURLException malformedURLException) {
                 System.out.println("Invalid url, cannot run server");
-            } 
+            } catch (IOException ioException) {
+                System.out.println("Error opening bulk transfer port " + bulkPort + " or binary port " + binaryPort);
+                ioException.printStackTrace();
+            }
         });
 
         executorService.submit(() -> {
             try {
-                ComputeServer computeServer = new ComputeServerImpl();
+                ComputeServerImpl computeServer = new ComputeServerImpl(resultCache, taskEngine, fileServer, sortRunBytes);
                 LocateRegistry.createRegistry(computePort);
-                String serverPath = "rmi://" + serverAddr + ":" + computePort+"/compute";
+                String serverPath = "rmi://" + serverAddr + ":" + computePort + computeServerPath;
                 System.out.println("Running compute server at " +  serverPath);
-                Naming.rebind(serverPath, computeServer);
+                Naming.rebind(serverPath, MeteredRemote.export(ComputeServer.class, computeServer, computeServer.getMetrics(), 0));
+                startMetrics(computeServer.getMetrics(), snapshotSeconds);
             } catch (RemoteException e) {
                 System.out.println("Error spawning thread to create Compute Server");
             } catch (MalformedURLException malformedURLException) {
@@ -84,4 +127,47 @@ public class Server {
 
         executorService.shutdown();
     }
+
+    /**
+     * Runs a compute node without a data directory on its own registry, and binds it in the
+     * registry of the main compute server as {@code computeServerPath + "-" + nodePort}. The
+     * registry only accepts binds from its own host, so nodes on other hosts have to be listed
+     * in the client config instead.
+     */
+    private static void startComputeNode(String computeAddr, int computePort, String computeServerPath, int nodePort,
+            ResultCache resultCache, TaskEngine taskEngine, int snapshotSeconds) {
+        try {
+            ComputeServerImpl computeServer = new ComputeServerImpl(resultCache, taskEngine, null, ExternalSort.DEFAULT_RUN_BYTES);
+            ComputeServer computeNode = MeteredRemote.export(ComputeServer.class, computeServer, computeServer.getMetrics(), 0);
+            startMetrics(computeServer.getMetrics(), snapshotSeconds);
+            LocateRegistry.createRegistry(nodePort);
+            String nodePath = "rmi://" + computeAddr + ":" + nodePort + computeServerPath;
+            Naming.rebind(nodePath, computeNode);
+            System.out.println("Running compute node at " + nodePath);
+            String registeredPath = "rmi://" + computeAddr + ":" + computePort + computeServerPath + "-" + nodePort;
+            try {
+                Naming.rebind(registeredPath, computeNode);
+                System.out.println("Registered compute node as " + registeredPath);
+            } catch (RemoteException e) {
+                System.out.println("Could not register with the compute server at " + registeredPath + ", list the node in the client config");
+            }
+        } catch (RemoteException e) {
+            System.out.println("Error creating compute node");
+            e.printStackTrace();
+        } catch (MalformedURLException malformedURLException) {
+            System.out.println("Invalid url, cannot run compute node");
+        }
+    }
+
+    /**
+     * Publishes a server's metrics over JMX and starts their periodic snapshots
+     */
+    private static void startMetrics(Metrics metrics, int snapshotSeconds) {
+        try {
+            metrics.registerMBeans();
+        } catch (JMException jmException) {
+            System.out.println("Could not publish metrics over JMX: " + jmException.getMessage());
+        }
+        metrics.startSnapshots(snapshotSeconds);
+    }
 }
@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.rmi.ServerException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups uploads of small files and deletes into one {@link FileServer#applyBatch(byte[])} call.
+ * A batch is sent once it reaches {@code maxBatchBytes} or its oldest operation has waited
+ * {@code maxBatchDelayMillis}, whichever comes first. Once a batch is applied, its files are
+ * recorded in the {@link ClientIndex}, if there is one.
+ * <p>
+ * Failed batches are retried like uploads, see {@link FileUploader#applyBatch(FileBatch)}, holding
+ * back further operations so they stay in order. A batch the server rejects is resent one
+ * operation at a time, so an invalid file name does not cost the other files of its batch.
+ */
+public class SmallFileBatcher {
+
+    private final FileUploader uploader;
+    private final UploadScheduler scheduler;
+    private final long maxFileBytes;
+    private final int maxBatchBytes;
+    private final long maxBatchDelayMillis;
+    private final ClientIndex index;
+
+    private final FileBatch batch = new FileBatch();
+    private final Map<String, ClientIndex.Entry> pendingEntries = new HashMap<>();
+    private long pendingFileBytes;
+    private long oldestPendingAt;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * @param uploader uploader the batches are sent and retried through
+     * @param scheduler scheduler whose throughput counters batched operations are added to
+     * @param maxFileBytes largest file that is batched instead of uploaded on its own
+     * @param maxBatchBytes encoded batch size that triggers a send
+     * @param maxBatchDelayMillis longest time an operation waits in a batch
+     */
+    public SmallFileBatcher(FileUploader uploader, UploadScheduler scheduler, long maxFileBytes, int maxBatchBytes,
+            long maxBatchDelayMillis) {
+        this(uploader, scheduler, maxFileBytes, maxBatchBytes, maxBatchDelayMillis, null);
+    }
+
+    /**
+     * @param uploader uploader the batches are sent and retried through
+     * @param scheduler scheduler whose throughput counters batched operations are added to
+     * @param maxFileBytes largest file that is batched instead of uploaded on its own
+     * @param maxBatchBytes encoded batch size that triggers a send
+     * @param maxBatchDelayMillis longest time an operation waits in a batch
+     * @param index index recording the synced state, or null
+     */
+    public SmallFileBatcher(FileUploader uploader, UploadScheduler scheduler, long maxFileBytes, int maxBatchBytes,
+            long maxBatchDelayMillis, ClientIndex index) {
+        this.index = index;
+        this.uploader = uploader;
+        this.scheduler = scheduler;
+        this.maxFileBytes = maxFileBytes;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchDelayMillis = maxBatchDelayMillis;
+        long tickMillis = Math.max(10, maxBatchDelayMillis / 2);
+        ticker.scheduleWithFixedDelay(this::flushIfDue, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param kind operation kind
+     * @param bytes size of the file
+     * @return true if the operation is small enough to be batched
+     */
+    public boolean accepts(WatchEvent.Kind<?> kind, long bytes) {
+        return kind == StandardWatchEventKinds.ENTRY_DELETE || bytes <= maxFileBytes;
+    }
+
+    /**
+     * Adds an operation to the current batch, sending the batch if it is full
+     * @param kind operation kind
+     * @param path local file
+     * @param fileName name of the file on the server
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized void add(WatchEvent.Kind<?> kind, Path path, String fileName) throws IOException {
+        ClientIndex.Entry entry = null;
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            batch.addDelete(fileName);
+        } else {
+            long lastModified = Files.getLastModifiedTime(path).toMillis();
+            byte[] data = Files.readAllBytes(path);
+            batch.addUpload(fileName, data);
+            pendingFileBytes += data.length;
+            entry = new ClientIndex.Entry(data.length, lastModified, FileInfo.contentHash(data));
+        }
+        if (pendingEntries.isEmpty()) {
+            oldestPendingAt = System.currentTimeMillis();
+        }
+        pendingEntries.put(fileName, entry);
+        if (batch.getSizeBytes() >= maxBatchBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * @param fileName name of the file on the server
+     * @return true if the current batch holds an operation on {@code fileName}
+     */
+    public synchronized boolean contains(String fileName) {
+        return pendingEntries.containsKey(fileName);
+    }
+
+    /**
+     * Sends the current batch, if any. Operations that still fail are left to the reconciliation on
+     * the next start, as their files are not recorded in the index
+     */
+    public synchronized void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            uploader.applyBatch(batch);
+            scheduler.recordCompleted(batch.getOperationCount(), pendingFileBytes);
+            System.out.println("Uploaded batch of " + batch.getOperationCount() + " operations");
+            record(Collections.emptySet());
+        } catch (ServerException serverException) {
+            System.out.println("Server rejected batch of " + batch.getOperationCount() + " operations ("
+                    + serverException.getMessage() + "), sending them one at a time");
+            applyEach();
+        } catch (IOException ioException) {
+            System.out.println("Error uploading batch of " + batch.getOperationCount() + " operations");
+            ioException.printStackTrace();
+        }
+        batch.reset();
+        pendingEntries.clear();
+        pendingFileBytes = 0;
+    }
+
+    /**
+     * Sends each operation of the current batch as a batch of its own
+     */
+    private void applyEach() {
+        List<FileBatch.Operation> operations;
+        try {
+            operations = FileBatch.decode(batch.toByteArray());
+        } catch (IOException ioException) {
+            throw new IllegalStateException("Batch cannot be decoded", ioException);
+        }
+        Set<String> failed = new HashSet<>();
+        int applied = 0;
+        long appliedBytes = 0;
+        for (FileBatch.Operation operation : operations) {
+            FileBatch single = new FileBatch();
+            if (operation.getType() == FileBatch.UPLOAD) {
+                single.addUpload(operation.getFileName(), operation.getData());
+            } else {
+                single.addDelete(operation.getFileName());
+            }
+            try {
+                uploader.applyBatch(single);
+                applied++;
+                appliedBytes += operation.getData() != null ? operation.getData().length : 0;
+            } catch (IOException ioException) {
+                failed.add(operation.getFileName());
+                System.out.println("Error syncing " + operation.getFileName() + ": " + ioException.getMessage());
+            }
+        }
+        scheduler.recordCompleted(applied, appliedBytes);
+        record(failed);
+    }
+
+    /**
+     * Records the applied files of the current batch in the index
+     * @param failed files with an operation that was not applied
+     */
+    private void record(Set<String> failed) {
+        if (index == null) {
+            return;
+        }
+        try {
+            for (Map.Entry<String, ClientIndex.Entry> pending : pendingEntries.entrySet()) {
+                if (failed.contains(pending.getKey())) {
+                    continue;
+                }
+                if (pending.getValue() != null) {
+                    index.put(pending.getKey(), pending.getValue());
+                } else {
+                    index.remove(pending.getKey());
+                }
+            }
+        } catch (IOException ioException) {
+            System.out.println("Error recording batch in the sync index");
+            ioException.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends the current batch and stops the flush timer
+     */
+    public void shutdown() {
+        ticker.shutdown();
+        flush();
+    }
+
+    private synchronized void flushIfDue() {
+        if (!batch.isEmpty() && System.currentTimeMillis() - oldestPendingAt >= maxBatchDelayMillis) {
+            flush();
+        }
+    }
+}
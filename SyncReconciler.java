@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Startup pass that catches up on changes made while the client was not running. The client
+ * directory is stat'ed and the server listed, and both are diffed against the {@link ClientIndex}
+ * of the last synced state: a local file whose size and modification time match its index entry
+ * is unchanged and never read, a server file whose hash matches the entry is unchanged on the
+ * server. Only changed files are hashed or transferred, so a restart costs O(changed files).
+ * <p>
+ * One way passes make the server mirror the client directory. Bidirectional passes also pull
+ * server side changes; a file changed on both sides is kept from the side with the newer
+ * modification time. Deletions recorded by the index are propagated in both modes, files the
+ * index never saw are copied rather than deleted.
+ */
+public class SyncReconciler {
+
+    private final FileServer fileServer;
+    private final FileUploader uploader;
+    private final FileDownloader downloader;
+    private final ClientIndex index;
+
+    private int uploaded;
+    private int downloaded;
+    private int deleted;
+    private int unchanged;
+
+    private static final class LocalFile {
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+
+        private LocalFile(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    /**
+     * @param fileServer FileServer obj. This is a rmi object
+     * @param uploader uploader for files that are newer locally
+     * @param downloader downloader for files that are newer on the server, null for a one way pass
+     * @param index last synced state, updated as files are reconciled
+     */
+    public SyncReconciler(FileServer fileServer, FileUploader uploader, FileDownloader downloader, ClientIndex index) {
+        this.fileServer = fileServer;
+        this.uploader = uploader;
+        this.downloader = downloader;
+        this.index = index;
+    }
+
+    /**
+     * Brings the client directory and the server in line
+     * @param root client directory
+     * @throws IOException if either side cannot be listed
+     */
+    public void reconcile(Path root) throws IOException {
+        Path normalizedRoot = root.toAbsolutePath().normalize();
+        Map<String, LocalFile> localFiles = scan(normalizedRoot);
+        Map<String, FileInfo> remoteFiles = new HashMap<>();
+        for (FileInfo remote : fileServer.listFiles()) {
+            remoteFiles.put(remote.getFileName(), remote);
+        }
+        Map<String, ClientIndex.Entry> synced = index.entries();
+
+        TreeSet<String> fileNames = new TreeSet<>(localFiles.keySet());
+        fileNames.addAll(remoteFiles.keySet());
+        fileNames.addAll(synced.keySet());
+        for (String fileName : fileNames) {
+            try {
+                reconcile(normalizedRoot, fileName, localFiles.get(fileName), remoteFiles.get(fileName),
+                        synced.get(fileName));
+            } catch (IOException ioException) {
+                System.out.println("Error reconciling " + fileName);
+                ioException.printStackTrace();
+            }
+        }
+        System.out.println("Reconciled " + normalizedRoot + ": " + uploaded + " uploaded, " + downloaded
+                + " downloaded, " + deleted + " deleted, " + unchanged + " unchanged");
+    }
+
+    private void reconcile(Path root, String fileName, LocalFile local, FileInfo remote, ClientIndex.Entry entry)
+            throws IOException {
+        boolean bidirectional = downloader != null;
+        boolean localChanged = local != null && (entry == null || !entry.matches(local.size, local.lastModified));
+        boolean remoteChanged = remote != null && (entry == null || !entry.getHash().equals(remote.getHash()));
+
+        if (local != null && remote != null) {
+            if (!localChanged && !remoteChanged) {
+                unchanged++;
+                return;
+            }
+            String localHash = localChanged ? FileInfo.contentHash(local.path) : entry.getHash();
+            if (localHash.equals(remote.getHash())) {
+                index.put(fileName, new ClientIndex.Entry(local.size, local.lastModified, localHash));
+                unchanged++;
+            } else if (!bidirectional
+                    || localChanged && (!remoteChanged || local.lastModified > remote.getLastModified())) {
+                upload(fileName, local, localHash, true);
+            } else {
+                download(remote, local.path);
+            }
+        } else if (local != null) {
+            if (bidirectional && entry != null && !localChanged) {
+                // deleted on the server since the last sync
+                Files.deleteIfExists(local.path);
+                index.remove(fileName);
+                deleted++;
+            } else {
+                upload(fileName, local, FileInfo.contentHash(local.path), false);
+            }
+        } else if (remote != null) {
+            if (entry != null && (!bidirectional || !remoteChanged)) {
+                // deleted locally since the last sync
+                uploader.delete(fileName);
+                index.remove(fileName);
+                deleted++;
+            } else if (bidirectional) {
+                Path target = root.resolve(fileName).normalize();
+                if (!target.startsWith(root)) {
+                    System.out.println("Skipping invalid file name from server: " + fileName);
+                    return;
+                }
+                download(remote, target);
+            }
+        } else {
+            index.remove(fileName);
+        }
+    }
+
+    private void upload(String fileName, LocalFile local, String hash, boolean modified) throws IOException {
+        uploader.upload(local.path, fileName, modified);
+        index.put(fileName, new ClientIndex.Entry(local.size, local.lastModified, hash));
+        uploaded++;
+    }
+
+    private void download(FileInfo remote, Path target) throws IOException {
+        downloader.download(remote, target);
+        index.put(remote.getFileName(), new ClientIndex.Entry(remote.getSize(),
+                Files.getLastModifiedTime(target).toMillis(), remote.getHash()));
+        downloaded++;
+    }
+
+    /**
+     * Collects size and modification time of every synced file below {@code root}
+     */
+    private static Map<String, LocalFile> scan(Path root) throws IOException {
+        Map<String, LocalFile> files = new HashMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && !ClientIndex.isIndexFile(file) && !FileDownloader.isTempFile(file)) {
+                    files.put(Util.toRemoteFileName(root, file), new LocalFile(file, attributes));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exception) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+}
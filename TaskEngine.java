@@ -0,0 +1,176 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the task types registered with {@link #register} for {@link ComputeServerImpl}. Each
+ * {@link TaskPriority} has its own work-stealing {@link ForkJoinPool}, so batch work can only
+ * occupy the batch threads and never delays interactive tasks; a parallel sort started by a batch
+ * task also forks into the batch pool rather than the common pool. Each lane admits a bounded
+ * number of tasks, queued or running, and rejects further ones instead of queuing without limit.
+ */
+public class TaskEngine {
+
+    public static final int DEFAULT_INTERACTIVE_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_INTERACTIVE_QUEUE = 1000;
+    public static final int DEFAULT_BATCH_THREADS = Math.max(1, DEFAULT_INTERACTIVE_THREADS / 2);
+    public static final int DEFAULT_BATCH_QUEUE = 100;
+
+    private final Map<String, RegisteredTask<?, ?>> tasks = new ConcurrentHashMap<>();
+    private final Map<TaskPriority, Lane> lanes = new EnumMap<>(TaskPriority.class);
+
+    private static final class RegisteredTask<A, R> {
+        private final Class<A> argumentType;
+        private final TaskPriority priority;
+        private final ComputeTask<A, R> task;
+
+        private RegisteredTask(Class<A> argumentType, TaskPriority priority, ComputeTask<A, R> task) {
+            this.argumentType = argumentType;
+            this.priority = priority;
+            this.task = task;
+        }
+
+        private Callable<Object> bind(String type, Object argument) {
+            if (!argumentType.isInstance(argument)) {
+                throw new IllegalArgumentException("Task " + type + " takes a " + argumentType.getSimpleName()
+                        + ", got " + (argument == null ? "null" : argument.getClass().getSimpleName()));
+            }
+            A typed = argumentType.cast(argument);
+            return () -> task.run(typed);
+        }
+    }
+
+    /**
+     * Executor admitting at most {@code capacity} tasks at a time into its pool
+     */
+    private static final class Lane implements Executor {
+        private final ForkJoinPool pool;
+        private final Semaphore admitted;
+        private final int capacity;
+        private final String name;
+
+        private Lane(String name, int threads, int capacity) {
+            this.name = name;
+            this.capacity = capacity;
+            this.admitted = new Semaphore(capacity);
+            this.pool = new ForkJoinPool(threads, pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("compute-" + name + "-" + thread.getPoolIndex());
+                return thread;
+            }, null, true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (!admitted.tryAcquire()) {
+                throw new RejectedExecutionException("The " + name + " queue is full");
+            }
+            try {
+                pool.execute(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        // a cancelled task leaves its interrupt behind, which must not reach the next task
+                        Thread.interrupted();
+                        admitted.release();
+                    }
+                });
+            } catch (RejectedExecutionException rejectedExecutionException) {
+                admitted.release();
+                throw rejectedExecutionException;
+            }
+        }
+    }
+
+    public TaskEngine() {
+        this(DEFAULT_INTERACTIVE_THREADS, DEFAULT_INTERACTIVE_QUEUE, DEFAULT_BATCH_THREADS, DEFAULT_BATCH_QUEUE);
+    }
+
+    /**
+     * @param interactiveThreads threads running interactive tasks
+     * @param interactiveQueue interactive tasks admitted at a time, queued or running
+     * @param batchThreads threads running batch tasks
+     * @param batchQueue batch tasks admitted at a time, queued or running
+     */
+    public TaskEngine(int interactiveThreads, int interactiveQueue, int batchThreads, int batchQueue) {
+        lanes.put(TaskPriority.INTERACTIVE, new Lane("interactive", interactiveThreads, interactiveQueue));
+        lanes.put(TaskPriority.BATCH, new Lane("batch", batchThreads, batchQueue));
+    }
+
+    /**
+     * Registers a task type, replacing any task registered under the same name
+     * @param type name clients submit the task under
+     * @param argumentType class the argument must be an instance of
+     * @param priority lane used when the client does not pick one
+     * @param task computation
+     */
+    public <A, R> void register(String type, Class<A> argumentType, TaskPriority priority, ComputeTask<A, R> task) {
+        tasks.put(type, new RegisteredTask<>(argumentType, priority, task));
+    }
+
+    /**
+     * @return names of the registered task types, sorted
+     */
+    public Set<String> getTaskTypes() {
+        return new TreeSet<>(tasks.keySet());
+    }
+
+    /**
+     * @param type registered task type
+     * @return lane the task type runs in unless the client picks one
+     * @throws IllegalArgumentException if the type is not registered
+     */
+    public TaskPriority defaultPriority(String type) {
+        return lookup(type).priority;
+    }
+
+    /**
+     * Binds a registered task to its argument
+     * @param type registered task type
+     * @param argument argument sent by the client
+     * @return the computation, to be run through {@link #lane(TaskPriority)}
+     * @throws IllegalArgumentException if the type is not registered or the argument has the wrong type
+     */
+    public Callable<Object> prepare(String type, Object argument) {
+        return lookup(type).bind(type, argument);
+    }
+
+    /**
+     * @param priority lane
+     * @return executor of the lane; it throws {@link RejectedExecutionException} when the lane is full
+     */
+    public Executor lane(TaskPriority priority) {
+        return lanes.get(priority);
+    }
+
+    /**
+     * @param priority lane
+     * @return tasks admitted to the lane and not yet finished
+     */
+    public int getPending(TaskPriority priority) {
+        Lane lane = lanes.get(priority);
+        return lane.capacity - lane.admitted.availablePermits();
+    }
+
+    public void shutdown() {
+        for (Lane lane : lanes.values()) {
+            lane.pool.shutdown();
+        }
+    }
+
+    private RegisteredTask<?, ?> lookup(String type) {
+        RegisteredTask<?, ?> task = tasks.get(type);
+        if (task == null) {
+            throw new IllegalArgumentException("Unknown task type " + type);
+        }
+        return task;
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * Lane a compute task runs in, see {@link TaskEngine}
+ */
+public enum TaskPriority {
+    /**
+     * Small latency sensitive tasks. They have their own threads, so a backlog of batch work never delays them
+     */
+    INTERACTIVE,
+    /**
+     * Long running or throughput oriented tasks, such as sorting large arrays or files
+     */
+    BATCH
+}
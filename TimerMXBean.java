@@ -0,0 +1,18 @@
+/**
+ * JMX view of a {@link Metrics.Timer}, latencies in microseconds
+ */
+public interface TimerMXBean {
+    long getCount();
+
+    long getErrors();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getP999Micros();
+
+    long getMaxMicros();
+}
@@ -0,0 +1,95 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire encoding of upload data, chosen per file by the client. Media files such as the mp3/mp4
+ * fixtures are already compressed, so {@link #probe(Path)} deflates a sample first and only picks
+ * {@link #DEFLATE} when that sample shrinks noticeably.
+ */
+public enum TransferCodec {
+    NONE,
+    DEFLATE;
+
+    /**
+     * Deflate level used on the wire, favouring speed over ratio
+     */
+    public static final int DEFLATE_LEVEL = 1;
+
+    private static final int PROBE_BYTES = 64 * 1024;
+
+    /**
+     * Sample must shrink below this fraction of its size for compression to be used
+     */
+    private static final double MIN_PROBE_SAVING = 0.9;
+
+    /**
+     * Deflates the first {@code PROBE_BYTES} of a file to decide whether compressing it pays off
+     * @param path file to probe
+     * @return {@link #DEFLATE} if the sample compresses well, {@link #NONE} otherwise
+     * @throws IOException
+     */
+    public static TransferCodec probe(Path path) throws IOException {
+        byte[] sample;
+        try (InputStream in = new FileInputStream(path.toFile())) {
+            sample = in.readNBytes(PROBE_BYTES);
+        }
+        if (sample.length == 0) {
+            return NONE;
+        }
+        return deflate(sample).length < sample.length * MIN_PROBE_SAVING ? DEFLATE : NONE;
+    }
+
+    /**
+     * Compresses a self contained block, such as one chunk store chunk
+     * @param data bytes to compress
+     * @return deflated bytes
+     */
+    public static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(DEFLATE_LEVEL);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a block produced by {@link #deflate(byte[])}
+     * @param data deflated bytes
+     * @return original bytes
+     * @throws IOException if the data is not a complete deflate stream
+     */
+    public static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflate block");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
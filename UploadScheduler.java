@@ -0,0 +1,129 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs sync operations for different files in parallel while keeping operations on the same file
+ * in submission order. Every file name is hashed to one of {@code workers} single threaded lanes,
+ * so a create, modify and delete of one path run one after another on the same lane.
+ * <p>
+ * At most {@code maxQueued} operations may be queued or running; {@link #submit(String, long, BooleanSupplier)}
+ * blocks beyond that, which pushes back on the watcher instead of growing the queue without bound.
+ */
+public class UploadScheduler {
+
+    private final ExecutorService[] lanes;
+    private final Semaphore permits;
+    private final ConcurrentHashMap<String, Integer> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder filesCompleted = new LongAdder();
+    private final LongAdder bytesCompleted = new LongAdder();
+    private long lastSnapshotAt = System.nanoTime();
+    private long lastSnapshotFiles;
+    private long lastSnapshotBytes;
+
+    /**
+     * @param workers number of operations running in parallel
+     * @param maxQueued number of operations that may be queued or running before submitters block
+     */
+    public UploadScheduler(int workers, int maxQueued) {
+        this.lanes = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor();
+        }
+        this.permits = new Semaphore(maxQueued);
+    }
+
+    /**
+     * Queues an operation, blocking while {@code maxQueued} operations are outstanding
+     * @param fileName file the operation affects, operations on the same name run in order
+     * @param bytes bytes the operation transfers, counted once it completes
+     * @param operation the sync operation, returning whether it succeeded
+     * @throws InterruptedException if interrupted while waiting for queue space
+     */
+    public void submit(String fileName, long bytes, BooleanSupplier operation) throws InterruptedException {
+        permits.acquire();
+        inFlight.merge(fileName, 1, Integer::sum);
+        lanes[Math.floorMod(fileName.hashCode(), lanes.length)].execute(() -> {
+            try {
+                if (operation.getAsBoolean()) {
+                    filesCompleted.increment();
+                    bytesCompleted.add(bytes);
+                }
+            } catch (RuntimeException exception) {
+                exception.printStackTrace();
+            } finally {
+                inFlight.computeIfPresent(fileName, (name, count) -> count == 1 ? null : count - 1);
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * @param fileName file name passed to {@link #submit(String, long, BooleanSupplier)}
+     * @return true if an operation on {@code fileName} is queued or running
+     */
+    public boolean isInFlight(String fileName) {
+        return inFlight.containsKey(fileName);
+    }
+
+    /**
+     * Adds operations completed outside the scheduler, such as batched uploads, to the throughput counters
+     * @param files number of operations
+     * @param bytes bytes they transferred
+     */
+    public void recordCompleted(int files, long bytes) {
+        filesCompleted.add(files);
+        bytesCompleted.add(bytes);
+    }
+
+    /**
+     * @return number of operations completed successfully so far
+     */
+    public long getFilesCompleted() {
+        return filesCompleted.sum();
+    }
+
+    /**
+     * @return number of bytes transferred by successful operations so far
+     */
+    public long getBytesCompleted() {
+        return bytesCompleted.sum();
+    }
+
+    /**
+     * Throughput since the previous call
+     * @return files/s and MB/s as a printable line
+     */
+    public synchronized String throughputSnapshot() {
+        long now = System.nanoTime();
+        long files = filesCompleted.sum();
+        long bytes = bytesCompleted.sum();
+        double seconds = Math.max(1e-9, (now - lastSnapshotAt) / 1e9);
+        String snapshot = String.format("Upload throughput: %.1f files/s, %.2f MB/s (%d files, %d bytes total)",
+                (files - lastSnapshotFiles) / seconds, (bytes - lastSnapshotBytes) / seconds / (1024 * 1024), files, bytes);
+        lastSnapshotAt = now;
+        lastSnapshotFiles = files;
+        lastSnapshotBytes = bytes;
+        return snapshot;
+    }
+
+    /**
+     * Waits for queued operations to finish and stops the workers
+     * @param timeout maximum time to wait per lane
+     * @param unit unit of {@code timeout}
+     * @throws InterruptedException
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            lane.awaitTermination(timeout, unit);
+        }
+    }
+}
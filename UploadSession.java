@@ -0,0 +1,479 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Server side state of a single chunked upload. Chunks are written straight to a temp file
+ * and the temp file is moved over the target on {@link #commit()}. Chunks received with
+ * {@link #receive(byte[])} are decoded according to the session's {@link TransferCodec}; a
+ * deflated upload is one deflate stream that is inflated as chunks arrive. Writes go through
+ * {@link DirectBufferPool} buffers, and a session opened with an expected size reserves the
+ * file's length up front.
+ * <p>
+ * Uncompressed sessions are resumable: they keep a running CRC32C of the bytes written, and
+ * {@link #checkpoint(Path)} forces the temp file and records the offset and hash in a state file
+ * from which the session can be reopened after a server restart.
+ */
+public class UploadSession {
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final String fileName;
+    private final Path target;
+    private final Path tempFile;
+    private final FileChannel channel;
+    private final Inflater inflater;
+    private final DirectBufferPool bufferPool = DirectBufferPool.shared();
+    private long bytesReceived;
+    private long bytesWritten;
+    private long decodeCpuNanos;
+    private final CRC32C hash;
+    private long hashedBytes;
+    private long checkpointedBytes;
+    private long version;
+    private volatile long lastActivityMillis = System.currentTimeMillis();
+    private boolean aborted;
+
+    /**
+     * Contents of a state file written by {@link #checkpoint(Path)}
+     */
+    public static final class Checkpoint {
+        private final String fileName;
+        private final long offset;
+        private final String hash;
+
+        private Checkpoint(String fileName, long offset, String hash) {
+            this.fileName = fileName;
+            this.offset = offset;
+            this.hash = hash;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+    }
+
+    public UploadSession(String fileName, Path target, Path tempFile) throws IOException {
+        this(fileName, target, tempFile, TransferCodec.NONE);
+    }
+
+    public UploadSession(String fileName, Path target, Path tempFile, TransferCodec codec) throws IOException {
+        this(fileName, target, tempFile, codec, 0);
+    }
+
+    /**
+     * @param fileName client supplied file name
+     * @param target resolved target path
+     * @param tempFile file the upload is written to until it is committed
+     * @param codec encoding of received chunks
+     * @param expectedSize decoded size of the file if known, used to extend the temp file once up
+     *        front; 0 or less to grow it as data arrives
+     * @throws IOException if the temp file cannot be created
+     */
+    public UploadSession(String fileName, Path target, Path tempFile, TransferCodec codec, long expectedSize)
+            throws IOException {
+        this.fileName = fileName;
+        this.target = target;
+        this.tempFile = tempFile;
+        this.channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        this.inflater = codec == TransferCodec.DEFLATE ? new Inflater() : null;
+        this.hash = inflater == null ? new CRC32C() : null;
+        if (expectedSize > 0) {
+            channel.write(ByteBuffer.allocate(1), expectedSize - 1);
+        }
+    }
+
+    /**
+     * Reopens a resumable session at its last checkpoint, dropping anything written after it
+     * @param checkpoint state read with {@link #readCheckpoint(Path)}
+     * @param target resolved target path
+     * @param tempFile temp file of the session
+     * @throws IOException if the temp file does not match the checkpoint
+     */
+    public UploadSession(Checkpoint checkpoint, Path target, Path tempFile) throws IOException {
+        this.fileName = checkpoint.getFileName();
+        this.target = target;
+        this.tempFile = tempFile;
+        this.channel = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        this.inflater = null;
+        this.hash = new CRC32C();
+        try {
+            if (channel.size() < checkpoint.getOffset()) {
+                throw new IOException("Upload of " + fileName + " is shorter than its checkpoint");
+            }
+            channel.truncate(checkpoint.getOffset());
+            channel.position(checkpoint.getOffset());
+            bytesReceived = bytesWritten = checkpointedBytes = checkpoint.getOffset();
+            catchUpHash();
+            if (!FileInfo.formatHash(hash).equals(checkpoint.hash)) {
+                throw new IOException("Upload of " + fileName + " does not match its checkpoint");
+            }
+        } catch (IOException ioException) {
+            channel.close();
+            throw ioException;
+        }
+    }
+
+    /**
+     * @param stateFile file written by {@link #checkpoint(Path)}
+     * @return the checkpoint it holds
+     * @throws IOException if the file is missing or malformed
+     */
+    public static Checkpoint readCheckpoint(Path stateFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(stateFile))) {
+            return new Checkpoint(in.readUTF(), in.readLong(), in.readUTF());
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * @return version stamp the server issued when the session was opened
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Like {@link #receive(byte[])}, but only if {@code offset} is where the previous chunk ended,
+     * so a chunk resent after a lost reply is not appended twice
+     * @param offset position of the chunk in the data sent by the client
+     * @param chunk chunk in the session's {@link TransferCodec}
+     * @return false if the session is not at {@code offset}
+     * @throws IOException if the chunk cannot be decoded or written
+     */
+    public synchronized boolean receive(long offset, byte[] chunk) throws IOException {
+        if (offset != bytesReceived) {
+            return false;
+        }
+        receive(chunk);
+        return true;
+    }
+
+    /**
+     * Decodes a chunk as sent by the client and appends it to the temp file
+     * @param chunk chunk in the session's {@link TransferCodec}
+     * @throws IOException if the chunk cannot be decoded or written
+     */
+    public synchronized void receive(byte[] chunk) throws IOException {
+        ensureOpen();
+        bytesReceived += chunk.length;
+        if (inflater == null) {
+            write(chunk);
+            return;
+        }
+        long start = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        ByteBuffer buffer = bufferPool.acquire();
+        inflater.setInput(chunk);
+        try {
+            while (!inflater.finished()) {
+                buffer.clear();
+                if (inflater.inflate(buffer) == 0) {
+                    break;
+                }
+                buffer.flip();
+                write(buffer);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk for " + fileName, e);
+        } finally {
+            bufferPool.release(buffer);
+            decodeCpuNanos += THREAD_MX_BEAN.getCurrentThreadCpuTime() - start;
+        }
+    }
+
+    /**
+     * Like {@link #transferFrom(ReadableByteChannel, long)}, but only if the session is at {@code offset}
+     * @param source channel positioned at the file data, such as a bulk transfer socket
+     * @param offset position of the data in the upload
+     * @param count number of bytes to read
+     * @throws IOException if the session is not at {@code offset}, or the transfer fails
+     */
+    public synchronized void transferFrom(ReadableByteChannel source, long offset, long count) throws IOException {
+        if (offset != bytesWritten) {
+            throw new IOException("Bulk transfer of " + fileName + " starts at " + offset + ", expected " + bytesWritten);
+        }
+        transferFrom(source, count);
+    }
+
+    /**
+     * Appends {@code count} raw bytes read from a channel, letting the kernel move them into the
+     * temp file where it can
+     * @param source channel positioned at the file data, such as a bulk transfer socket
+     * @param count number of bytes to read
+     * @throws IOException if the source ends early or the session expects compressed chunks
+     */
+    public synchronized void transferFrom(ReadableByteChannel source, long count) throws IOException {
+        ensureOpen();
+        if (inflater != null) {
+            throw new IOException("Bulk transfer of " + fileName + " cannot be compressed");
+        }
+        long transferred = 0;
+        try {
+            while (transferred < count) {
+                long read = channel.transferFrom(source, bytesWritten, count - transferred);
+                if (read == 0) {
+                    throw new IOException("Bulk transfer of " + fileName + " ended after " + transferred + " of "
+                            + count + " bytes");
+                }
+                transferred += read;
+                bytesWritten += read;
+                bytesReceived += read;
+            }
+        } finally {
+            // a broken transfer keeps what arrived, the next chunk continues after it
+            channel.position(bytesWritten);
+            lastActivityMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return offset the client continues from and hash of the data received so far; the hash is
+     *         null if the session cannot be resumed
+     * @throws IOException if the temp file cannot be read
+     */
+    public synchronized UploadStatus status() throws IOException {
+        ensureOpen();
+        catchUpHash();
+        return new UploadStatus(bytesReceived, hash != null ? FileInfo.formatHash(hash) : null);
+    }
+
+    /**
+     * @return time since the client last sent data or asked for the status of the session
+     */
+    public long getIdleMillis() {
+        return System.currentTimeMillis() - lastActivityMillis;
+    }
+
+    /**
+     * @return true if the session can be checkpointed and resumed
+     */
+    public boolean isResumable() {
+        return hash != null;
+    }
+
+    /**
+     * @return bytes written since the last {@link #checkpoint(Path)}
+     */
+    public synchronized long getBytesSinceCheckpoint() {
+        return bytesWritten - checkpointedBytes;
+    }
+
+    /**
+     * Forces the temp file and records the current offset and hash in {@code stateFile}
+     * @param stateFile state file of the session
+     * @throws IOException
+     */
+    public synchronized void checkpoint(Path stateFile) throws IOException {
+        catchUpHash();
+        channel.force(false);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(fileName);
+            out.writeLong(bytesWritten);
+            out.writeUTF(FileInfo.formatHash(hash));
+        }
+        Path temp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (FileChannel state = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                state.write(buffer);
+            }
+            state.force(false);
+        }
+        Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointedBytes = bytesWritten;
+    }
+
+    /**
+     * Marks the session active, failing if it was aborted, e.g. by the server dropping it as abandoned
+     */
+    private void ensureOpen() throws IOException {
+        if (aborted) {
+            throw new IOException("Upload of " + fileName + " was aborted");
+        }
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Brings the running hash up to {@code bytesWritten}, reading back data that arrived through
+     * {@link #transferFrom(ReadableByteChannel, long)} and so was never seen in memory
+     */
+    private void catchUpHash() throws IOException {
+        if (hash == null || hashedBytes == bytesWritten) {
+            return;
+        }
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            while (hashedBytes < bytesWritten) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), bytesWritten - hashedBytes));
+                int read = channel.read(buffer, hashedBytes);
+                if (read <= 0) {
+                    throw new IOException("Upload of " + fileName + " is shorter than its written size");
+                }
+                buffer.flip();
+                hash.update(buffer);
+                hashedBytes += read;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * @return bytes received over the wire
+     */
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return bytes written to the file
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return CPU time spent decoding received chunks
+     */
+    public synchronized long getDecodeCpuNanos() {
+        return decodeCpuNanos;
+    }
+
+    /**
+     * Writes a chunk at the end of the temp file
+     * @param chunk bytes to append
+     * @throws IOException
+     */
+    public synchronized void write(byte[] chunk) throws IOException {
+        long before = bytesWritten;
+        bytesWritten += bufferPool.write(channel, chunk, 0, chunk.length);
+        if (hash != null && hashedBytes == before) {
+            hash.update(chunk);
+            hashedBytes = bytesWritten;
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer at the end of the temp file
+     * @param buffer bytes to append
+     * @throws IOException
+     */
+    public synchronized void write(ByteBuffer buffer) throws IOException {
+        long before = bytesWritten;
+        ByteBuffer written = buffer.duplicate();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        if (hash != null && hashedBytes == before) {
+            hash.update(written);
+            hashedBytes = bytesWritten;
+        }
+    }
+
+    /**
+     * Flushes the temp file and moves it over the target
+     * @throws IOException
+     */
+    public synchronized void commit() throws IOException {
+        prepareCommit();
+        publish();
+    }
+
+    /**
+     * Completes and flushes the temp file so that {@link #publish()} only has to move it. Split
+     * from the move so the flush can run before the target's lock is taken
+     * @throws IOException if the upload is incomplete or cannot be flushed
+     */
+    public synchronized void prepareCommit() throws IOException {
+        ensureOpen();
+        if (inflater != null) {
+            boolean complete = inflater.finished();
+            inflater.end();
+            if (!complete) {
+                throw new IOException("Compressed upload of " + fileName + " is incomplete");
+            }
+        }
+        if (channel.size() > bytesWritten) {
+            channel.truncate(bytesWritten);
+        }
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Atomically replaces the target with the temp file prepared by {@link #prepareCommit()}
+     * @throws IOException
+     */
+    public synchronized void publish() throws IOException {
+        Path parent = target.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Closes the temp file and keeps it, so the upload can be reopened at its last checkpoint
+     */
+    public synchronized void close() {
+        if (inflater != null) {
+            inflater.end();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Closes the temp file and removes it
+     */
+    public synchronized void abort() {
+        if (aborted) {
+            return;
+        }
+        aborted = true;
+        if (inflater != null) {
+            inflater.end();
+        }
+        try {
+            channel.close();
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
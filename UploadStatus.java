@@ -0,0 +1,32 @@
+import java.io.Serializable;
+
+/**
+ * Progress of an open upload session as reported by {@link FileServer#getUploadStatus(String)}
+ */
+public class UploadStatus implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+    private final String hash;
+
+    public UploadStatus(long offset, String hash) {
+        this.offset = offset;
+        this.hash = hash;
+    }
+
+    /**
+     * @return number of bytes the server has received, the offset to continue sending from
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return {@link FileInfo#contentHash(java.nio.file.Path, long)} of the received bytes, or null
+     *         if the session cannot be resumed
+     */
+    public String getHash() {
+        return hash;
+    }
+}
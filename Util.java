@@ -2,10 +2,62 @@ import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @SuppressWarnings("unchecked")
 public class Util {
+
+    /**
+     * Upload chunk size used when {@code client.chunkSize} is not configured
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Event quiet window used when {@code client.quietWindowMillis} is not configured
+     */
+    private static final int DEFAULT_QUIET_WINDOW_MILLIS = 500;
+
+    /**
+     * Parallel sync operations used when {@code client.uploadWorkers} is not configured
+     */
+    private static final int DEFAULT_UPLOAD_WORKERS = 4;
+
+    /**
+     * Queued sync operations allowed when {@code client.maxQueuedUploads} is not configured
+     */
+    private static final int DEFAULT_MAX_QUEUED_UPLOADS = 1000;
+
+    /**
+     * Largest batched file used when {@code client.batchFileThreshold} is not configured
+     */
+    private static final int DEFAULT_BATCH_FILE_THRESHOLD = 64 * 1024;
+
+    /**
+     * Batch size used when {@code client.maxBatchBytes} is not configured
+     */
+    private static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+
+    /**
+     * Batch delay used when {@code client.maxBatchDelayMillis} is not configured
+     */
+    private static final int DEFAULT_MAX_BATCH_DELAY_MILLIS = 200;
+
+    /**
+     * Parallel download ranges used when {@code client.downloadStreams} is not configured
+     */
+    private static final int DEFAULT_DOWNLOAD_STREAMS = 4;
+
+    /**
+     * Upload retries used when {@code client.maxRetries} is not configured
+     */
+    private static final int DEFAULT_MAX_RETRIES = 5;
+
+    /**
+     * First retry delay used when {@code client.retryBackoffMillis} is not configured
+     */
+    private static final int DEFAULT_RETRY_BACKOFF_MILLIS = 500;
+
     public static String getServerPath(Map<String, Object> data) {
         return ((HashMap<String, String>) data.get("server")).get("path");
     }
@@ -22,6 +74,22 @@ public class Util {
         return ((HashMap<String, Integer>) data.get("server")).get("port");
     }
 
+    public static Integer getBulkPort(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("server")).getOrDefault("bulkPort", 0);
+    }
+
+    public static String getTransport(Map<String, Object> data) {
+        return ((HashMap<String, String>) data.get("server")).getOrDefault("transport", "rmi");
+    }
+
+    public static Integer getBinaryPort(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("server")).getOrDefault("binaryPort", 0);
+    }
+
+    public static Integer getBinaryWorkers(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("server")).getOrDefault("binaryWorkers", BinaryTransportServer.DEFAULT_WORKERS);
+    }
+
     public static String getClientDir(Map<String, Object> data) {
         return ((HashMap<String, String>) data.get("client")).get("directory");
     } 
@@ -30,6 +98,62 @@ public class Util {
         return ((HashMap<String, Integer>) data.get("client")).get("watchTimeOut");
     }
 
+    public static Integer getChunkSize(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("chunkSize", DEFAULT_CHUNK_SIZE);
+    }
+
+    public static Boolean getDedupUploads(Map<String, Object> data) {
+        return ((HashMap<String, Boolean>) data.get("client")).getOrDefault("dedupUploads", false);
+    }
+
+    public static Boolean getCompressUploads(Map<String, Object> data) {
+        return ((HashMap<String, Boolean>) data.get("client")).getOrDefault("compressUploads", false);
+    }
+
+    public static Integer getBulkThreshold(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("bulkThreshold", 0);
+    }
+
+    public static Integer getMappedReadThreshold(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("mappedReadThreshold", MappedFile.DEFAULT_THRESHOLD);
+    }
+
+    public static Integer getDownloadStreams(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("downloadStreams", DEFAULT_DOWNLOAD_STREAMS);
+    }
+
+    public static Integer getMaxRetries(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("maxRetries", DEFAULT_MAX_RETRIES);
+    }
+
+    public static Integer getRetryBackoffMillis(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("retryBackoffMillis", DEFAULT_RETRY_BACKOFF_MILLIS);
+    }
+
+    public static Integer getQuietWindowMillis(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("quietWindowMillis", DEFAULT_QUIET_WINDOW_MILLIS);
+    }
+
+    public static Integer getUploadWorkers(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("uploadWorkers", DEFAULT_UPLOAD_WORKERS);
+    }
+
+    public static Integer getMaxQueuedUploads(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("maxQueuedUploads", DEFAULT_MAX_QUEUED_UPLOADS);
+    }
+
+    public static Integer getBatchFileThreshold(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("batchFileThreshold", DEFAULT_BATCH_FILE_THRESHOLD);
+    }
+
+    public static Integer getMaxBatchBytes(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("maxBatchBytes", DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    public static Integer getMaxBatchDelayMillis(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("client")).getOrDefault("maxBatchDelayMillis", DEFAULT_MAX_BATCH_DELAY_MILLIS);
+    }
+
     public static Integer getComputeServerPort(Map<String, Object> data) {
         return ((HashMap<String, Integer>) data.get("computeServer")).get("port");
     }
@@ -42,11 +166,89 @@ public class Util {
         return ((HashMap<String, String>) data.get("computeServer")).get("addr");
     }
 
+    public static Integer getResultCacheMaxEntries(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("resultCacheMaxEntries", ResultCache.DEFAULT_MAX_ENTRIES);
+    }
+
+    public static Integer getResultCacheMaxBytes(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("resultCacheMaxBytes", ResultCache.DEFAULT_MAX_BYTES);
+    }
+
+    public static Integer getResultTtlMillis(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("resultTtlMillis", ResultCache.DEFAULT_TTL_MILLIS);
+    }
+
+    public static Boolean getRemoveResultOnRead(Map<String, Object> data) {
+        return ((HashMap<String, Boolean>) data.get("computeServer")).getOrDefault("removeResultOnRead", false);
+    }
+
+    public static Integer getSortRunBytes(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("sortRunBytes", ExternalSort.DEFAULT_RUN_BYTES);
+    }
+
+    public static Integer getInteractiveThreads(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("interactiveThreads", TaskEngine.DEFAULT_INTERACTIVE_THREADS);
+    }
+
+    public static Integer getInteractiveQueue(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("interactiveQueue", TaskEngine.DEFAULT_INTERACTIVE_QUEUE);
+    }
+
+    public static Integer getBatchThreads(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("batchThreads", TaskEngine.DEFAULT_BATCH_THREADS);
+    }
+
+    public static Integer getBatchQueue(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("batchQueue", TaskEngine.DEFAULT_BATCH_QUEUE);
+    }
+
+    public static Integer getComputeBatchWindowMicros(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("batchWindowMicros", ComputeBatcher.DEFAULT_WINDOW_MICROS);
+    }
+
+    public static Integer getComputeMaxBatchCalls(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("maxBatchCalls", ComputeBatcher.DEFAULT_MAX_CALLS);
+    }
+
+    /**
+     * @param data config
+     * @return urls of the compute nodes to spread tasks over, empty to discover them in the compute server's registry
+     */
+    public static List<String> getComputeNodes(Map<String, Object> data) {
+        return ((HashMap<String, List<String>>) data.get("computeServer")).getOrDefault("nodes", List.of());
+    }
+
+    public static Integer getSplitSortThreshold(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("splitSortThreshold", ComputeCluster.DEFAULT_SPLIT_SORT_THRESHOLD);
+    }
+
+    public static Integer getNodeProbeMillis(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("computeServer")).getOrDefault("nodeProbeMillis", ComputeCluster.DEFAULT_PROBE_MILLIS);
+    }
+
+    public static Integer getMetricsSnapshotSeconds(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("server")).getOrDefault("metricsSnapshotSeconds", Metrics.DEFAULT_SNAPSHOT_SECONDS);
+    }
+
+    public static Integer getMaxLogLinesPerSecond(Map<String, Object> data) {
+        return ((HashMap<String, Integer>) data.get("server")).getOrDefault("maxLogLinesPerSecond", Log.DEFAULT_MAX_LINES_PER_SECOND);
+    }
+
     public static String extractFileNameFromPath(String filePath) {
         Path path = Paths.get(filePath);
         return path.getFileName().toString(); 
     }
 
+    /**
+     * Name of a file on the server: its path relative to the watched root, always '/' separated
+     * @param root watched root directory
+     * @param file file below {@code root}
+     * @return server side file name
+     */
+    public static String toRemoteFileName(Path root, Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
     public static void renameFile(String filePath, String newFilePath) {
         File oldFile = new File(filePath);
         File newFile = new File(newFilePath);
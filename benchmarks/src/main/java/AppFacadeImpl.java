@@ -0,0 +1,138 @@
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.function.Supplier;
+
+import benchmarks.AppFacade;
+
+/**
+ * {@link AppFacade} over the app classes, for the JMH benchmarks in the {@code benchmarks} package
+ */
+public class AppFacadeImpl implements AppFacade {
+
+    @Override
+    public FileServerHandle startFileServer(Path serverDir, Transport transport) throws Exception {
+        FileServerImpl server = new FileServerImpl(serverDir.toString());
+        switch (transport) {
+        case RMI: {
+            FileServer stub = bind(FileServer.class, server, "fileOp");
+            // the stub opens a connection per concurrent call, so clients can share it
+            return new FileServerClient(stub, () -> new FileServerClient(stub, null, () -> {}),
+                    () -> UnicastRemoteObject.unexportObject(server, true));
+        }
+        case BINARY: {
+            BinaryTransportServer binaryServer = new BinaryTransportServer(0, server, server.getMetrics());
+            Supplier<FileServerHandle> connect = () -> {
+                BinaryFileClient client = new BinaryFileClient("localhost", binaryServer.getPort());
+                return new FileServerClient(client, null, client::close);
+            };
+            BinaryFileClient client = new BinaryFileClient("localhost", binaryServer.getPort());
+            return new FileServerClient(client, connect, () -> {
+                client.close();
+                binaryServer.close();
+            });
+        }
+        default:
+            return new FileServerClient(server, () -> new FileServerClient(server, null, () -> {}), () -> {});
+        }
+    }
+
+    @Override
+    public ComputeServerHandle startComputeServer(boolean rmi) throws Exception {
+        ComputeServerImpl server = new ComputeServerImpl();
+        ComputeServer target = rmi ? bind(ComputeServer.class, server, "compute") : server;
+        AutoCloseable onClose = rmi ? () -> UnicastRemoteObject.unexportObject(server, true) : () -> {};
+        return new ComputeServerHandle() {
+            @Override
+            public List<Integer> sort(List<Integer> array) throws RemoteException {
+                return target.sort(array);
+            }
+
+            @Override
+            public int[] sortInts(int[] array) throws RemoteException {
+                return target.sortInts(array);
+            }
+
+            @Override
+            public String addAsync(int a, int b) throws RemoteException {
+                return target.addAsync(a, b);
+            }
+
+            @Override
+            public Object getResult(String taskId) throws RemoteException {
+                return target.getResult(taskId);
+            }
+
+            @Override
+            public Object awaitResult(String taskId, long timeoutMillis) throws RemoteException {
+                return target.awaitResult(taskId, timeoutMillis);
+            }
+
+            @Override
+            public void close() throws Exception {
+                onClose.close();
+            }
+        };
+    }
+
+    /**
+     * {@link FileServerHandle} over a server or client of the app
+     */
+    private static final class FileServerClient implements FileServerHandle {
+
+        private final FileServer target;
+        private final Supplier<FileServerHandle> connect;
+        private final AutoCloseable onClose;
+
+        /**
+         * @param connect opens a client of the server, null if this handle is a client itself
+         */
+        FileServerClient(FileServer target, Supplier<FileServerHandle> connect, AutoCloseable onClose) {
+            this.target = target;
+            this.connect = connect;
+            this.onClose = onClose;
+        }
+
+        @Override
+        public void uploadFile(byte[] file, String fileName) throws RemoteException {
+            target.uploadFile(file, fileName);
+        }
+
+        @Override
+        public byte[] readRange(String fileName, long offset, int length) throws RemoteException {
+            return target.readRange(fileName, offset, length);
+        }
+
+        @Override
+        public FileServerHandle connect() {
+            if (connect == null) {
+                throw new UnsupportedOperationException("Not a server");
+            }
+            return connect.get();
+        }
+
+        @Override
+        public void close() throws Exception {
+            onClose.close();
+        }
+    }
+
+    /**
+     * Exports a server and binds it in a new registry on a free loopback port
+     * @return the stub clients use
+     */
+    private static <T extends Remote> T bind(Class<T> type, T server, String name) throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://localhost:" + port + "/" + name, UnicastRemoteObject.exportObject(server, 0));
+        return type.cast(Naming.lookup("rmi://localhost:" + port + "/" + name));
+    }
+}
@@ -0,0 +1,78 @@
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Random;
+
+/**
+ * Uploads 10k files of 1 KB over loopback RMI three ways: one {@code uploadFile} call per file,
+ * one chunked upload session per file, and {@link SmallFileBatcher} batches. Reports files/s.
+ */
+public class BatchUploadBenchmark {
+
+    private static final int FILE_COUNT = 10_000;
+    private static final int FILE_SIZE = 1024;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : FILE_COUNT;
+        Path workDir = Files.createTempDirectory("batch-bench");
+        Path clientDir = Files.createDirectories(workDir.resolve("client"));
+        Random random = new Random(42);
+        byte[] data = new byte[FILE_SIZE];
+        for (int i = 0; i < fileCount; i++) {
+            random.nextBytes(data);
+            Files.write(clientDir.resolve("f" + i + ".bin"), data);
+        }
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        LocateRegistry.createRegistry(port);
+        FileServer single = bind(port, "single", workDir);
+        FileServer streamed = bind(port, "streamed", workDir);
+        FileServer batched = bind(port, "batched", workDir);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < fileCount; i++) {
+            String fileName = "f" + i + ".bin";
+            single.uploadFile(Files.readAllBytes(clientDir.resolve(fileName)), fileName);
+        }
+        report("Single uploadFile call per file", fileCount, System.nanoTime() - start);
+
+        FileUploader uploader = new FileUploader(streamed, CHUNK_SIZE, false, false);
+        start = System.nanoTime();
+        for (int i = 0; i < fileCount; i++) {
+            String fileName = "f" + i + ".bin";
+            uploader.uploadStreamed(clientDir.resolve(fileName), fileName);
+        }
+        report("Upload session per file       ", fileCount, System.nanoTime() - start);
+
+        UploadScheduler scheduler = new UploadScheduler(1, 1);
+        SmallFileBatcher batcher = new SmallFileBatcher(new FileUploader(batched, CHUNK_SIZE, false, false), scheduler, FILE_SIZE,
+                CHUNK_SIZE, Long.MAX_VALUE);
+        start = System.nanoTime();
+        for (int i = 0; i < fileCount; i++) {
+            String fileName = "f" + i + ".bin";
+            batcher.add(StandardWatchEventKinds.ENTRY_CREATE, clientDir.resolve(fileName), fileName);
+        }
+        batcher.flush();
+        report("Batched applyBatch calls      ", fileCount, System.nanoTime() - start);
+        System.exit(0);
+    }
+
+    private static FileServer bind(int port, String name, Path workDir) throws Exception {
+        Path serverDir = Files.createDirectories(workDir.resolve(name));
+        String url = "rmi://localhost:" + port + "/" + name;
+        Naming.rebind(url, UnicastRemoteObject.exportObject(new FileServerImpl(serverDir.toString()), 0));
+        return (FileServer) Naming.lookup(url);
+    }
+
+    private static void report(String label, int fileCount, long elapsedNanos) {
+        System.out.printf("%s: %6d ms, %8.0f files/s%n", label, elapsedNanos / 1_000_000, fileCount / (elapsedNanos / 1e9));
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Random;
+
+/**
+ * Uploads one large incompressible file over loopback, once as RMI chunks through an upload
+ * session and once over the {@link BulkTransferServer} socket, and reports throughput and heap
+ * bytes allocated per GB uploaded. Client and server share the JVM, so allocations of both sides
+ * are counted.
+ */
+public class BulkTransferBenchmark {
+
+    private static final int FILE_MB = 512;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final double GB = 1024.0 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int fileMb = args.length > 0 ? Integer.parseInt(args[0]) : FILE_MB;
+        Path workDir = Files.createTempDirectory("bulk-bench");
+        Path file = workDir.resolve("large.bin");
+        Random random = new Random(42);
+        byte[] block = new byte[CHUNK_SIZE];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < fileMb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        long fileBytes = Files.size(file);
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        LocateRegistry.createRegistry(port);
+        FileServerImpl serverImpl = new FileServerImpl(Files.createDirectories(workDir.resolve("server")).toString());
+        serverImpl.startBulkTransfer(0);
+        Naming.rebind("rmi://localhost:" + port + "/fileOp", UnicastRemoteObject.exportObject(serverImpl, 0));
+        FileServer server = (FileServer) Naming.lookup("rmi://localhost:" + port + "/fileOp");
+        FileUploader uploader = new FileUploader(server, CHUNK_SIZE, false, false, "localhost", 1, 0, 0);
+
+        // warm up both paths
+        uploader.uploadStreamed(file, "warmup.bin");
+        uploader.uploadBulk(file, "warmup.bin");
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        uploader.uploadStreamed(file, "streamed.bin");
+        report("RMI upload session", fileBytes, System.nanoTime() - start, allocatedBytes() - allocated);
+
+        allocated = allocatedBytes();
+        start = System.nanoTime();
+        uploader.uploadBulk(file, "bulk.bin");
+        report("Bulk transfer     ", fileBytes, System.nanoTime() - start, allocatedBytes() - allocated);
+        System.exit(0);
+    }
+
+    /**
+     * Heap bytes allocated by live threads. RMI connection and bulk transfer handler threads are
+     * pooled, so they outlive each measured upload
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    private static void report(String label, long fileBytes, long elapsedNanos, long allocatedBytes) {
+        System.out.printf("%s: %6d ms, %7.1f MB/s, %8.1f MB allocated per GB%n", label, elapsedNanos / 1_000_000,
+                fileBytes / (1024.0 * 1024) / (elapsedNanos / 1e9), allocatedBytes / (1024.0 * 1024) / (fileBytes / GB));
+    }
+}
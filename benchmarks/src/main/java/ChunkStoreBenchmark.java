@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Uploads a data set of the {@code test-data} fixtures plus duplicated and lightly edited copies
+ * over loopback RMI, once as plain chunked uploads into the flat layout and once through the
+ * content addressed chunk store, and reports upload time, bytes sent, bytes stored and the dedup
+ * ratio of each. Bytes stored cover the whole server directory, state directories included.
+ */
+public class ChunkStoreBenchmark {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Path workDir = Files.createTempDirectory("chunk-bench");
+        Map<String, Path> dataSet = buildDataSet(workDir.resolve("client"));
+        long logicalBytes = 0;
+        for (Path path : dataSet.values()) {
+            logicalBytes += Files.size(path);
+        }
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        LocateRegistry.createRegistry(port);
+        Path flatDir = Files.createDirectories(workDir.resolve("flat"));
+        Path chunkedDir = Files.createDirectories(workDir.resolve("chunked"));
+        Naming.rebind("rmi://localhost:" + port + "/flat", UnicastRemoteObject.exportObject(new FileServerImpl(flatDir.toString()), 0));
+        Naming.rebind("rmi://localhost:" + port + "/chunked", UnicastRemoteObject.exportObject(new FileServerImpl(chunkedDir.toString()), 0));
+        FileServer flatServer = (FileServer) Naming.lookup("rmi://localhost:" + port + "/flat");
+        FileServer chunkedServer = (FileServer) Naming.lookup("rmi://localhost:" + port + "/chunked");
+
+        FileUploader flatUploader = new FileUploader(flatServer, CHUNK_SIZE, false, false);
+        long start = System.nanoTime();
+        for (Map.Entry<String, Path> entry : dataSet.entrySet()) {
+            flatUploader.uploadStreamed(entry.getValue(), entry.getKey());
+        }
+        long flatMillis = (System.nanoTime() - start) / 1_000_000;
+
+        FileUploader chunkedUploader = new FileUploader(chunkedServer, CHUNK_SIZE, true, false);
+        long chunkedBytesSent = 0;
+        start = System.nanoTime();
+        for (Map.Entry<String, Path> entry : dataSet.entrySet()) {
+            chunkedBytesSent += chunkedUploader.uploadDeduplicated(entry.getValue(), entry.getKey());
+        }
+        long chunkedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        long flatStoredBytes = directorySize(flatDir);
+        long chunkedStoredBytes = directorySize(chunkedDir);
+
+        System.out.println("Files: " + dataSet.size() + ", logical bytes: " + logicalBytes);
+        System.out.printf("Flat layout    upload time (ms): %d, bytes sent: %d, bytes stored: %d, dedup ratio: %.2fx%n",
+                flatMillis, logicalBytes, flatStoredBytes, (double) logicalBytes / flatStoredBytes);
+        System.out.printf("Chunk store    upload time (ms): %d, bytes sent: %d, bytes stored: %d, dedup ratio: %.2fx%n",
+                chunkedMillis, chunkedBytesSent, chunkedStoredBytes, (double) logicalBytes / chunkedStoredBytes);
+        System.out.printf("Chunk store vs flat: %.2fx upload time, %.2fx bytes sent, %.2fx bytes stored%n",
+                (double) chunkedMillis / Math.max(1, flatMillis), (double) chunkedBytesSent / logicalBytes,
+                (double) chunkedStoredBytes / flatStoredBytes);
+        System.exit(0);
+    }
+
+    /**
+     * Fixtures, an identical copy of the video, a copy with a small in-place edit and a copy of the
+     * audio with bytes inserted at the front
+     */
+    private static Map<String, Path> buildDataSet(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Map<String, Path> dataSet = new LinkedHashMap<>();
+        List<Path> fixtures = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(Paths.get("test-data"))) {
+            stream.sorted().forEach(fixtures::add);
+        }
+        for (Path fixture : fixtures) {
+            dataSet.put(fixture.getFileName().toString(), fixture);
+        }
+
+        Path video = Paths.get("test-data/sample-video.mp4");
+        Path videoCopy = Files.copy(video, dir.resolve("video-copy.mp4"));
+        dataSet.put("video-copy.mp4", videoCopy);
+
+        Path videoEdited = Files.copy(video, dir.resolve("video-edited.mp4"));
+        try (RandomAccessFile file = new RandomAccessFile(videoEdited.toFile(), "rw")) {
+            file.seek(file.length() / 3);
+            file.write("edited in place".getBytes());
+        }
+        dataSet.put("video-edited.mp4", videoEdited);
+
+        byte[] audio = Files.readAllBytes(Paths.get("test-data/sample-audio.mp3"));
+        byte[] prefix = "ID3 tag rewritten by an editor".getBytes();
+        byte[] shifted = new byte[prefix.length + audio.length];
+        System.arraycopy(prefix, 0, shifted, 0, prefix.length);
+        System.arraycopy(audio, 0, shifted, prefix.length, audio.length);
+        dataSet.put("audio-shifted.mp3", Files.write(dir.resolve("audio-shifted.mp3"), shifted));
+        return dataSet;
+    }
+
+    private static long directorySize(Path dir) throws IOException {
+        try (Stream<Path> stream = Files.walk(dir)) {
+            return stream.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.Serializable;
+import java.net.ServerSocket;
+import java.rmi.Naming;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the throughput of one {@link ComputeServer#add(int, int)} round trip per addition with
+ * the batched calls over loopback RMI: {@link ComputeServer#addAll(int[], int[])},
+ * {@link ComputeServer#invokeAll(String[], Serializable[])} with mixed add and sort tasks, and a
+ * {@link ComputeBatcher} shared by concurrent callers that each wait for every result. Client and
+ * server share the JVM.
+ */
+public class ComputeBatchBenchmark {
+
+    private static final int OPERATIONS = 20_000;
+    private static final int BATCH_SIZE = 1000;
+    private static final int CALLERS = 32;
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : OPERATIONS;
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://localhost:" + port + "/compute", UnicastRemoteObject.exportObject(new ComputeServerImpl(), 0));
+        ComputeServer server = (ComputeServer) Naming.lookup("rmi://localhost:" + port + "/compute");
+
+        // warm up every path
+        for (int round = 0; round < 2; round++) {
+            singleCalls(server, 2000);
+            addAll(server, 2000);
+            invokeAll(server, 2000);
+            concurrentSingleCalls(server, 2000);
+            batcher(server, 2000);
+        }
+
+        long start = System.nanoTime();
+        singleCalls(server, operations);
+        report("add, one call each", operations, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        concurrentSingleCalls(server, operations);
+        report("add, " + CALLERS + " callers", operations, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        addAll(server, operations);
+        report("addAll by " + BATCH_SIZE, operations, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        invokeAll(server, operations);
+        report("invokeAll by " + BATCH_SIZE, operations, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        batcher(server, operations);
+        report("batcher, " + CALLERS + " callers", operations, System.nanoTime() - start);
+        System.exit(0);
+    }
+
+    private static void singleCalls(ComputeServer server, int operations) throws Exception {
+        for (int i = 0; i < operations; i++) {
+            check(server.add(i, 1), i);
+        }
+    }
+
+    private static void concurrentSingleCalls(ComputeServer server, int operations) throws Exception {
+        runCallers(operations, i -> check(server.add(i, 1), i));
+    }
+
+    private static void addAll(ComputeServer server, int operations) throws Exception {
+        for (int from = 0; from < operations; from += BATCH_SIZE) {
+            int[] a = new int[Math.min(BATCH_SIZE, operations - from)];
+            int[] b = new int[a.length];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = from + i;
+                b[i] = 1;
+            }
+            int[] sums = server.addAll(a, b);
+            for (int i = 0; i < sums.length; i++) {
+                check(sums[i], from + i);
+            }
+        }
+    }
+
+    /**
+     * Every tenth call is a small sort, the others additions
+     */
+    private static void invokeAll(ComputeServer server, int operations) throws Exception {
+        for (int from = 0; from < operations; from += BATCH_SIZE) {
+            int size = Math.min(BATCH_SIZE, operations - from);
+            String[] taskTypes = new String[size];
+            Serializable[] arguments = new Serializable[size];
+            for (int i = 0; i < size; i++) {
+                if (i % 10 == 0) {
+                    taskTypes[i] = "sort";
+                    arguments[i] = new ArrayList<>(List.of(3, 1, 2));
+                } else {
+                    taskTypes[i] = "add";
+                    arguments[i] = new int[] { from + i, 1 };
+                }
+            }
+            Object[] results = server.invokeAll(taskTypes, arguments);
+            for (int i = 0; i < size; i++) {
+                if (results[i] instanceof Exception) {
+                    throw (Exception) results[i];
+                }
+                if (i % 10 != 0) {
+                    check((Integer) results[i], from + i);
+                }
+            }
+        }
+    }
+
+    private static void batcher(ComputeServer server, int operations) throws Exception {
+        ComputeBatcher batcher = new ComputeBatcher(server);
+        runCallers(operations, i -> check(batcher.add(i, 1).join(), i));
+        batcher.shutdown();
+    }
+
+    private interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * Runs {@code operations} calls spread over {@link #CALLERS} threads, each waiting for its
+     * call before making the next one
+     */
+    private static void runCallers(int operations, Operation operation) throws Exception {
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int caller = 0; caller < CALLERS; caller++) {
+            int first = caller;
+            futures.add(callers.submit(() -> {
+                for (int i = first; i < operations; i += CALLERS) {
+                    operation.run(i);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        callers.shutdown();
+    }
+
+    private static void check(int sum, int i) {
+        if (sum != i + 1) {
+            throw new IllegalStateException("Wrong sum " + sum + " for " + i + " + 1");
+        }
+    }
+
+    private static void report(String label, int operations, long elapsedNanos) {
+        System.out.printf("%-22s %,8d ops: %7d ms, %,10.0f ops/s%n", label, operations, elapsedNanos / 1_000_000,
+                operations / (elapsedNanos / 1e9));
+    }
+}
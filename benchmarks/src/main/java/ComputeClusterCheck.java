@@ -0,0 +1,114 @@
+import java.net.ServerSocket;
+import java.rmi.Naming;
+import java.rmi.Remote;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Check of {@link ComputeCluster} against several compute nodes on localhost ports, each with its
+ * own registry as with {@code Server computeNode <port>}. The extra nodes register with the main
+ * node's registry and are discovered there. Concurrent callers add numbers while one node is
+ * stopped and restarted; every call must succeed and return the right sum. A large
+ * {@link ComputeCluster#sortInts(int[])} is timed split across the nodes and on one node. Exits
+ * with status 1 on a failed or wrong call.
+ */
+public class ComputeClusterCheck {
+
+    private static final int NODES = 3;
+    private static final int CALLERS = 8;
+    private static final int SORT_SIZE = 8_000_000;
+    private static final int PROBE_MILLIS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : NODES;
+        int[] ports = new int[nodeCount];
+        ComputeServerImpl[] nodes = new ComputeServerImpl[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                ports[i] = socket.getLocalPort();
+            }
+            LocateRegistry.createRegistry(ports[i]);
+            nodes[i] = startNode(ports, i);
+        }
+        String registryUrl = "rmi://localhost:" + ports[0];
+        ComputeCluster cluster = new ComputeCluster(registryUrl, "/compute", ComputeCluster.DEFAULT_SPLIT_SORT_THRESHOLD, PROBE_MILLIS);
+        System.out.println("Discovered " + cluster.countUp() + " of " + nodeCount + " nodes");
+
+        AtomicLong calls = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        long stopAt = System.currentTimeMillis() + 4000;
+        List<Future<?>> running = new ArrayList<>();
+        for (int caller = 0; caller < CALLERS; caller++) {
+            running.add(callers.submit(() -> {
+                Random random = new Random();
+                while (System.currentTimeMillis() < stopAt) {
+                    int a = random.nextInt(1000);
+                    int b = random.nextInt(1000);
+                    try {
+                        if (cluster.add(a, b) != a + b) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        System.out.println("Call failed: " + e);
+                        failures.incrementAndGet();
+                    }
+                    calls.incrementAndGet();
+                }
+            }));
+        }
+        Thread.sleep(1000);
+        int victim = nodeCount - 1;
+        System.out.println("Stopping node " + victim);
+        UnicastRemoteObject.unexportObject(nodes[victim], true);
+        Thread.sleep(1500);
+        System.out.println("Restarting node " + victim);
+        nodes[victim] = startNode(ports, victim);
+        for (Future<?> future : running) {
+            future.get();
+        }
+        callers.shutdown();
+        Thread.sleep(2 * PROBE_MILLIS);
+        System.out.println(calls.get() + " adds, " + failures.get() + " failed or wrong");
+        System.out.println(cluster);
+
+        int[] values = new Random(42).ints(SORT_SIZE).toArray();
+        long start = System.nanoTime();
+        int[] sorted = cluster.sortInts(values.clone());
+        long splitNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        nodes[0].sortInts(values.clone());
+        long singleNanos = System.nanoTime() - start;
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i - 1] > sorted[i]) {
+                System.out.println("Split sort returned an unsorted array");
+                failures.incrementAndGet();
+                break;
+            }
+        }
+        System.out.printf("sortInts of %,d: %d ms split across %d nodes, %d ms on one node%n", SORT_SIZE,
+                splitNanos / 1_000_000, cluster.countUp(), singleNanos / 1_000_000);
+        System.exit(failures.get() == 0 && cluster.countUp() == nodeCount ? 0 : 1);
+    }
+
+    /**
+     * Exports node {@code i} in its registry and, for nodes other than the first, registers it
+     * in the first node's registry as the server does
+     */
+    private static ComputeServerImpl startNode(int[] ports, int i) throws Exception {
+        ComputeServerImpl node = new ComputeServerImpl();
+        Remote stub = UnicastRemoteObject.exportObject(node, 0);
+        Naming.rebind("rmi://localhost:" + ports[i] + "/compute", stub);
+        if (i > 0) {
+            Naming.rebind("rmi://localhost:" + ports[0] + "/compute-" + ports[i], stub);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,167 @@
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Stress check for concurrent writes. N client threads hammer a small set of shared file names
+ * over loopback RMI with whole-file uploads, upload sessions, chunk store uploads, batches and
+ * deletes, while reader threads fetch the same files. Every file version is self-describing (its
+ * first 8 bytes seed the generator of the rest and of its length), so any torn, interleaved or
+ * truncated file read mid-run or left at the end is detected. Exits with status 1 on corruption.
+ */
+public class ConcurrentWriteStress {
+
+    private static final int CLIENTS = 16;
+    private static final int READERS = 4;
+    private static final int FILES = 8;
+    private static final int OPERATIONS_PER_CLIENT = 200;
+    private static final int MAX_FILE_BYTES = 512 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : CLIENTS;
+        Path workDir = Files.createTempDirectory("write-stress");
+        Path serverDir = Files.createDirectories(workDir.resolve("server"));
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        LocateRegistry.createRegistry(port);
+        Naming.rebind("rmi://localhost:" + port + "/fileOp", UnicastRemoteObject.exportObject(new FileServerImpl(serverDir.toString()), 0));
+        FileServer server = (FileServer) Naming.lookup("rmi://localhost:" + port + "/fileOp");
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients + READERS);
+        AtomicLong operations = new AtomicLong();
+        AtomicLong corruptReads = new AtomicLong();
+        long start = System.nanoTime();
+        List<Future<?>> writers = new ArrayList<>();
+        for (int client = 0; client < clients; client++) {
+            Path clientDir = Files.createDirectories(workDir.resolve("client-" + client).resolve("shared")).getParent();
+            writers.add(pool.submit(() -> {
+                runClient(server, clientDir, operations);
+                return null;
+            }));
+        }
+        List<Future<?>> readers = new ArrayList<>();
+        for (int reader = 0; reader < READERS; reader++) {
+            readers.add(pool.submit(() -> {
+                while (!allDone(writers)) {
+                    String fileName = fileName(ThreadLocalRandom.current().nextInt(FILES));
+                    byte[] data;
+                    try {
+                        data = server.readRange(fileName, 0, FileServer.MAX_READ_LENGTH);
+                    } catch (RemoteException e) {
+                        continue; // deleted or not written yet
+                    }
+                    if (!isValid(data)) {
+                        corruptReads.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        pool.shutdown();
+
+        int corruptFiles = 0;
+        for (int i = 0; i < FILES; i++) {
+            Path file = serverDir.resolve(fileName(i));
+            if (Files.exists(file) && !isValid(Files.readAllBytes(file))) {
+                System.out.println("Corrupt file " + file);
+                corruptFiles++;
+            }
+        }
+        long leftovers;
+        try (Stream<Path> files = Files.list(serverDir.resolve(".uploads"))) {
+            leftovers = files.count();
+        }
+        System.out.printf("%d clients, %d operations in %d ms (%.0f ops/s)%n", clients, operations.get(),
+                elapsedNanos / 1_000_000, operations.get() / (elapsedNanos / 1e9));
+        System.out.println("Corrupt reads: " + corruptReads.get() + ", corrupt files: " + corruptFiles
+                + ", leftover temp files: " + leftovers);
+        System.exit(corruptReads.get() == 0 && corruptFiles == 0 && leftovers == 0 ? 0 : 1);
+    }
+
+    private static void runClient(FileServer server, Path clientDir, AtomicLong operations) throws Exception {
+        FileUploader uploader = new FileUploader(server, CHUNK_SIZE, false, false);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < OPERATIONS_PER_CLIENT; i++) {
+            String fileName = fileName(random.nextInt(FILES));
+            byte[] data = generate(random.nextLong());
+            Path local = clientDir.resolve(fileName);
+            switch (random.nextInt(5)) {
+                case 0:
+                    server.uploadFile(data, fileName);
+                    break;
+                case 1:
+                    Files.write(local, data);
+                    uploader.uploadStreamed(local, fileName);
+                    break;
+                case 2:
+                    Files.write(local, data);
+                    uploader.uploadDeduplicated(local, fileName);
+                    break;
+                case 3:
+                    FileBatch batch = new FileBatch();
+                    batch.addUpload(fileName, data);
+                    server.applyBatch(batch.toByteArray());
+                    break;
+                default:
+                    server.delete(fileName);
+                    break;
+            }
+            operations.incrementAndGet();
+        }
+    }
+
+    private static String fileName(int index) {
+        return "shared/file-" + index + ".bin";
+    }
+
+    /**
+     * @return a file version whose length and contents follow from its first 8 bytes
+     */
+    private static byte[] generate(long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[Long.BYTES + random.nextInt(MAX_FILE_BYTES)];
+        ByteBuffer.wrap(data).putLong(seed);
+        byte[] body = new byte[data.length - Long.BYTES];
+        random.nextBytes(body);
+        System.arraycopy(body, 0, data, Long.BYTES, body.length);
+        return data;
+    }
+
+    private static boolean isValid(byte[] data) {
+        if (data.length < Long.BYTES) {
+            return false;
+        }
+        long seed = ByteBuffer.wrap(data).getLong();
+        return Arrays.equals(data, generate(seed));
+    }
+
+    private static boolean allDone(List<Future<?>> futures) {
+        return futures.stream().allMatch(Future::isDone);
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures bytes on the wire for a small in-place edit of {@code test-data/sample-video.mp4},
+ * comparing a full upload with a {@link DeltaSync} exchange. Wire sizes are the Java serialized
+ * sizes of the RMI arguments and return values.
+ */
+public class DeltaSyncBenchmark {
+
+    private static final String FIXTURE = "test-data/sample-video.mp4";
+
+    public static void main(String[] args) throws IOException {
+        Path fixture = Paths.get(args.length > 0 ? args[0] : FIXTURE);
+        Path workDir = Files.createTempDirectory("delta-bench");
+        Path serverCopy = workDir.resolve("server.bin");
+        Path clientCopy = workDir.resolve("client.bin");
+        Files.copy(fixture, serverCopy, StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(fixture, clientCopy, StandardCopyOption.REPLACE_EXISTING);
+
+        long fileSize = Files.size(clientCopy);
+        try (RandomAccessFile file = new RandomAccessFile(clientCopy.toFile(), "rw")) {
+            file.seek(fileSize / 2);
+            file.write("edited in place".getBytes());
+        }
+
+        int blockSize = DeltaSync.blockSizeFor(fileSize);
+        long start = System.nanoTime();
+        List<BlockSignature> signatures = DeltaSync.computeSignatures(serverCopy, blockSize);
+        List<DeltaInstruction> delta = DeltaSync.computeDelta(clientCopy, signatures, blockSize, fileSize);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        Path rebuilt = workDir.resolve("rebuilt.bin");
+        UploadSession session = new UploadSession("rebuilt.bin", rebuilt, workDir.resolve("rebuilt.part"));
+        DeltaSync.applyDelta(serverCopy, delta, blockSize, session);
+        session.commit();
+        boolean identical = Arrays.equals(Files.readAllBytes(clientCopy), Files.readAllBytes(rebuilt));
+
+        long fullBytes = serializedSize(Files.readAllBytes(clientCopy));
+        long signatureBytes = serializedSize(signatures);
+        long deltaBytes = serializedSize(delta);
+        long deltaTotal = signatureBytes + deltaBytes;
+
+        System.out.println("File: " + fixture + " (" + fileSize + " bytes, block size " + blockSize + ")");
+        System.out.println("Full upload bytes on wire:   " + fullBytes);
+        System.out.println("Signature bytes on wire:     " + signatureBytes);
+        System.out.println("Delta bytes on wire:         " + deltaBytes + " (" + delta.size() + " instructions)");
+        System.out.printf("Delta sync total:            %d (%.2f%% of full upload)%n", deltaTotal, 100.0 * deltaTotal / fullBytes);
+        System.out.println("Signature + delta time (ms): " + elapsedMillis);
+        System.out.println("Rebuilt file identical:      " + identical);
+
+        for (Path path : new Path[] { serverCopy, clientCopy, rebuilt }) {
+            Files.deleteIfExists(path);
+        }
+        Files.deleteIfExists(workDir);
+    }
+
+    private static long serializedSize(Object value) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(counter)) {
+            out.writeObject(value);
+        }
+        return counter.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by the benchmarks
+ */
+final class App {
+
+    /**
+     * Implementation of {@link AppFacade} in the unnamed package, the one class looked up by name
+     */
+    private static final String FACADE_CLASS = "AppFacadeImpl";
+
+    private App() {
+    }
+
+    /**
+     * @return typed access to the client and server classes
+     */
+    static AppFacade facade() throws ReflectiveOperationException {
+        return (AppFacade) Class.forName(FACADE_CLASS).getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * @param file a size such as {@code 64KB} or {@code 1GB} for random bytes, or the name of a
+     *        file in the {@code test-data} directory (system property {@code rmisync.testData})
+     * @return contents of the file
+     */
+    static byte[] fixture(String file) throws IOException {
+        long size = parseSize(file);
+        if (size >= 0) {
+            byte[] data = new byte[(int) Math.min(size, Integer.MAX_VALUE - 8)];
+            new Random(42).nextBytes(data);
+            return data;
+        }
+        Path testData = Paths.get(System.getProperty("rmisync.testData", "test-data"));
+        if (!Files.isDirectory(testData)) {
+            testData = Paths.get("..", "test-data");
+        }
+        return Files.readAllBytes(testData.resolve(file));
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * @return bytes of a size such as {@code 1KB}, {@code 16MB} or {@code 1GB}, or -1 if {@code value} is not a size
+     */
+    private static long parseSize(String value) {
+        String[] units = { "KB", "MB", "GB" };
+        for (int i = 0; i < units.length; i++) {
+            if (value.endsWith(units[i]) && value.substring(0, value.length() - 2).chars().allMatch(Character::isDigit)) {
+                return Long.parseLong(value.substring(0, value.length() - 2)) << (10 * (i + 1));
+            }
+        }
+        return -1;
+    }
+}
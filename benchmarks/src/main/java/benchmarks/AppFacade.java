@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Typed view of the client and server classes the benchmarks drive. Those classes live in the
+ * unnamed package, which a named package cannot import, so {@code AppFacadeImpl} in the unnamed
+ * package implements this interface against them and both sides are checked by the compiler.
+ * Get it from {@link App#facade()}.
+ */
+public interface AppFacade {
+
+    /**
+     * How a benchmark calls the file server
+     */
+    enum Transport {
+        /** direct calls in the same JVM */
+        IN_PROCESS,
+        /** a loopback RMI stub */
+        RMI,
+        /** a {@code BinaryFileClient} of a loopback {@code BinaryTransportServer} */
+        BINARY
+    }
+
+    /**
+     * A file server started for a benchmark, or a client connection to it; closing the server
+     * unexports it and stops its transport
+     */
+    interface FileServerHandle extends AutoCloseable {
+
+        void uploadFile(byte[] file, String fileName) throws RemoteException;
+
+        byte[] readRange(String fileName, long offset, int length) throws RemoteException;
+
+        /**
+         * @return a client of the server with its own connection where the transport has them, to be closed by the caller
+         */
+        FileServerHandle connect();
+    }
+
+    /**
+     * A compute server started for a benchmark; closing it unexports the server
+     */
+    interface ComputeServerHandle extends AutoCloseable {
+
+        List<Integer> sort(List<Integer> array) throws RemoteException;
+
+        int[] sortInts(int[] array) throws RemoteException;
+
+        String addAsync(int a, int b) throws RemoteException;
+
+        Object getResult(String taskId) throws RemoteException;
+
+        Object awaitResult(String taskId, long timeoutMillis) throws RemoteException;
+    }
+
+    /**
+     * @param serverDir directory the server writes to
+     * @param transport how the returned handle calls the server
+     * @return the started server
+     */
+    FileServerHandle startFileServer(Path serverDir, Transport transport) throws Exception;
+
+    /**
+     * @param rmi true to call the server through a loopback RMI stub, false to call it in process
+     * @return the started server
+     */
+    ComputeServerHandle startComputeServer(boolean rmi) throws Exception;
+}
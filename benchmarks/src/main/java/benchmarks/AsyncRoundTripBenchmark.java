@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of an async addition over loopback RMI, from {@code addAsync} until the result is in
+ * hand: polled with {@code getResult}, or fetched with one blocking {@code awaitResult}. Sampled,
+ * so the JSON results carry percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncRoundTripBenchmark {
+
+    private AppFacade.ComputeServerHandle computeServer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        computeServer = App.facade().startComputeServer(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        computeServer.close();
+    }
+
+    @Benchmark
+    public Object addAsyncGetResult() throws Exception {
+        String taskId = computeServer.addAsync(1, 2);
+        Object result;
+        while ((result = computeServer.getResult(taskId)) == null) {
+            // poll until the task completes
+        }
+        return result;
+    }
+
+    @Benchmark
+    public Object addAsyncAwaitResult() throws Exception {
+        String taskId = computeServer.addAsync(1, 2);
+        return computeServer.awaitResult(taskId, 1000L);
+    }
+}
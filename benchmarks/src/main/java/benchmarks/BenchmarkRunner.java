@@ -0,0 +1,35 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs JMH with its usual command line, but unless a result format is given, writes the results
+ * as JSON to a timestamped file in {@code benchmarks/results} (system property
+ * {@code rmisync.results}), so runs can be compared over time.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = Arrays.asList(args);
+        if (options.contains("-rf") || options.contains("-h") || options.contains("-l") || options.contains("-lp")) {
+            Main.main(args);
+            return;
+        }
+        Path results = Files.createDirectories(Paths.get(System.getProperty("rmisync.results", "benchmarks/results")));
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        String[] withResults = Arrays.copyOf(args, args.length + 4);
+        withResults[args.length] = "-rf";
+        withResults[args.length + 1] = "json";
+        withResults[args.length + 2] = "-rff";
+        withResults[args.length + 3] = results.resolve("jmh-" + timestamp + ".json").toString();
+        Main.main(withResults);
+    }
+}
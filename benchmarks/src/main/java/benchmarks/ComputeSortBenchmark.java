@@ -0,0 +1,93 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code ComputeServerImpl.sort} of a boxed list, in process, at several list sizes, next to
+ * {@code sortInts} of the same values. {@code sort} leaves its input unchanged; {@code sortInts}
+ * sorts in place, so each call sorts a fresh copy and the copy is part of the measured time.
+ * {@code sortInts} also runs at 100M elements; the boxed list stops at 1M, since 100M boxed
+ * values and the sorted copy would need well over the 3 GB heap of the fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ComputeSortBenchmark {
+
+    private AppFacade.ComputeServerHandle computeServer;
+
+    @State(Scope.Benchmark)
+    public static class BoxedInput {
+
+        @Param({ "1000", "100000", "1000000" })
+        public int size;
+
+        private List<Integer> list;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            list = new ArrayList<>(size);
+            for (int value : randomInts(size)) {
+                list.add(value);
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class IntInput {
+
+        @Param({ "1000", "100000", "1000000", "100000000" })
+        public int size;
+
+        private int[] values;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            values = randomInts(size);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        computeServer = App.facade().startComputeServer(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        computeServer.close();
+    }
+
+    @Benchmark
+    public Object sort(BoxedInput input) throws Exception {
+        return computeServer.sort(input.list);
+    }
+
+    @Benchmark
+    public Object sortInts(IntInput input) throws Exception {
+        return computeServer.sortInts(input.values.clone());
+    }
+
+    private static int[] randomInts(int size) {
+        return new Random(42).ints(size).toArray();
+    }
+}
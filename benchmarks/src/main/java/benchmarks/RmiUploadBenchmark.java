@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end {@code FileServer.uploadFile} over loopback RMI: the file is serialized, sent,
+ * deserialized and written by a server in the same JVM. Sizes stop at 256 MB since a call holds
+ * several copies of the file in the heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class RmiUploadBenchmark {
+
+    @Param({ "1KB", "64KB", "1MB", "16MB", "256MB", "HelloWorld.txt", "data.json", "sample-audio.mp3", "sample-video.mp4" })
+    public String file;
+
+    private byte[] data;
+    private Path serverDir;
+    private AppFacade.FileServerHandle fileServer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        data = App.fixture(file);
+        serverDir = Files.createTempDirectory("rmi-upload-benchmark");
+        fileServer = App.facade().startFileServer(serverDir, AppFacade.Transport.RMI);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fileServer.close();
+        App.deleteRecursively(serverDir);
+    }
+
+    @Benchmark
+    public void uploadFile() throws Exception {
+        fileServer.uploadFile(data, "benchmark.bin");
+    }
+}
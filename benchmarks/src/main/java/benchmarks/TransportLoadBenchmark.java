@@ -0,0 +1,99 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Load on the two file transports over loopback: 1000 benchmark threads (change with {@code -t}),
+ * each a client with its own connection, call {@code readRange} or {@code uploadFile} on their own
+ * 4 KB file, over RMI and over the binary transport. Sampled, so the JSON results carry
+ * percentiles; the number of threads serving the transport is printed after each trial. RMI
+ * connection threads stay around idle for a while, so later RMI trials also count earlier ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Threads(1000)
+@Fork(1)
+public class TransportLoadBenchmark {
+
+    private static final int FILE_BYTES = 4096;
+
+    @Param({ "RMI", "BINARY" })
+    public AppFacade.Transport transport;
+
+    private final AtomicInteger clients = new AtomicInteger();
+    private byte[] data;
+    private Path serverDir;
+    private AppFacade.FileServerHandle fileServer;
+
+    /**
+     * A benchmark thread's connection and file
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        private AppFacade.FileServerHandle connection;
+        private String fileName;
+
+        @Setup(Level.Trial)
+        public void connect(TransportLoadBenchmark benchmark) throws Exception {
+            fileName = "load/" + benchmark.clients.getAndIncrement() + ".bin";
+            benchmark.fileServer.uploadFile(benchmark.data, fileName);
+            connection = benchmark.fileServer.connect();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            connection.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        data = new byte[FILE_BYTES];
+        new Random(42).nextBytes(data);
+        serverDir = Files.createTempDirectory("transport-load");
+        fileServer = App.facade().startFileServer(serverDir, transport);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        String serverThreads = transport == AppFacade.Transport.RMI ? "RMI TCP Connection" : "binary-transport";
+        long threadCount = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith(serverThreads)).count();
+        System.out.printf("%n%d clients, %d threads serving %s%n", clients.get(), threadCount, transport);
+        fileServer.close();
+        App.deleteRecursively(serverDir);
+    }
+
+    @Benchmark
+    public byte[] readRange(Client client) throws Exception {
+        return client.connection.readRange(client.fileName, 0, FILE_BYTES);
+    }
+
+    @Benchmark
+    public void uploadFile(Client client) throws Exception {
+        client.connection.uploadFile(data, client.fileName);
+    }
+}